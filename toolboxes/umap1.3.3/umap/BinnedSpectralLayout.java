@@ -0,0 +1,90 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.stream.IntStream;
+
+/*
+ * Java port of spectral_layout_binned.m for inputs too large for a full
+ * spectral layout.  Rows are probability binned, the spectral layout is
+ * solved on the fuzzy graph of the bin means and each row's coordinates
+ * are interpolated in parallel from the bins nearest to it (its own bin
+ * and that bin's nearest neighbor bins) by inverse distance weighting.
+ * spectral_layout_binned.m simply copies the bin's coordinates to each
+ * of its rows; set interpolationNeighbors to 1 for that behavior.
+ */
+public class BinnedSpectralLayout {
+	public int n_neighbors=15, interpolationNeighbors=3;
+	public ProbabilityBinner bins;
+	public SpectralLayout layout;
+
+	private final double []data;
+	private final int rows, cols;
+
+	/**
+	 * @param data row major rows x cols
+	 */
+	public BinnedSpectralLayout(final double []data, final int rows, final int cols){
+		this.data=data;
+		this.rows=rows;
+		this.cols=cols;
+	}
+
+	public BinnedSpectralLayout(final double [][]data){
+		this(FuzzySimplicialSet.flat(data), data.length, data.length>0?data[0].length:0);
+	}
+
+	public double [][]compute(final int dim){
+		bins=new ProbabilityBinner(data, rows, cols, ProbabilityBinner.EventsPerBin(rows));
+		final int numBins=bins.numBins;
+		final double []means=FuzzySimplicialSet.flat(bins.means);
+		final int k=Math.min(n_neighbors, numBins-1);
+		final int []knnIndices=new int[numBins*k];
+		final double []knnDists=new double[numBins*k];
+		UmapPipeline.Knn(means, numBins, cols, k, knnIndices, knnDists);
+		final double []sigmas=new double[numBins], rhos=new double[numBins];
+		SmoothKnnDist.Compute(knnDists, numBins, k, k, 1, 64, 1, true, sigmas, rhos);
+		final FuzzySimplicialSet graph=FuzzySimplicialSet.Build(knnIndices, knnDists,
+				numBins, k, sigmas, rhos, true, 1);
+		layout=new SpectralLayout(graph);
+		final double [][]binEmbedding=layout.compute(dim);
+		final double [][]embedding=new double[rows][dim];
+		final int candidates=Math.min(k, Math.max(interpolationNeighbors, 1));
+		IntStream.range(0, rows).parallel().forEach(row->{
+			final int bin=bins.ptrs[row];
+			final double []out=embedding[row];
+			if (candidates<=1){
+				System.arraycopy(binEmbedding[bin], 0, out, 0, dim);
+				return;
+			}
+			double weightSum=0;
+			for (int c=0;c<candidates;c++){
+				// knn of a bin starts with the bin itself
+				final int other=knnIndices[bin*k+c];
+				if (other<0){
+					continue;
+				}
+				double sum=0;
+				for (int col=0;col<cols;col++){
+					final double d=data[row*cols+col]-means[other*cols+col];
+					sum+=d*d;
+				}
+				final double w=1/(Math.sqrt(sum)+1e-12);
+				weightSum+=w;
+				for (int m=0;m<dim;m++){
+					out[m]+=w*binEmbedding[other][m];
+				}
+			}
+			for (int m=0;m<dim;m++){
+				out[m]/=weightSum;
+			}
+		});
+		return embedding;
+	}
+}
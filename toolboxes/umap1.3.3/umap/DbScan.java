@@ -0,0 +1,389 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/*
+ * DBSCAN for the embeddings run_umap clusters when n_components>2, with
+ * the labels MATLAB's dbscan(X, epsilon, minpts) gives: a point is core
+ * when at least minpts points (itself included) are within epsilon
+ * (euclidean), clusters are the cores joined through cores within
+ * epsilon numbered 1, 2 ... in the order of their first core, a border
+ * point goes to the lowest numbered cluster with a core within epsilon of
+ * it and the rest are noise (-1).
+ *
+ * The points are indexed by a uniform grid of cells epsilon/sqrt(d) wide
+ * so the points of a cell are all within epsilon of each other: a cell
+ * with minpts points is all core and its cores are one cluster without
+ * measuring.  Only occupied cells exist, sorted by a mixed radix key of
+ * their coordinates with the points copied in cell order, and a cell's
+ * neighbors are the occupied cells whose nearest corner is within
+ * epsilon.  Core counts, the joining of cells with cores (a lock free
+ * union-find stopping at the first pair of cores within epsilon) and the
+ * border points run in parallel over the cells.  The neighbors grow as
+ * (2*ceil(sqrt(d))+1)^d so this suits the 2 to 4 dimensions of an
+ * embedding.
+ */
+public class DbScan {
+	public final int n, d;
+	// coordinates in cell order and the original row of each
+	private final double []data;
+	private final int []rows;
+	private int []cellStart, neighborStart, neighborCells;
+	// each cell's lowest corner
+	private double []corners;
+	private double side;
+	private boolean []core;
+	private int []labels;
+	private int numClusters;
+
+	/**
+	 * @param data n rows of d coordinates
+	 */
+	public DbScan(final double [][]data){
+		n=data.length;
+		d=n==0?0:data[0].length;
+		this.data=new double[n*d];
+		rows=new int[n];
+		for (int i=0;i<n;i++){
+			System.arraycopy(data[i], 0, this.data, i*d, d);
+			rows[i]=i;
+		}
+	}
+
+	/**
+	 * @return the cluster of each row, 1 based or -1 for noise
+	 */
+	public int []cluster(final double epsilon, final int minPts){
+		if (!(epsilon>0)){
+			throw new IllegalArgumentException("epsilon must be >0 not "+epsilon);
+		}
+		index(epsilon);
+		final double eps2=epsilon*epsilon;
+		final int nCells=cellStart.length-1;
+		core=new boolean[n];
+		final boolean []hasCore=new boolean[nCells];
+		IntStream.range(0, nCells).parallel().forEach(c->{
+			final boolean full=cellStart[c+1]-cellStart[c]>=minPts;
+			for (int p=cellStart[c];p<cellStart[c+1];p++){
+				int count=0;
+				for (int k=neighborStart[c];!full && k<neighborStart[c+1] && count<minPts;k++){
+					final int nc=neighborCells[k];
+					if (toCell(p, nc)>eps2){
+						continue;
+					}
+					for (int q=cellStart[nc];q<cellStart[nc+1] && count<minPts;q++){
+						if (distance2(p, q)<=eps2){
+							count++;
+						}
+					}
+				}
+				core[p]=full || count>=minPts;
+				hasCore[c]|=core[p];
+			}
+		});
+		// join the cells with cores within epsilon, each pair once
+		final AtomicIntegerArray parent=new AtomicIntegerArray(nCells);
+		for (int c=0;c<nCells;c++){
+			parent.set(c, c);
+		}
+		IntStream.range(0, nCells).parallel().forEach(c->{
+			if (!hasCore[c]){
+				return;
+			}
+			for (int k=neighborStart[c];k<neighborStart[c+1];k++){
+				final int nc=neighborCells[k];
+				if (nc>c && hasCore[nc] && find(parent, c)!=find(parent, nc)
+						&& coresMeet(c, nc, eps2)){
+					union(parent, c, nc);
+				}
+			}
+		});
+		// number the clusters in the order of their first core by row
+		final int []position=new int[n];
+		final int []cellOf=new int[n];
+		for (int c=0;c<nCells;c++){
+			for (int p=cellStart[c];p<cellStart[c+1];p++){
+				position[rows[p]]=p;
+				cellOf[p]=c;
+			}
+		}
+		final int []clusterOfRoot=new int[nCells];
+		numClusters=0;
+		for (int row=0;row<n;row++){
+			final int p=position[row];
+			if (core[p]){
+				final int root=find(parent, cellOf[p]);
+				if (clusterOfRoot[root]==0){
+					clusterOfRoot[root]=++numClusters;
+				}
+			}
+		}
+		final int []clusterOfCell=new int[nCells];
+		for (int c=0;c<nCells;c++){
+			clusterOfCell[c]=hasCore[c]?clusterOfRoot[find(parent, c)]:-1;
+		}
+		labels=new int[n];
+		IntStream.range(0, nCells).parallel().forEach(c->{
+			for (int p=cellStart[c];p<cellStart[c+1];p++){
+				int label=-1;
+				if (core[p]){
+					label=clusterOfCell[c];
+				} else {
+					for (int k=neighborStart[c];k<neighborStart[c+1];k++){
+						final int nc=neighborCells[k];
+						final int cluster=clusterOfCell[nc];
+						if (cluster<0 || (label>0 && cluster>=label)
+								|| toCell(p, nc)>eps2){
+							continue;
+						}
+						for (int q=cellStart[nc];q<cellStart[nc+1];q++){
+							if (core[q] && distance2(p, q)<=eps2){
+								label=cluster;
+								break;
+							}
+						}
+					}
+				}
+				labels[rows[p]]=label;
+			}
+		});
+		return labels;
+	}
+
+	public int getNumClusters(){
+		return numClusters;
+	}
+
+	/**
+	 * @return whether each row is a core point
+	 */
+	public boolean []getCorePoints(){
+		final boolean []byRow=new boolean[n];
+		for (int p=0;p<n;p++){
+			byRow[rows[p]]=core[p];
+		}
+		return byRow;
+	}
+
+	private boolean coresMeet(final int c, final int nc, final double eps2){
+		for (int p=cellStart[c];p<cellStart[c+1];p++){
+			if (core[p] && toCell(p, nc)<=eps2){
+				for (int q=cellStart[nc];q<cellStart[nc+1];q++){
+					if (core[q] && distance2(p, q)<=eps2){
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the squared distance from point p to cell c's box
+	 */
+	private double toCell(final int p, final int c){
+		double sum=0;
+		for (int k=0, a=p*d, b=c*d;k<d;k++, a++, b++){
+			final double below=corners[b]-data[a], above=data[a]-corners[b]-side;
+			final double gap=below>0?below:(above>0?above:0);
+			sum+=gap*gap;
+		}
+		return sum;
+	}
+
+	private double distance2(final int p, final int q){
+		double sum=0;
+		for (int k=0, a=p*d, b=q*d;k<d;k++, a++, b++){
+			final double diff=data[a]-data[b];
+			sum+=diff*diff;
+		}
+		return sum;
+	}
+
+	/**
+	 * Sorts the points into their cells and lists each cell's occupied
+	 * neighbor cells (itself included) ascending.
+	 */
+	private void index(final double epsilon){
+		side=epsilon/Math.sqrt(d);
+		final int reach=(int)Math.ceil(Math.sqrt(d));
+		final double []mins=new double[d];
+		java.util.Arrays.fill(mins, Double.POSITIVE_INFINITY);
+		for (int p=0;p<n;p++){
+			for (int k=0;k<d;k++){
+				mins[k]=Math.min(mins[k], data[p*d+k]);
+			}
+		}
+		// cell coordinates start at reach so a neighbor's are never below 0
+		final long []cellOf=new long[n];
+		final long []strides=new long[d];
+		long stride=1;
+		final int []coordinate=new int[n*d];
+		for (int k=0;k<d;k++){
+			int max=0;
+			for (int p=0;p<n;p++){
+				final double c=Math.floor((data[p*d+k]-mins[k])/side)+reach;
+				if (!(c<Integer.MAX_VALUE-2*reach)){
+					throw new IllegalArgumentException(
+							"Coordinates must be finite and epsilon not too small");
+				}
+				coordinate[p*d+k]=(int)c;
+				max=Math.max(max, (int)c);
+			}
+			strides[k]=stride;
+			if (stride>Long.MAX_VALUE/(max+1+reach)){
+				throw new IllegalArgumentException("Too many grid cells of "
+						+epsilon+" in "+d+" dimensions, try a larger epsilon");
+			}
+			stride*=max+1+reach;
+		}
+		IntStream.range(0, n).parallel().forEach(p->{
+			long key=0;
+			for (int k=0;k<d;k++){
+				key+=coordinate[p*d+k]*strides[k];
+			}
+			cellOf[p]=key;
+		});
+		final long []sorted=cellOf.clone();
+		java.util.Arrays.parallelSort(sorted);
+		int nCells=0;
+		for (int i=0;i<n;i++){
+			if (i==0 || sorted[i]!=sorted[i-1]){
+				sorted[nCells++]=sorted[i];
+			}
+		}
+		final long []keys=java.util.Arrays.copyOf(sorted, nCells);
+		// counting sort of the points by cell
+		final int []cell=new int[n];
+		cellStart=new int[nCells+1];
+		IntStream.range(0, n).parallel().forEach(p->{
+			cell[p]=java.util.Arrays.binarySearch(keys, cellOf[p]);
+		});
+		for (int p=0;p<n;p++){
+			cellStart[cell[p]+1]++;
+		}
+		for (int c=0;c<nCells;c++){
+			cellStart[c+1]+=cellStart[c];
+		}
+		final int []next=java.util.Arrays.copyOf(cellStart, nCells);
+		final int []order=new int[n];
+		for (int p=0;p<n;p++){
+			order[next[cell[p]]++]=p;
+		}
+		final double []byCell=new double[n*d];
+		for (int i=0;i<n;i++){
+			System.arraycopy(data, order[i]*d, byCell, i*d, d);
+		}
+		System.arraycopy(byCell, 0, data, 0, n*d);
+		final int []rowsByCell=new int[n];
+		for (int i=0;i<n;i++){
+			rowsByCell[i]=rows[order[i]];
+		}
+		System.arraycopy(rowsByCell, 0, rows, 0, n);
+		corners=new double[nCells*d];
+		for (int c=0;c<nCells;c++){
+			final int p=order[cellStart[c]];
+			for (int k=0;k<d;k++){
+				corners[c*d+k]=mins[k]+(coordinate[p*d+k]-reach)*side;
+			}
+		}
+		// the key steps to the neighbors whose nearest corner is within
+		// epsilon, that is whose gaps of whole cells sum to d squared
+		final int width=2*reach+1;
+		int nSteps=1;
+		for (int k=0;k<d;k++){
+			nSteps*=width;
+		}
+		final long []steps=new long[nSteps];
+		int nOffsets=0;
+		for (int o=0;o<nSteps;o++){
+			long offset=0;
+			int gaps=0;
+			for (int k=0, rest=o;k<d;k++, rest/=width){
+				final int step=rest%width-reach;
+				offset+=step*strides[k];
+				final int gap=Math.max(0, Math.abs(step)-1);
+				gaps+=gap*gap;
+			}
+			if (gaps<=d){
+				steps[nOffsets++]=offset;
+			}
+		}
+		final long []offsets=java.util.Arrays.copyOf(steps, nOffsets);
+		java.util.Arrays.sort(offsets);
+		final int [][]neighbors=new int[nCells][];
+		IntStream.range(0, nCells).parallel().forEach(c->{
+			final int []found=new int[offsets.length];
+			int nFound=0;
+			for (final long offset:offsets){
+				final int nc=java.util.Arrays.binarySearch(keys, keys[c]+offset);
+				if (nc>=0){
+					found[nFound++]=nc;
+				}
+			}
+			neighbors[c]=java.util.Arrays.copyOf(found, nFound);
+		});
+		neighborStart=new int[nCells+1];
+		for (int c=0;c<nCells;c++){
+			neighborStart[c+1]=neighborStart[c]+neighbors[c].length;
+		}
+		neighborCells=new int[neighborStart[nCells]];
+		for (int c=0;c<nCells;c++){
+			System.arraycopy(neighbors[c], 0, neighborCells, neighborStart[c],
+					neighbors[c].length);
+		}
+	}
+
+	private static int find(final AtomicIntegerArray parent, int p){
+		while (true){
+			final int up=parent.get(p);
+			if (up==p){
+				return p;
+			}
+			final int upUp=parent.get(up);
+			if (upUp!=up){
+				// path halving, a lost race only leaves a longer path
+				parent.compareAndSet(p, up, upUp);
+			}
+			p=upUp;
+		}
+	}
+
+	/**
+	 * Links the larger root under the smaller, retrying when another
+	 * thread links either first.
+	 */
+	private static void union(final AtomicIntegerArray parent, final int p, final int q){
+		while (true){
+			int a=find(parent, p), b=find(parent, q);
+			if (a==b){
+				return;
+			}
+			if (a<b){
+				final int swap=a;
+				a=b;
+				b=swap;
+			}
+			if (parent.compareAndSet(a, a, b)){
+				return;
+			}
+		}
+	}
+
+	/**
+	 * dbscan(data, epsilon, minPts) in one call.
+	 */
+	public static int []Cluster(final double [][]data, final double epsilon,
+			final int minPts){
+		return new DbScan(data).cluster(epsilon, minPts);
+	}
+}
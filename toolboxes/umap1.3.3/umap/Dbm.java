@@ -8,6 +8,8 @@
 
 package edu.stanford.facs.swing;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Dbm {
 	public int debugging=0;
@@ -17,6 +19,9 @@ public class Dbm {
 	public Dbm(final int M){
 		this.M=M;
 		MM=this.M*this.M;
+		for (int k=0;k<DX.length;k++){
+			offsets[k]=DX[k]+DY[k]*M;
+		}
 	}
 	class Xy{
 		final int x,y;
@@ -35,299 +40,1127 @@ public class Dbm {
 	}
 	public int []possibleClusterTears;
 	public boolean reportChangeCount=true;
+
+	/**
+	 * Receives what merge(), mergeTiled() and fixClusterTear() do.  With a
+	 * listener set reportChangeCount and debugging print nothing; with
+	 * none and neither of those set nothing is counted or timed.
+	 * DbmMetrics collects the counts and times.
+	 */
+	public interface Listener{
+		/**
+		 * A dummy was processed: the sizes of its sets A and B and the
+		 * pointer it had before its B went to newPeak.  mergeTiled()
+		 * reports only the dummies of its boundary steps, its tiles'
+		 * dummies are counted by loop().
+		 */
+		void dummy(int outerLoop, int gridpoint, int sizeOfA, int sizeOfB,
+				int dummyPointer, int newPeak);
+		/**
+		 * An outer loop processed this many dummies and changed this many
+		 * pointers, the loops end with one that changes none.
+		 */
+		void loop(int outerLoop, int dummies, int changes);
+		/**
+		 * A phase (one of the PHASE_ names) took this long.
+		 */
+		void phase(String phase, long nanos);
+		/**
+		 * fixClusterTear() checked possible tears and found torn clusters.
+		 */
+		void tears(int possible, int torn);
+		/**
+		 * merge(delta, newPointers) merged redone of the grid's gridpoints
+		 * again; with debugging set differ is how many gridpoints (or all
+		 * for different possible tears) differ from merge(), else -1.
+		 */
+		void mergedAgain(int redone, int gridpoints, int differ);
+	}
+	public static final String PHASE_MERGE="merge", PHASE_MERGE_TILED="mergeTiled",
+			PHASE_MERGE_AGAIN="merge again",
+			PHASE_SORT="sortDummies", PHASE_FIX_TEARS="fixClusterTear";
+	public Listener listener;
+	// the listener of the current merge: listener, a Printer or null
+	private Listener active;
+
+	/*
+	 * What reportChangeCount and debugging have always printed.
+	 */
+	private class Printer implements Listener{
+		int innerLoop;
+
+		public void dummy(final int outerLoop, final int gridpoint, final int sizeOfA,
+				final int sizeOfB, final int dummyPointer, final int newPeak){
+			innerLoop++;
+			if (debugging>1){
+				System.out.println("Loop #"+ outerLoop+"."+innerLoop+", newPeak="
+						+newPeak+", A="+sizeOfA+", B="+sizeOfB+", check sum=" + checkSum());
+			}
+		}
+
+		public void loop(final int outerLoop, final int dummies, final int changes){
+			innerLoop=0;
+			if (debugging==1){
+				System.out.println("Loop #"+ outerLoop+"."+dummies+
+						", check sum=" + checkSum());
+			}
+			if (reportChangeCount && changes>0){
+				System.out.println(changes+" changes require "+ "Loop #"+(outerLoop+1));
+			}
+		}
+
+		public void phase(final String phase, final long nanos){
+		}
+
+		public void tears(final int possible, final int torn){
+		}
+
+		public void mergedAgain(final int redone, final int gridpoints,
+				final int differ){
+			if (differ>0){
+				System.out.println("merge again differs from merge() at "+differ
+						+" gridpoints");
+			}
+		}
+	}
+
+	private void startListening(){
+		active=listener!=null?listener
+				:(reportChangeCount || debugging>0)?new Printer():null;
+	}
+
+	private long now(){
+		return active==null?0:System.nanoTime();
+	}
+
+	private void lap(final String phase, final long start){
+		if (active!=null){
+			active.phase(phase, System.nanoTime()-start);
+		}
+	}
+
+	/*
+	 * The 3x3 neighborhood in the order the original loops probe it
+	 * (x outer, y inner) so ties for the maximum density break the same
+	 * way.  offsets are the vector index steps; CENTER is the gridpoint
+	 * itself which only set B includes.
+	 */
+	static final int []DX={-1,-1,-1,0,0,0,1,1,1}, DY={-1,0,1,-1,0,1,-1,0,1};
+	static final int CENTER=4;
+	private final int []offsets=new int[DX.length];
+
+	/*
+	 * Work buffers of MM entries allocated on first use and reused by every
+	 * merge() and fixClusterTear() on this Dbm.
+	 */
+	private boolean []dirty;
+	private int []dummies, a, b, stamp, changedInLoop, priorPointers,
+		changed, sortBuffer;
+	private double []keys, keyBuffer;
+	// mergeTiled() bounding boxes of each dummy's set A as x | y<<16
+	private int []boxLow, boxHigh;
+	private int nChanged, outerLoop;
+	// the pointers the last merge() started from and ended with
+	private int []initial, merged;
+	// the only gridpoints merge(delta, newPointers) can change, ascending
+	private int []region;
+	private int nRegion;
+
+	private void allocate(){
+		if (stamp==null){
+			dummies=new int[MM];
+			a=new int[MM];
+			b=new int[MM+1];
+			stamp=new int[MM];
+			changedInLoop=new int[MM];
+			priorPointers=new int[MM];
+			changed=new int[MM];
+			sortBuffer=new int[MM];
+			dirty=new boolean[MM];
+			keys=new double[MM];
+			keyBuffer=new double[MM];
+			initial=new int[MM];
+		}
+	}
+
+	/**
+	 * @return true if the gridpoint at x,y has all 8 neighbors
+	 */
+	private boolean interior(final int x, final int y){
+		return x>0 && y>0 && x<M-1 && y<M-1;
+	}
+
+	/**
+	 * @return the k'th neighbor of gridpoint v at x,y or -1 if off the grid
+	 */
+	private int neighbor(final int v, final int x, final int y, final int k){
+		final int xNeigh=x+DX[k], yNeigh=y+DY[k];
+		if (xNeigh<0 || xNeigh>=M || yNeigh<0 || yNeigh>=M){
+			return -1;
+		}
+		return v+offsets[k];
+	}
+
+	/*
+	 * Same result as the original full passes (DbmCheck.MergeByFullPasses)
+	 * without rescanning every dummy on every loop.  Once a gridpoint with a pointer to a dummy state has been
+	 * processed its set A is only itself (the unassigned neighbors that pass
+	 * its density test were absorbed), so processing it again can only
+	 * change something if a pointer within 2 gridpoints of it changed
+	 * since (its B neighbors or the C neighbors of its max B).  Every
+	 * pointer change marks the gridpoints within 2 as dirty and each loop
+	 * processes, in the same descending density order, only dummies that
+	 * are dirty or never processed.  The loops end when one changes nothing,
+	 * exactly when the full passes end.
+	 *
+	 * Sets A and B are int[] queues, membership is a stamp per gridpoint and
+	 * neighbors are probed through the offsets table so nothing is
+	 * allocated per gridpoint or per loop.
+	 */
 	public void merge(){
-		final LinkedHashSet<Integer>tearAbleSet=new LinkedHashSet<Integer>();
+		startListening();
+		final long began=now();
 		possibleClusterTears=null;
-		boolean tryAgain=true;
-		int outerLoop=0;
-		int changes=0;
-		for (;tryAgain;){
+		allocate();
+		System.arraycopy(pointers, 0, initial, 0, MM);
+		java.util.Arrays.fill(dirty, true); // never processed
+		merge(new int[Math.max(16, MM/8)], 0);
+		keepMerged();
+		lap(PHASE_MERGE, began);
+	}
+
+	/**
+	 * Keeps the merged pointers for merge(delta, newPointers) since
+	 * fixClusterTear() changes them.
+	 */
+	private void keepMerged(){
+		if (merged==null){
+			merged=new int[MM];
+		}
+		System.arraycopy(pointers, 0, merged, 0, MM);
+	}
+
+	/**
+	 * The loops of merge() over the dirty dummies.
+	 */
+	private void merge(int []tearAble, int nTearAble){
+		java.util.Arrays.fill(changedInLoop, 0);
+		java.util.Arrays.fill(stamp, 0);
+		final Worker worker=new Worker(a, b, 0, 0, M, M, 0, 1, false);
+		worker.trackChanges=true;
+		int changes=1;
+		outerLoop=0;
+		while (changes>0){
 			outerLoop++;
-			if (reportChangeCount){
-				if (changes>0){
-					System.out.println(changes+" changes require "+ "Loop #"+outerLoop);
+			nChanged=0;
+			final long sorting=now();
+			final int nDummies=sortDummies();
+			lap(PHASE_SORT, sorting);
+			int innerLoop=0;
+			for (int di=0;di<nDummies;di++){
+				final int newDummy=dummies[di];
+				if (pointers[newDummy]>0 || !dirty[newDummy]){
+					continue;
+				}
+				innerLoop++;
+				worker.process(newDummy);
+				if (active!=null){
+					active.dummy(outerLoop, newDummy, worker.sizeOfA, worker.sizeOfB,
+							worker.dummyPointer, worker.newPeak);
+				}
+				if (worker.dummyPointer!=worker.newPeak){
+					if (nTearAble==tearAble.length){
+						nTearAble=SortUnique(tearAble, nTearAble);
+						if (nTearAble>tearAble.length/2){
+							tearAble=java.util.Arrays.copyOf(tearAble, tearAble.length*2);
+						}
+					}
+					tearAble[nTearAble++]=worker.dummyPointer;
 				}
 			}
+			// like the full passes count what differs from the loop's start
 			changes=0;
-			int []priorPointers=new int[pointers.length];
-			System.arraycopy(pointers, 0, priorPointers, 0, pointers.length);
-			final ArrayList<Integer>dummies=new ArrayList<Integer>();
-			for (int i=0;i<MM;i++){
-				if (pointers[i]<-1){
-					dummies.add(i);
+			for (int i=0;i<nChanged;i++){
+				final int v=changed[i];
+				if (pointers[v]!=priorPointers[v]){
+					changes++;
 				}
 			}
-			java.util.Collections.sort(dummies, new Comparator<Integer>() {
+			if (active!=null){
+				active.loop(outerLoop, innerLoop, changes);
+			}
+		}
+		possibleClusterTears=java.util.Arrays.copyOf(tearAble, SortUnique(tearAble, nTearAble));
+	}
 
-				@Override
-				public int compare(final Integer o1, final Integer o2) {
-					// TODO Auto-generated method stub
-					final double l=density[o1], r=density[o2];
-					if (l<r){
-						return 1;
-					} else if (l>r){
-						return -1;
+	/**
+	 * Merges again after the density, stdErr or starting pointers of some
+	 * gridpoints changed (a small bandwidth change or an added sample)
+	 * reusing what the last merge found everywhere else.  The caller has
+	 * put the new values in density and stdErr.
+	 *
+	 * Sets A, B and C only hold gridpoints that are not background and
+	 * are 8-connected to the dummy, so each 8-connected component of the
+	 * gridpoints that are not background merges on its own: merge()'s
+	 * loops only go on while some component still changes and a component
+	 * that changed nothing in a loop changes nothing later.  A component
+	 * whose gridpoints and neighbors have the same density, stdErr and
+	 * starting pointers as in the last merge is the same component with the
+	 * same merge, so it gets its merged pointers back (from before
+	 * fixClusterTear()) and keeps its possible tears.  merge()'s loops
+	 * process only the dummies of the other components from their starting
+	 * pointers, so the result is the same as merge(); when those cover a
+	 * third of the grid everything is merged again.  With debugging set the
+	 * listener is told whether the result differs from merge().
+	 *
+	 * @param delta the 0 based gridpoints whose density or stdErr changed
+	 * or null if none did
+	 * @param newPointers the new starting pointers or null if those did not
+	 * change
+	 */
+	public void merge(final int []delta, final int []newPointers){
+		if (merged==null){
+			if (newPointers!=null){
+				pointers=newPointers.clone();
+			}
+			merge();
+			return;
+		}
+		startListening();
+		final long began=now();
+		final boolean []changedAt=new boolean[MM];
+		if (delta!=null){
+			for (final int v:delta){
+				changedAt[v]=true;
+			}
+		}
+		if (newPointers!=null){
+			for (int v=0;v<MM;v++){
+				if (newPointers[v]!=initial[v]){
+					changedAt[v]=true;
+					initial[v]=newPointers[v];
+				}
+			}
+		}
+		final int []again=new int[MM];
+		int nAgain=0;
+		// each component in queue from first to size
+		final int []queue=changed;
+		java.util.Arrays.fill(stamp, 0);
+		java.util.Arrays.fill(dirty, false);
+		int size=0;
+		for (int v=0;v<MM;v++){
+			if (initial[v]==-1){
+				pointers[v]=-1;
+				continue;
+			}
+			if (stamp[v]!=0){
+				continue;
+			}
+			final int first=size;
+			boolean redo=false;
+			stamp[v]=1;
+			queue[size++]=v;
+			for (int i=first;i<size;i++){
+				final int u=queue[i], x=u%M, y=u/M;
+				redo|=changedAt[u];
+				for (int k=0;k<DX.length;k++){
+					final int neighbor=neighbor(u, x, y, k);
+					if (neighbor<0){
+						continue;
+					}
+					redo|=changedAt[neighbor];
+					if (stamp[neighbor]==0 && initial[neighbor]!=-1){
+						stamp[neighbor]=1;
+						queue[size++]=neighbor;
 					}
-					return 0;
 				}
-			});
-			final Iterator<Integer>it=dummies.iterator();
-			int []debug=null;
-			if (debugging>0) {debug=ToInt(dummies);}
-			int innerLoop=0;
-			while(it.hasNext()){
-				innerLoop++;
-//				if (debugging>0 && innerLoop==139 && outerLoop==1){
-//					int i1=dummies.get(138), i2=dummies.get(139);
-//					double d1=density[i1], d2=density[i2];
-//					boolean ll=d1>d2;
-//					boolean rr=d1<d2;
-//					System.out.println("ok-->"+i1+", "+ i2 +", "+d1+", "+d2+", "+ll+", "+rr);
-//				}
-				// make A eh
-				List<Integer>A=new ArrayList<>();
-				final int newDummy=it.next();
-				if (pointers[newDummy]>0){
-					// this happens when before i this gridpoint became part of set B
-					// and then got affected by set a neighbor in C
-					continue;
+			}
+			for (int i=first;i<size;i++){
+				final int u=queue[i];
+				if (redo){
+					pointers[u]=initial[u];
+					dirty[u]=true; // never processed
+					again[nAgain++]=u;
+				} else {
+					pointers[u]=merged[u];
 				}
-				A.add(newDummy);
-				LinkedHashSet<Integer>lhs=new LinkedHashSet<>();
-				lhs.add(newDummy);
-				final double test=density[newDummy]-stdErr[newDummy];
-				int sizeOfA = 0;                    
-                for (int k=0;k<MM;k++){
-                    final int newSizeOfA=A.size();
-                    if (newSizeOfA>sizeOfA){
-                    	if (k==newSizeOfA-1){ // do all of the original A gridpoints
-                    		sizeOfA=k+1;
-                    	}
-                    	final Xy xy=new Xy(A.get(k));
-            			for (int xI=-1;xI<2;xI++){
-            				int xNeigh=xy.x+xI;
-            				if (xNeigh<0 || xNeigh>=M){
-            					continue;
-            				}
-            				for (int yI=-1;yI<2;yI++){
-            					int yNeigh=xy.y+yI;
-            					if ((xI==0 && yI==0) || yNeigh<0 || yNeigh>=M){
-                					continue;
-                				}
-            					final int neighbor=vectorIdx(xNeigh, yNeigh);
-            					if (pointers[neighbor]==0 && density[neighbor]+stdErr[neighbor]>test){
-            						if (!lhs.contains(neighbor)){
-            							A.add(neighbor);
-            							lhs.add(neighbor);
-            						}
-            					}
-            				}
-            			}
-            			
-                    } else {
-                    	break;
-                    }
-                }
-                
-                // Make B and tearAble
-                
-                /*
-                 * Denote by B the set containing m(i) as well as the indices of grid points which 
-                 * satisfy the following two conditions. The grid point possesses a pointer to a 
-                 * cluster state, and the grid point has some yp, 
-                 * p isSubsetOf A as neighbor. 
-                 * 
-                 * Define q by f(yq)=maxr isSubsetOf B f(yr), breaking ties arbitrarily.
-                 */
-    			final LinkedHashSet<Integer>B=new LinkedHashSet<>(), tearAble=new LinkedHashSet<>();
-    			double maxB_density=-1;
-    			int maxB_gridPoint=-1;
-    			final int N=A.size();
-    			for (int i=0;i<N;i++){
-    				final int v=A.get(i);
-    				if (pointers[v]<-1){
-    					tearAble.add(pointers[v]);
-    				}
-    				
-                	final Xy xy=new Xy(v);
-        			for (int xI=-1;xI<2;xI++){
-        				int xNeigh=xy.x+xI;
-        				if (xNeigh<0 || xNeigh>=M){
-        					continue;
-        				}
-        				for (int yI=-1;yI<2;yI++){
-        					int yNeigh=xy.y+yI;
-        					if ( yNeigh<0 || yNeigh>=M){
-            					continue;
-            				}
-        					final int neighbor=vectorIdx(xNeigh, yNeigh);
-        					if (pointers[neighbor]<-1){
-        						if (!B.contains(neighbor)){
-        							B.add(neighbor);
-        							if (density[neighbor]>maxB_density){
-        								maxB_density=density[neighbor];
-        								maxB_gridPoint=neighbor;
-        							}
-        						}
-        					}
-        				}
-        			}
-    			}
-    			if (debugging>0) {debug=ToInt(B);java.util.Arrays.sort(debug);}
-    			assert(maxB_gridPoint>=0);
-    			// making set C logic, C set not needed here only max density of C 
-    			Xy xy=new Xy(maxB_gridPoint);
-    			double maxC_density=maxB_density;
-    			int maxC_gridPoint=-1;
-    			
-    			for (int xI=-1;xI<2;xI++){
-    				int xNeigh=xy.x+xI;
-    				if (xNeigh<0 || xNeigh>=M){
-    					continue;
-    				}
-    				for (int yI=-1;yI<2;yI++){
-    					int yNeigh=xy.y+yI;
-    					if ((xI==0 && yI==0) || yNeigh<0 || yNeigh>=M){
-        					continue;
-        				}
-    					final int neighbor=vectorIdx(xNeigh, yNeigh);
-    					if (pointers[neighbor]>0){
-    						if (density[neighbor]>maxC_density){
-    							maxC_gridPoint=neighbor;
-    							maxC_density=density[neighbor];
-    						}
-    					}
-    				}
-    			}
-    			final int newPeak;
-    			if (maxC_gridPoint>=0){ // new merging logic
-					newPeak=pointers[maxC_gridPoint];
-    			} else { // old merging logic
-    				// this introduces the possibility of a cluster tear since this 
-    				// create more gridpoints with pointers to the SAME dummy state and 
-    				// future loops may alter this with set B
-    				newPeak=pointers[maxB_gridPoint];
-    			}
-    			Iterator<Integer>it2=A.iterator();
-				while(it2.hasNext()){
-					pointers[ it2.next() ]=newPeak;
-				}
-				it2=B.iterator();
-				while(it2.hasNext()){
-					pointers[ it2.next() ]=newPeak;
-				}
-				if (debugging>1){
-					System.out.println("Loop #"+ outerLoop+"."+innerLoop+", newPeak="+newPeak+
-							", A="+A.size()+", B="+B.size()+", check sum=" + checkSum());
-				}
-				it2=tearAble.iterator();
-    			while (it2.hasNext()){
-    				final int p=it2.next();
-    				if (p != newPeak){
-    					tearAbleSet.add(p);
-    				}
-    			}
 			}
-			if (debugging==1){
-				System.out.println("Loop #"+ outerLoop+"."+innerLoop+
-						", check sum=" + checkSum());
+		}
+		if (nAgain>MM/3){
+			System.arraycopy(initial, 0, pointers, 0, MM);
+			merge();
+			report(nAgain);
+			return;
+		}
+		java.util.Arrays.sort(again, 0, nAgain);
+		// the components kept keep their possible tears
+		final int []tearAble=new int[Math.max(16, nAgain/8)+possibleClusterTears.length];
+		int nTearAble=0;
+		for (final int dummyPointer:possibleClusterTears){
+			final int v=-dummyPointer-2;
+			if (!dirty[v] && initial[v]!=-1){
+				tearAble[nTearAble++]=dummyPointer;
 			}
+		}
+		possibleClusterTears=null;
+		region=again;
+		nRegion=nAgain;
+		merge(tearAble, nTearAble);
+		region=null;
+		System.arraycopy(pointers, 0, merged, 0, MM);
+		lap(PHASE_MERGE_AGAIN, began);
+		report(nAgain);
+	}
 
-			tryAgain=false;
-			for (int i=0;i<pointers.length;i++){
-				if (priorPointers[i]!=pointers[i]){
-					tryAgain=true;
-					if (reportChangeCount){
-						changes++;
-					}else{
-						break;
-					}
+	/**
+	 * Tells the listener how many gridpoints merge(delta, newPointers)
+	 * merged again and, with debugging set, at how many it differs from
+	 * merge() from the same starting pointers.
+	 */
+	private void report(final int redone){
+		if (active==null){
+			return;
+		}
+		int differ=-1;
+		if (debugging>0){
+			final Dbm fresh=new Dbm(M);
+			fresh.pointers=initial.clone();
+			fresh.density=density;
+			fresh.stdErr=stdErr;
+			fresh.reportChangeCount=false;
+			fresh.merge();
+			differ=0;
+			for (int v=0;v<MM;v++){
+				if (fresh.pointers[v]!=pointers[v]){
+					differ++;
 				}
 			}
+			if (differ==0 && !java.util.Arrays.equals(
+					fresh.possibleClusterTears, possibleClusterTears)){
+				differ=MM;
+			}
 		}
-		possibleClusterTears=ToInt(tearAbleSet);
-		java.util.Arrays.sort(possibleClusterTears);
+		active.mergedAgain(redone, MM, differ);
 	}
-	public int tooSmall=4;
-	public int[][] tears;
-	public void fixClusterTear(){
-		final Collection<int[]> tearList=new ArrayList<>();
-		final int []ids=this.possibleClusterTears;
-		final int MM=M*M;
-		final int N=ids.length;
-		for (int i=0;i<N;i++){
-			final int id=ids[i];
-			int idCnt=1;
-			int p=-1;
-			for (int j=0;j<pointers.length;j++){
-				if (pointers[j]==id){
-					p=j;
+	/**
+	 * Puts the gridpoints with pointers to dummy states in dummies by
+	 * descending density.
+	 *
+	 * @return how many
+	 */
+	private int sortDummies(){
+		int nDummies=0;
+		final int n=region==null?MM:nRegion;
+		for (int j=0;j<n;j++){
+			final int i=region==null?j:region[j];
+			if (pointers[i]<-1){
+				keys[nDummies]=density[i];
+				dummies[nDummies++]=i;
+			}
+		}
+		sortDescending(dummies, nDummies, keys, sortBuffer, keyBuffer);
+		return nDummies;
+	}
+
+	/**
+	 * Tiles are tileSize x tileSize gridpoints, mergeTiled() processes them
+	 * in parallel.
+	 */
+	public int tileSize=128;
+
+	/*
+	 * merge() in parallel for large grids with the same result.  Each loop
+	 * the dummies are taken in the same descending density order, and each
+	 * tile processes its share of them concurrently with the other tiles as
+	 * long as a dummy's set A stays 3 or more gridpoints inside the tile.
+	 * Everything such a dummy reads (A, B and C lie within 2 of A) or writes
+	 * (pointers of A and B, dirty marks within 2 of those) is then in its
+	 * own tile, so the tiles' work commutes and equals doing it in merge()'s
+	 * order.
+	 *
+	 * A tile stops at its first dummy that reaches its border.  The
+	 * earliest of those stopping dummies (K in the density order) is the
+	 * boundary union step: tiles within 3 of its set A undo (from their
+	 * journals) whatever they did for dummies after K, K is processed alone
+	 * on the whole grid, and those tiles resume.  Tiles K cannot reach keep
+	 * their work.
+	 */
+	public void mergeTiled(){
+		if (tileSize<8 || tileSize>=M){
+			merge();
+			return;
+		}
+		startListening();
+		final long began=now();
+		possibleClusterTears=null;
+		allocate();
+		System.arraycopy(pointers, 0, initial, 0, MM);
+		java.util.Arrays.fill(dirty, true); // never processed
+		java.util.Arrays.fill(stamp, 0);
+		final int across=(M+tileSize-1)/tileSize, nTiles=across*across;
+		final Worker []tiles=new Worker[nTiles];
+		for (int t=0;t<nTiles;t++){
+			final int x0=(t%across)*tileSize, y0=(t/across)*tileSize,
+					x1=Math.min(M, x0+tileSize), y1=Math.min(M, y0+tileSize),
+					area=(x1-x0)*(y1-y0);
+			tiles[t]=new Worker(new int[area], new int[area+1], x0, y0, x1, y1,
+					t, nTiles+1, true);
+		}
+		final Worker boundary=new Worker(a, b, 0, 0, M, M, nTiles, nTiles+1, false);
+		if (boxLow==null){
+			boxLow=new int[MM];
+			boxHigh=new int[MM];
+		}
+		// dummies of each tile as indexes into dummies, their journal mark
+		final int []tileStart=new int[nTiles+1], grouped=changed, marks=changedInLoop;
+		final int []pos=new int[nTiles], stopped=new int[nTiles];
+		final boolean []run=new boolean[nTiles];
+		final int []toRun=new int[nTiles];
+		int []tearAble=new int[Math.max(16, MM/8)];
+		int nTearAble=0, changes=1;
+		outerLoop=0;
+		while (changes>0){
+			outerLoop++;
+			System.arraycopy(pointers, 0, priorPointers, 0, MM);
+			final long sorting=now();
+			final int nDummies=sortDummies();
+			lap(PHASE_SORT, sorting);
+			java.util.Arrays.fill(tileStart, 0);
+			for (int di=0;di<nDummies;di++){
+				tileStart[tileOf(dummies[di], across)+1]++;
+			}
+			for (int t=0;t<nTiles;t++){
+				tileStart[t+1]+=tileStart[t];
+				pos[t]=0;
+				run[t]=true;
+			}
+			for (int di=0;di<nDummies;di++){
+				final int t=tileOf(dummies[di], across);
+				grouped[tileStart[t]+pos[t]++]=di;
+			}
+			java.util.Arrays.fill(pos, 0);
+			final Tiles parallel=new Tiles(tiles, tileStart, grouped, marks, pos,
+					stopped, run);
+			int lastK=-1, boundaries=0, frontier=-1;
+			while (true){
+				/*
+				 * No tile runs past a dummy another tile stopped at nor
+				 * much further than the dummies between boundary steps so
+				 * far suggest the next will be.
+				 */
+				frontier=Math.max(frontier, lastK)
+						+Math.max(8, 2*(lastK+1)/Math.max(1, boundaries));
+				parallel.limit=frontier;
+				for (int t=0;t<nTiles;t++){
+					if (!run[t] && stopped[t]<parallel.limit){
+						parallel.limit=stopped[t];
+					}
+				}
+				parallel.run(toRun);
+				int K=Integer.MAX_VALUE, next=Integer.MAX_VALUE;
+				for (int t=0;t<nTiles;t++){
+					run[t]=parallel.paused[t];
+					if (stopped[t]<K){
+						K=stopped[t];
+					}
+					if (run[t]){
+						next=Math.min(next, grouped[tileStart[t]+pos[t]]);
+					}
+				}
+				if (next<K){ // paused before K
+					continue;
+				}
+				if (K==Integer.MAX_VALUE){
 					break;
 				}
-			}
-			while (p>=0){
-				final int newId=id-(idCnt*MM);
-				int newIdCnt=0;
-				final Set<Integer> done=new LinkedHashSet<>();
-				Set<Integer> toDo=new LinkedHashSet<>();
-				toDo.add(p);
-				while (toDo.size()>0){
-					final Set<Integer>neighbors=new LinkedHashSet<>();
-					Iterator<Integer>it=toDo.iterator();
-					while(it.hasNext()){
-						final int doing=it.next();
-						pointers[doing]=newId;
-						newIdCnt++;
-						final Xy xy=new Xy(doing);
-
-						for (int xI=-1;xI<2;xI++){
-							int xNeigh=xy.x+xI;
-							if (xNeigh<0 || xNeigh>=M){
-								continue;
-							}
-							for (int yI=-1;yI<2;yI++){
-								int yNeigh=xy.y+yI;
-								if ((xI==0 && yI==0) || yNeigh<0 || yNeigh>=M){
-									continue;
+				final int newDummy=dummies[K];
+				/*
+				 * Undo tiles' work after K that K can see or change until
+				 * K sees none.  A dummy reads within 2 and changes within 3
+				 * of its set A so work on a set A more than 6 from K's
+				 * commutes with K.
+				 */
+				boolean undone=true;
+				while (undone){
+					undone=false;
+					boundary.makeA(newDummy);
+					final int tx0=Math.max(0, boundary.minX-3)/tileSize,
+							tx1=Math.min(M-1, boundary.maxX+3)/tileSize,
+							ty0=Math.max(0, boundary.minY-3)/tileSize,
+							ty1=Math.min(M-1, boundary.maxY+3)/tileSize;
+					for (int ty=ty0;ty<=ty1;ty++){
+						for (int tx=tx0;tx<=tx1;tx++){
+							final int t=ty*across+tx, start=tileStart[t];
+							if (stopped[t]!=Integer.MAX_VALUE){
+								// did K change what made the tile stop?
+								final Worker tile=tiles[t];
+								if (tile.minX<=boundary.maxX+4 && boundary.minX<=tile.maxX+4
+										&& tile.minY<=boundary.maxY+4 && boundary.minY<=tile.maxY+4){
+									run[t]=true;
 								}
-								final int neighbor=vectorIdx(xNeigh, yNeigh);
-								if (pointers[neighbor]==id && !done.contains(neighbor)){
-									neighbors.add(neighbor);
+							}
+							int first=pos[t];
+							while (first>0 && grouped[start+first-1]>K){
+								first--;
+							}
+							for (int i=first;i<pos[t];i++){
+								final int low=boxLow[start+i], high=boxHigh[start+i];
+								if ((low&0xffff)<=boundary.maxX+6 && boundary.minX<=(high&0xffff)+6
+										&& (low>>>16)<=boundary.maxY+6 && boundary.minY<=(high>>>16)+6){
+									pos[t]=i;
+									tiles[t].undo(marks[start+i], i);
+									stopped[t]=Integer.MAX_VALUE;
+									run[t]=true;
+									undone=true;
+									break;
 								}
 							}
-						}	
+						}
 					}
-					toDo=neighbors;
-					done.addAll(toDo);
-				}
-				p=-1;
-				for (int j=0;j<pointers.length;j++){
-					if (pointers[j]==id){
-						p=j;
-						break;
+				}
+				boundary.process(newDummy);
+				if (active!=null){
+					active.dummy(outerLoop, newDummy, boundary.sizeOfA, boundary.sizeOfB,
+							boundary.dummyPointer, boundary.newPeak);
+				}
+				if (boundary.dummyPointer!=boundary.newPeak){
+					if (nTearAble==tearAble.length){
+						nTearAble=SortUnique(tearAble, nTearAble);
+						if (nTearAble>tearAble.length/2){
+							tearAble=java.util.Arrays.copyOf(tearAble, tearAble.length*2);
+						}
 					}
+					tearAble[nTearAble++]=boundary.dummyPointer;
 				}
-/*				if (newIdCnt<tooSmall){
-					for (int j=0;j<pointers.length;j++){
-						if (pointers[j]==newId){
-							pointers[j]=-1;
+				lastK=K;
+				boundaries++;
+				final int t=tileOf(newDummy, across);
+				pos[t]++;
+				stopped[t]=Integer.MAX_VALUE;
+				run[t]=true;
+			}
+			// dummies processed including those undone and processed again
+			int processed=boundary.processed;
+			boundary.processed=0;
+			for (int t=0;t<nTiles;t++){
+				final Worker tile=tiles[t];
+				processed+=tile.processed;
+				tile.processed=0;
+				for (int i=0;i<tile.nTearAble;i++){
+					if (nTearAble==tearAble.length){
+						nTearAble=SortUnique(tearAble, nTearAble);
+						if (nTearAble>tearAble.length/2){
+							tearAble=java.util.Arrays.copyOf(tearAble, tearAble.length*2);
 						}
 					}
-				}else{*/
-					idCnt=idCnt+1;
-				//}
+					tearAble[nTearAble++]=tile.tearAble[2*i+1];
+				}
+				tile.nTearAble=0;
+				tile.nJournal=0;
+			}
+			changes=(int)java.util.stream.IntStream.range(0, MM).parallel()
+					.filter(i->pointers[i]!=priorPointers[i]).count();
+			if (active!=null){
+				active.loop(outerLoop, processed, changes);
+			}
+		}
+		possibleClusterTears=java.util.Arrays.copyOf(tearAble, SortUnique(tearAble, nTearAble));
+		keepMerged();
+		lap(PHASE_MERGE_TILED, began);
+	}
+
+	private int tileOf(final int v, final int across){
+		return (v/M/tileSize)*across+(v%M)/tileSize;
+	}
+
+	/*
+	 * Runs the tiles flagged in run from their next dummy (pos) until the
+	 * end of their dummies, a dummy that reaches their border whose
+	 * index in dummies goes in stopped or a dummy at or after limit.
+	 * Without limit tiles would get far ahead of the dummy that stops
+	 * first and have that work undone.
+	 */
+	private class Tiles{
+		final Worker []tiles;
+		final int []tileStart, grouped, marks, pos, stopped;
+		final boolean []run, paused;
+		int limit;
+
+		Tiles(final Worker []tiles, final int []tileStart, final int []grouped,
+				final int []marks, final int []pos, final int []stopped,
+				final boolean []run){
+			this.tiles=tiles;
+			this.tileStart=tileStart;
+			this.grouped=grouped;
+			this.marks=marks;
+			this.pos=pos;
+			this.stopped=stopped;
+			this.run=run;
+			paused=new boolean[run.length];
+		}
+
+		/**
+		 * Runs the flagged tiles, in parallel when more than 1.
+		 */
+		void run(final int []toRun){
+			int n=0;
+			for (int t=0;t<run.length;t++){
+				if (run[t]){
+					toRun[n++]=t;
+				}
 			}
-			if (idCnt>2){
-				tearList.add(new int[]{id, (idCnt-1)});
+			if (n==1){
+				runTile(toRun[0]);
+			} else if (n>1){
+				ForkJoinPool.commonPool().invoke(range(toRun, 0, n));
 			}
 		}
-		tears=new int[tearList.size()][];
-		final Iterator<int[]>it=tearList.iterator();
-		for (int i=0;it.hasNext();i++){
-			tears[i]=it.next();
+
+		private RecursiveAction range(final int []toRun, final int lo, final int hi){
+			return new RecursiveAction(){
+				private static final long serialVersionUID=1L;
+
+				@Override
+				protected void compute(){
+					if (hi-lo>1){
+						final int mid=(lo+hi)/2;
+						invokeAll(range(toRun, lo, mid), range(toRun, mid, hi));
+					} else {
+						runTile(toRun[lo]);
+					}
+				}
+			};
+		}
+
+		void runTile(final int t){
+			final Worker tile=tiles[t];
+			final int start=tileStart[t], n=tileStart[t+1]-start;
+			stopped[t]=Integer.MAX_VALUE;
+			paused[t]=false;
+			for (;pos[t]<n;pos[t]++){
+				final int di=grouped[start+pos[t]], newDummy=dummies[di];
+				if (di>=limit){
+					paused[t]=true;
+					return;
+				}
+				marks[start+pos[t]]=tile.nJournal;
+				if (pointers[newDummy]>0 || !dirty[newDummy]){
+					boxLow[start+pos[t]]=boxHigh[start+pos[t]]=newDummy%M|(newDummy/M)<<16;
+					continue;
+				}
+				if (!tile.process(newDummy)){
+					stopped[t]=di;
+					return;
+				}
+				boxLow[start+pos[t]]=tile.minX|tile.minY<<16;
+				boxHigh[start+pos[t]]=tile.maxX|tile.maxY<<16;
+				if (tile.dummyPointer!=tile.newPeak){
+					tile.tearAble(pos[t], tile.dummyPointer);
+				}
+			}
 		}
 	}
-	
+
+	/*
+	 * Finds the sets A, B and C of a dummy and points A and B at the new
+	 * peak.  A bounded worker only processes dummies whose set A stays 3 or
+	 * more gridpoints inside x0<=x<x1, y0<=y<y1 (or at the grid's edge) and
+	 * journals every change so it can be undone.  Workers sharing the
+	 * stamp array use different stamps: stampOffset+n*stampStep.
+	 */
+	private class Worker{
+		final int []a, b;
+		final int x0, y0, x1, y1, stampOffset, stampStep;
+		final boolean bounded;
+		// merge() counts the changes of a loop with changed and priorPointers
+		boolean trackChanges;
+		int stamps, sizeOfA, sizeOfB, newPeak, dummyPointer, processed;
+		// bounding box of set A
+		int minX, minY, maxX, maxY;
+		// pointer changes as gridpoint, prior; dirty changes as -1-gridpoint, prior
+		int []journal=new int[64];
+		int nJournal;
+		// position of the dummy and its prior pointer
+		int []tearAble=new int[16];
+		int nTearAble;
+
+		Worker(final int []a, final int []b, final int x0, final int y0,
+				final int x1, final int y1, final int stampOffset,
+				final int stampStep, final boolean bounded){
+			this.a=a;
+			this.b=b;
+			this.x0=x0;
+			this.y0=y0;
+			this.x1=x1;
+			this.y1=y1;
+			this.stampOffset=stampOffset;
+			this.stampStep=stampStep;
+			this.bounded=bounded;
+		}
+
+		/**
+		 * @return false if bounded and set A reaches the border
+		 */
+		boolean process(final int newDummy){
+			sizeOfA=makeA(newDummy);
+			if (sizeOfA<0){
+				return false;
+			}
+			processed++;
+			setDirty(newDummy, false);
+			sizeOfB=makeB();
+			final int maxB_gridPoint=b[sizeOfB];
+			final int maxC_gridPoint=maxC(maxB_gridPoint);
+			newPeak=pointers[maxC_gridPoint>=0?maxC_gridPoint:maxB_gridPoint];
+			dummyPointer=pointers[newDummy];
+			for (int i=0;i<sizeOfA;i++){
+				point(a[i], newPeak);
+			}
+			for (int i=0;i<sizeOfB;i++){
+				point(b[i], newPeak);
+			}
+			return true;
+		}
+
+		private int nextStamp(){
+			return stampOffset+(++stamps)*stampStep;
+		}
+
+		private boolean inside(final int v){
+			if (!bounded){
+				return true;
+			}
+			final int x=v%M, y=v/M;
+			return (x0==0 || x>=x0+3) && (x1==M || x<x1-3)
+					&& (y0==0 || y>=y0+3) && (y1==M || y<y1-3);
+		}
+
+		/**
+		 * Set A: newDummy and the unassigned gridpoints connected to it
+		 * whose density plus standard error exceeds newDummy's density
+		 * minus standard error.
+		 *
+		 * @return size of A in a or -1 if it reaches a bounded worker's
+		 * border, the bounding box is then of the part of A found
+		 */
+		int makeA(final int newDummy){
+			minX=maxX=newDummy%M;
+			minY=maxY=newDummy/M;
+			if (!inside(newDummy)){
+				return -1;
+			}
+			final int stamps=nextStamp();
+			int sizeOfA=0;
+			a[sizeOfA++]=newDummy;
+			stamp[newDummy]=stamps;
+			final double test=density[newDummy]-stdErr[newDummy];
+			for (int i=0;i<sizeOfA;i++){
+				final int v=a[i], x=v%M, y=v/M;
+				final boolean all=interior(x, y);
+				for (int k=0;k<DX.length;k++){
+					if (k==CENTER){
+						continue;
+					}
+					final int neighbor=all?v+offsets[k]:neighbor(v, x, y, k);
+					if (neighbor>=0 && stamp[neighbor]!=stamps && pointers[neighbor]==0
+							&& density[neighbor]+stdErr[neighbor]>test){
+						if (!inside(neighbor)){
+							return -1;
+						}
+						stamp[neighbor]=stamps;
+						a[sizeOfA++]=neighbor;
+						final int xN=neighbor%M, yN=neighbor/M;
+						if (xN<minX){
+							minX=xN;
+						} else if (xN>maxX){
+							maxX=xN;
+						}
+						if (yN<minY){
+							minY=yN;
+						} else if (yN>maxY){
+							maxY=yN;
+						}
+					}
+				}
+			}
+			return sizeOfA;
+		}
+
+		/**
+		 * Set B: the gridpoints with a pointer to a dummy state in or next
+		 * to A.
+		 *
+		 * @return size of B in b, the densest of B is stored after it at
+		 * b[size]
+		 */
+		int makeB(){
+			final int stamps=nextStamp();
+			int sizeOfB=0;
+			double maxB_density=-1;
+			int maxB_gridPoint=-1;
+			for (int i=0;i<sizeOfA;i++){
+				final int v=a[i], x=v%M, y=v/M;
+				final boolean all=interior(x, y);
+				for (int k=0;k<DX.length;k++){
+					final int neighbor=all?v+offsets[k]:neighbor(v, x, y, k);
+					if (neighbor>=0 && stamp[neighbor]!=stamps && pointers[neighbor]<-1){
+						stamp[neighbor]=stamps;
+						b[sizeOfB++]=neighbor;
+						if (density[neighbor]>maxB_density){
+							maxB_density=density[neighbor];
+							maxB_gridPoint=neighbor;
+						}
+					}
+				}
+			}
+			b[sizeOfB]=maxB_gridPoint;
+			return sizeOfB;
+		}
+
+		/**
+		 * Set C is not needed, only its gridpoint with a pointer to another
+		 * gridpoint and a density above that of the densest of B.
+		 *
+		 * @return that gridpoint or -1
+		 */
+		int maxC(final int maxB_gridPoint){
+			double maxC_density=density[maxB_gridPoint];
+			int maxC_gridPoint=-1;
+			final int x=maxB_gridPoint%M, y=maxB_gridPoint/M;
+			final boolean all=interior(x, y);
+			for (int k=0;k<DX.length;k++){
+				if (k==CENTER){
+					continue;
+				}
+				final int neighbor=all?maxB_gridPoint+offsets[k]
+						:neighbor(maxB_gridPoint, x, y, k);
+				if (neighbor>=0 && pointers[neighbor]>0 && density[neighbor]>maxC_density){
+					maxC_gridPoint=neighbor;
+					maxC_density=density[neighbor];
+				}
+			}
+			return maxC_gridPoint;
+		}
+
+		/**
+		 * Points gridpoint v at newPeak and, if that is a change, marks the
+		 * gridpoints within 2 of v dirty.
+		 */
+		private void point(final int v, final int newPeak){
+			if (pointers[v]==newPeak){
+				return;
+			}
+			if (bounded){
+				journal(v, pointers[v]);
+			} else if (trackChanges && changedInLoop[v]!=outerLoop){
+				changedInLoop[v]=outerLoop;
+				priorPointers[v]=pointers[v];
+				changed[nChanged++]=v;
+			}
+			pointers[v]=newPeak;
+			final int x=v%M, y=v/M;
+			for (int yNeigh=Math.max(0, y-2);yNeigh<=Math.min(M-1, y+2);yNeigh++){
+				for (int xNeigh=Math.max(0, x-2);xNeigh<=Math.min(M-1, x+2);xNeigh++){
+					setDirty(vectorIdx(xNeigh, yNeigh), true);
+				}
+			}
+		}
+
+		private void setDirty(final int v, final boolean value){
+			if (dirty[v]!=value){
+				if (bounded){
+					journal(-1-v, dirty[v]?1:0);
+				}
+				dirty[v]=value;
+			}
+		}
+
+		private void journal(final int entry, final int prior){
+			if (nJournal+2>journal.length){
+				journal=java.util.Arrays.copyOf(journal, journal.length*2);
+			}
+			journal[nJournal++]=entry;
+			journal[nJournal++]=prior;
+		}
+
+		void tearAble(final int position, final int dummyPointer){
+			if (2*nTearAble+2>tearAble.length){
+				tearAble=java.util.Arrays.copyOf(tearAble, tearAble.length*2);
+			}
+			tearAble[2*nTearAble]=position;
+			tearAble[2*nTearAble+1]=dummyPointer;
+			nTearAble++;
+		}
+
+		/**
+		 * Undoes the journal back to mark and forgets the possible tears of
+		 * dummies from position on.
+		 */
+		void undo(final int mark, final int position){
+			while (nJournal>mark){
+				final int prior=journal[--nJournal], entry=journal[--nJournal];
+				if (entry>=0){
+					pointers[entry]=prior;
+				} else {
+					dirty[-1-entry]=prior==1;
+				}
+			}
+			while (nTearAble>0 && tearAble[2*nTearAble-2]>=position){
+				nTearAble--;
+			}
+		}
+	}
+
+	/**
+	 * Sorts values[0,n) and moves the unique values to the front.
+	 *
+	 * @return the number of unique values
+	 */
+	static int SortUnique(final int []values, final int n){
+		java.util.Arrays.sort(values, 0, n);
+		int unique=0;
+		for (int i=0;i<n;i++){
+			if (i==0 || values[i]!=values[unique-1]){
+				values[unique++]=values[i];
+			}
+		}
+		return unique;
+	}
+
+	/**
+	 * Stable bottom up merge sort of idxs[0,n) by descending keys, equal
+	 * keys keep their order as Collections.sort does in the original merge.
+	 */
+	static void sortDescending(int []idxs, final int n, double []keys, int []idxBuf,
+			double []keyBuf){
+		final int []original=idxs;
+		for (int width=1;width<n;width*=2){
+			for (int lo=0;lo<n;lo+=2*width){
+				final int mid=Math.min(lo+width, n), hi=Math.min(lo+2*width, n);
+				int i=lo, j=mid, out=lo;
+				while (i<mid && j<hi){
+					if (keys[j]>keys[i]){
+						keyBuf[out]=keys[j];
+						idxBuf[out++]=idxs[j++];
+					} else {
+						keyBuf[out]=keys[i];
+						idxBuf[out++]=idxs[i++];
+					}
+				}
+				for (;i<mid;i++,out++){
+					keyBuf[out]=keys[i];
+					idxBuf[out]=idxs[i];
+				}
+				for (;j<hi;j++,out++){
+					keyBuf[out]=keys[j];
+					idxBuf[out]=idxs[j];
+				}
+			}
+			final int []swapIdxs=idxs;
+			idxs=idxBuf;
+			idxBuf=swapIdxs;
+			final double []swapKeys=keys;
+			keys=keyBuf;
+			keyBuf=swapKeys;
+		}
+		if (idxs!=original){
+			System.arraycopy(idxs, 0, original, 0, n);
+		}
+	}
+
+	/**
+	 * Fragments of a torn cluster with fewer gridpoints than this become
+	 * background (-1) and take no fragment id.  0 keeps every fragment as
+	 * fixClusterTear.m does.
+	 */
+	public int tooSmall=0;
+	public int[][] tears;
+	/**
+	 * Gives each connected fragment of a possible cluster tear its own id:
+	 * id-MM, id-2*MM ... and lists the ids torn into more than 1 fragment
+	 * with their fragment count in tears.
+	 *
+	 * One raster scan labels every torn cluster at once: the first
+	 * gridpoint met of a fragment seeds a flood fill with the next id of
+	 * its cluster.  Fragments of a cluster are met in the order of their
+	 * first gridpoint so the ids are those of the original rescans
+	 * (DbmCheck.FixClusterTearByRescans).
+	 */
+	public void fixClusterTear(){
+		startListening();
+		final long began=now();
+		allocate();
+		final int []ids=this.possibleClusterTears;
+		final int N=ids.length;
+		// next fragment id count of each possible tear by its path end
+		final int []idCnt=changedInLoop;
+		java.util.Arrays.fill(idCnt, 0);
+		for (int i=0;i<N;i++){
+			final int pathEnd=-ids[i]-1;
+			if (pathEnd>0 && pathEnd<=MM){
+				idCnt[pathEnd-1]=1;
+			}
+		}
+		for (int p=0;p<MM;p++){
+			final int id=pointers[p];
+			if (id>=-1 || id<-1-MM || idCnt[-id-2]==0){
+				continue;
+			}
+			final int size=fill(p, id, id-(idCnt[-id-2]*MM));
+			if (size<tooSmall){
+				for (int i=0;i<size;i++){
+					pointers[a[i]]=-1;
+				}
+			} else {
+				idCnt[-id-2]++;
+			}
+		}
+		final int [][]torn=new int[N][];
+		int nTorn=0;
+		for (int i=0;i<N;i++){
+			final int pathEnd=-ids[i]-1;
+			if (pathEnd>0 && pathEnd<=MM && idCnt[pathEnd-1]>0){
+				if (idCnt[pathEnd-1]>2){
+					torn[nTorn++]=new int[]{ids[i], idCnt[pathEnd-1]-1};
+				}
+				idCnt[pathEnd-1]=0;
+			}
+		}
+		tears=java.util.Arrays.copyOf(torn, nTorn);
+		if (active!=null){
+			active.tears(N, nTorn);
+		}
+		lap(PHASE_FIX_TEARS, began);
+	}
+
+	/**
+	 * Flood fills the 8-connected gridpoints with pointers equal to id
+	 * starting at seed with newId.
+	 *
+	 * @return size of the fragment
+	 */
+	private int fill(final int seed, final int id, final int newId){
+		int size=0;
+		a[size++]=seed;
+		pointers[seed]=newId;
+		for (int i=0;i<size;i++){
+			final int v=a[i], x=v%M, y=v/M;
+			final boolean all=interior(x, y);
+			for (int k=0;k<DX.length;k++){
+				if (k==CENTER){
+					continue;
+				}
+				final int neighbor=all?v+offsets[k]:neighbor(v, x, y, k);
+				if (neighbor>=0 && pointers[neighbor]==id){
+					pointers[neighbor]=newId;
+					a[size++]=neighbor;
+				}
+			}
+		}
+		return size;
+	}
+
 	private int checkSum(){
 		int sum=0;
 		for (int i=0;i<pointers.length;i++){
@@ -354,18 +1187,17 @@ public class Dbm {
 		 return r;
 	}
 	
-	private static double []avgDistance(final List<Integer>x1, final List<Integer>y1,
-			final List<Integer>x2, final List<Integer>y2){
-		 final int N1=x1.size(), N2=x2.size();
-		 double[]r=new double[N1];
+	private static double []avgDistance(final int []x1, final int []y1, final int N1,
+			final int []x2, final int []y2, final int N2){
+		 final double[]r=new double[N1];
 		 if (N2==0){
 			 return r;
 		 }
 		 for (int i=0;i<N1;i++){
 			 double rc=0;
 			 for (int j=0;j<N2;j++){
-				 final int left=x1.get(i) - x2.get(j),
-						 right=y1.get(i) - y2.get(j);
+				 final int left=x1[i] - x2[j],
+						 right=y1[i] - y2[j];
 				 
 				 rc+=Math.sqrt((left*left)+(right*right));				 
 			 }
@@ -375,61 +1207,65 @@ public class Dbm {
 		 return r;
 	}
 
+	/**
+	 * The 1 based grid x and y MATLAB uses of the gridpoints with (in) or
+	 * without (out) the pointer cluster, out skips unassigned gridpoints.
+	 */
+	private static class Members{
+		final int []x1, y1, x2, y2, idx1, idx2;
+		int n1, n2;
+
+		Members(final int cluster, final int M, final int []pointers, final boolean out){
+			int in=0, other=0;
+			for (int i=0;i<pointers.length;i++){
+				final int p=pointers[i];
+				if (p==cluster){
+					in++;
+				} else if (out && p!=0){
+					other++;
+				}
+			}
+			x1=new int[in];
+			y1=new int[in];
+			idx1=new int[in];
+			x2=new int[other];
+			y2=new int[other];
+			idx2=new int[other];
+			for (int i=0;i<pointers.length;i++){
+				final int p=pointers[i];
+				if (p==cluster){
+					x1[n1]=(i+1)%M;
+					y1[n1]=(i/M)+1;
+					idx1[n1++]=i;
+				} else if (out && p!=0){
+					x2[n2]=(i+1)%M;
+					y2[n2]=(i/M)+1;
+					idx2[n2++]=i;
+				}
+			}
+		}
+	}
+
 	public static double []AvgSelfDistance(final int cluster, final int M,
 			final int []pointers){
-		 final ArrayList<Integer>lx=new ArrayList<>(), ly=new ArrayList<>();
-		 
-		 for (int i=0;i<pointers.length;i++){
-			 final int p=pointers[i];
-			 if (p == cluster){
-				 lx.add((i+1)%M);
-				 ly.add((i/M)+1);
-			 }
-		 }
-		 return avgDistance(lx, ly, lx, ly);
+		 final Members m=new Members(cluster, M, pointers, false);
+		 return avgDistance(m.x1, m.y1, m.n1, m.x1, m.y1, m.n1);
 	}
 
 	public static double []AvgDistance(final int cluster, final int M,
 			final int []pointers){
-		 final ArrayList<Integer>lx2=new ArrayList<>(), ly2=new ArrayList<>();
-		 final ArrayList<Integer>lx1=new ArrayList<>(), ly1=new ArrayList<>();
-		 
-		 for (int i=0;i<pointers.length;i++){
-			 final int p=pointers[i];
-			 if (p != cluster){
-				 if (p != 0){
-					 lx2.add((i+1)%M);
-					 ly2.add((i/M)+1);
-				 }
-			 }else{
-				 lx1.add((i+1)%M);
-				 ly1.add((i/M)+1);
-			 }
-		 }
-		 return avgDistance(lx1, ly1, lx2, ly2);
+		 final Members m=new Members(cluster, M, pointers, true);
+		 return avgDistance(m.x1, m.y1, m.n1, m.x2, m.y2, m.n2);
 	}
 	
 	public static double []SilhouetteCoefficient(final int []clusters, final int M,
 			final int []pointers){
-		double []r=new double[clusters.length];
-		final int N=clusters.length;
-		for (int i=0;i<N;i++){
-			final double[]aAvg=AvgSelfDistance(clusters[i], M, pointers);
-			final double[]bAvg=AvgDistance(clusters[i], M, pointers);
-			double avg=0;
-			for (int j=0;j<aAvg.length;j++){
-				avg += 
-						(bAvg[j]-aAvg[j])/Math.max(aAvg[j], bAvg[j]);
-				
-			}
-			r[i]=avg/aAvg.length;
-		}
+		final double []r=new GridDistances(M, pointers)
+				.silhouetteCoefficients(clusters);
 		clusters[0]=999;
 		return r;
 	}
 
-
-
 	public static double weightDistance(int [][]xy1, int [][]xy2, final double []w1, final double[] w2 ){
 		 double r=0;
 		 for (int i=0;i<xy1.length;i++){
@@ -446,74 +1282,48 @@ public class Dbm {
 		 return r;
 	}
 	public static double weightDistance2(int [][]xy1, int [][]xy2, final double []w1, final double[] w2 ){
-		 double r=0;
-		 
-		 final ArrayList<Double>lw1=new ArrayList<>(), lw2=new ArrayList<>();
-		 final ArrayList<Integer>lx1=new ArrayList<>(), ly1=new ArrayList<>();
-		 for (int i=0;i<xy1.length;i++){
-			 lw1.add(w1[i]);
-			 lx1.add(xy1[i][0]);
-			 ly1.add(xy1[i][1]);
+		 final int N1=xy1.length, N2=xy2.length;
+		 final int []x1=new int[N1], y1=new int[N1], x2=new int[N2], y2=new int[N2];
+		 for (int i=0;i<N1;i++){
+			 x1[i]=xy1[i][0];
+			 y1[i]=xy1[i][1];
 		 }
-		 final ArrayList<Integer>lx2=new ArrayList<>(), ly2=new ArrayList<>();
-		 for (int i=0;i<xy2.length;i++){
-			 lw2.add(w2[i]);
-			 lx2.add(xy2[i][0]);
-			 ly2.add(xy2[i][1]);
+		 for (int i=0;i<N2;i++){
+			 x2[i]=xy2[i][0];
+			 y2[i]=xy2[i][1];
 		 }
-		 return weightDistance(lx1, ly1, lx2, ly2, lw1, lw2);
+		 return weightDistance(x1, y1, N1, x2, y2, N2, w1, w2);
 		 
 	}
 
 	public static double WeightDistance(final int cluster, final int M,
 			final int []pointers, final double []weight){
-		 final ArrayList<Integer>lx2=new ArrayList<>(), ly2=new ArrayList<>();
-		 final ArrayList<Double>lw1=new ArrayList<>(), lw2=new ArrayList<>();
-		 final ArrayList<Integer>lx1=new ArrayList<>(), ly1=new ArrayList<>();
-		 
-		 for (int i=0;i<pointers.length;i++){
-			 final int p=pointers[i];
-			 if (p != cluster){
-				 if (p != 0){
-					 lx2.add((i+1)%M);
-					 ly2.add((i/M)+1);
-					 lw2.add(weight[i]);
-				 }
-			 }else{
-				 lx1.add((i+1)%M);
-				 ly1.add((i/M)+1);
-				 lw1.add(weight[i]);
-			 }
-		 }
-		 return weightDistance(lx1, ly1, lx2, ly2, lw1, lw2);
+		return new GridDistances(M, pointers).weightDistances(
+				new int[]{cluster}, weight)[0];
 	}
-	
+
 	public static double []WeightDistances(final int []clusters, final int M,
 			final int []pointers, final double []weight){
-		double []r=new double[clusters.length];
 		final int N=clusters.length;
-		for (int i=0;i<N;i++){
-			r[i]=WeightDistance(clusters[i], M, pointers, weight);
-			if (i==0 && N==2){
-				r[1]=r[0];
-				break;
-			}
+		if (N==2){
+			// the distances between 2 clusters are the same both ways
+			final double r=WeightDistance(clusters[0], M, pointers, weight);
+			return new double[]{r, r};
 		}
-		return r;
+		return new GridDistances(M, pointers).weightDistances(clusters, weight);
 	}
 
-	private static double weightDistance(final List<Integer>x1, final List<Integer>y1,
-			final List<Integer>x2, final List<Integer>y2, 
-			final List<Double>w1, final List<Double> w2 ){
+	private static double weightDistance(final int []x1, final int []y1, final int N1,
+			final int []x2, final int []y2, final int N2, 
+			final double []w1, final double []w2 ){
 		 double r=0;
-		 final int N1=x1.size(), N2=x2.size();
 		 for (int i=0;i<N1;i++){
 			 for (int j=0;j<N2;j++){
-				 final int left=x1.get(i) - x2.get(j),
-						 right=y1.get(i) - y2.get(j);
+				 final int left=x1[i] - x2[j],
+						 right=y1[i] - y2[j];
 				 
 				 final double d=Math.sqrt((left*left)+(right*right));
-				 final double rc=d*w1.get(i)+d*w2.get(j);
+				 final double rc=d*w1[i]+d*w2[j];
 				 r+=rc;
 			 }
 		 }
@@ -543,5 +1353,4 @@ public class Dbm {
 		}
 		return a;
 	}
-
 }
@@ -0,0 +1,738 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.*;
+
+/*
+ * Checks and benchmarks Dbm against its original merging and tear fixing
+ * with boxed collections, kept here as the reference implementations so
+ * that Dbm.java stays an isolated open source file.
+ */
+public class DbmCheck {
+	public static void main(final String []args){
+		Test.go();
+		Benchmark.go(args);
+	}
+
+	/*
+	 * Checks on merged grids of 64 that what replaced a pairwise or boxed
+	 * original gives its results.
+	 */
+	private static class Test{
+		static void go(){
+			final int M=64;
+			int bad=0, clusters=0;
+			for (int g=0;g<12;g++){
+				final Object []made=Benchmark.make(M, 100+g, 3+g%7);
+				final Dbm dbm=new Dbm(M);
+				dbm.pointers=((int[])made[0]).clone();
+				dbm.density=(double[])made[1];
+				dbm.stdErr=(double[])made[2];
+				dbm.reportChangeCount=false;
+				dbm.merge();
+				dbm.fixClusterTear();
+				final int []labels=Labels(dbm.pointers);
+				int k=0;
+				for (final int label:labels){
+					k=Math.max(k, label);
+				}
+				clusters+=k;
+				bad+=distances(M, labels, new Random(g));
+			}
+			System.out.println("Distances of "+clusters+" clusters: "+bad+" differ");
+			mergeAgain(M);
+			pyramid(2*M);
+		}
+
+		/**
+		 * Checks that DbmPyramid's finest level is Dbm's merge and tear
+		 * fixing of it and counts the clusters with a parent.
+		 */
+		static void pyramid(final int M){
+			int bad=0, clusters=0, withParent=0;
+			for (int g=0;g<6;g++){
+				final Object []made=Benchmark.make(M, 300+g, 3+g%7);
+				final int []pointers=(int[])made[0];
+				final Dbm dbm=new Dbm(M);
+				dbm.pointers=pointers.clone();
+				dbm.density=(double[])made[1];
+				dbm.stdErr=(double[])made[2];
+				dbm.reportChangeCount=false;
+				dbm.merge();
+				dbm.fixClusterTear();
+				final DbmPyramid pyramid=new DbmPyramid(M, pointers, dbm.density,
+						dbm.stdErr, 0, 3);
+				pyramid.merge(null);
+				final int finest=pyramid.getLevels()-1;
+				if (!samePartition(Labels(dbm.pointers), pyramid.getLabels(finest))){
+					System.out.println("Pyramid differs from Dbm for grid "+g);
+					bad++;
+				}
+				for (int level=1;level<=finest;level++){
+					for (final int parent:pyramid.getParents(level)){
+						clusters++;
+						if (parent>0){
+							withParent++;
+						}
+					}
+				}
+			}
+			System.out.println("Pyramids of 6 grids: "+bad+" differ, "+withParent
+					+" of "+clusters+" clusters have a parent");
+		}
+
+		/**
+		 * @return true if labels a and b (0 for none) group the gridpoints
+		 * the same way
+		 */
+		static boolean samePartition(final int []a, final int []b){
+			final Map<Integer, Integer>ab=new HashMap<>(), ba=new HashMap<>();
+			for (int v=0;v<a.length;v++){
+				if ((a[v]==0)!=(b[v]==0)){
+					return false;
+				}
+				final Integer toB=ab.putIfAbsent(a[v], b[v]), toA=ba.putIfAbsent(b[v], a[v]);
+				if ((toB!=null && toB!=b[v]) || (toA!=null && toA!=a[v])){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Merges, fixes tears, changes the stdErr of a few gridpoints or
+		 * adds a bump to the density (and so to the starting pointers) and
+		 * compares merge(delta, newPointers) with a fresh merge().
+		 */
+		static void mergeAgain(final int M){
+			final int MM=M*M;
+			final DbmMetrics metrics=new DbmMetrics();
+			int bad=0, n=0;
+			for (int g=0;g<24;g++){
+				final Object []made=Benchmark.make(M, 200+g, 3+g%7);
+				final Random r=new Random(g);
+				final Dbm dbm=new Dbm(M);
+				dbm.pointers=((int[])made[0]).clone();
+				dbm.density=((double[])made[1]).clone();
+				dbm.stdErr=((double[])made[2]).clone();
+				dbm.reportChangeCount=false;
+				dbm.merge();
+				for (int change=0;change<3;change++){
+					dbm.fixClusterTear();
+					final double []f=dbm.density.clone(), se=dbm.stdErr.clone();
+					final int []delta;
+					if (change==1){
+						delta=new int[1+r.nextInt(4)];
+						for (int i=0;i<delta.length;i++){
+							delta[i]=r.nextInt(MM);
+							se[delta[i]]*=.5+r.nextDouble();
+						}
+					} else {
+						final double x0=r.nextDouble()*M, y0=r.nextDouble()*M;
+						final int []bump=new int[MM];
+						int size=0;
+						for (int v=0;v<MM;v++){
+							final double dx=v%M-x0, dy=v/M-y0;
+							if (dx*dx+dy*dy<9){
+								f[v]+=.3*Math.exp(-(dx*dx+dy*dy)/4);
+								bump[size++]=v;
+							}
+						}
+						delta=java.util.Arrays.copyOf(bump, size);
+					}
+					final int []starting=Benchmark.pointers(M, f);
+					dbm.density=f;
+					dbm.stdErr=se;
+					dbm.listener=metrics;
+					dbm.merge(delta, change==1?null:starting);
+					dbm.listener=null;
+					final Dbm fresh=new Dbm(M);
+					fresh.pointers=starting;
+					fresh.density=f;
+					fresh.stdErr=se;
+					fresh.reportChangeCount=false;
+					fresh.merge();
+					n++;
+					if (!java.util.Arrays.equals(fresh.pointers, dbm.pointers)
+							|| !java.util.Arrays.equals(fresh.possibleClusterTears,
+									dbm.possibleClusterTears)){
+						System.out.println("Merge again differs for grid "+g
+								+", change "+change);
+						bad++;
+					}
+				}
+			}
+			System.out.println(String.format("Merge again after %d changes: %d differ,"
+					+ " %.1f%% of the grids redone", n, bad, 100*metrics.getRedoneFraction()));
+		}
+
+		/**
+		 * Compares SilhouetteCoefficient and WeightDistances with the
+		 * pairwise originals.
+		 *
+		 * @return how many clusters differ
+		 */
+		static int distances(final int M, final int []labels, final Random r){
+			int k=0;
+			for (final int label:labels){
+				k=Math.max(k, label);
+			}
+			final int []clusters=new int[k];
+			for (int i=0;i<k;i++){
+				clusters[i]=i+1;
+			}
+			final double []weight=new double[labels.length];
+			for (int i=0;i<weight.length;i++){
+				weight[i]=r.nextDouble();
+			}
+			final double []silhouettes=Dbm.SilhouetteCoefficient(clusters.clone(), M, labels),
+					byPairs=SilhouetteCoefficientByPairs(clusters.clone(), M, labels),
+					weightDistances=Dbm.WeightDistances(clusters, M, labels, weight);
+			int bad=0;
+			for (int i=0;i<k;i++){
+				final double weightDistance=WeightDistanceByPairs(clusters[i], M, labels, weight);
+				if (Math.abs(silhouettes[i]-byPairs[i])>1e-9
+						|| Math.abs(weightDistances[i]-weightDistance)>1e-9*Math.abs(weightDistance)){
+					System.out.println("Cluster "+clusters[i]+" silhouette "+silhouettes[i]
+							+" vs "+byPairs[i]+", weight distance "+weightDistances[i]
+							+" vs "+weightDistance);
+					bad++;
+				}
+			}
+			return bad;
+		}
+	}
+
+	/**
+	 * @return the clusters of merged pointers labeled 1 to k in the order
+	 * of their first gridpoint and 0 for background
+	 */
+	static int []Labels(final int []pointers){
+		final int []labels=new int[pointers.length];
+		final Map<Integer, Integer>ids=new HashMap<>();
+		for (int v=0;v<pointers.length;v++){
+			int at=v;
+			while (pointers[at]>0){
+				at=pointers[at]-1;
+			}
+			if (pointers[at]<-1){
+				Integer id=ids.get(pointers[at]);
+				if (id==null){
+					id=ids.size()+1;
+					ids.put(pointers[at], id);
+				}
+				labels[v]=id;
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * The pairwise Dbm.SilhouetteCoefficient that GridDistances replaced.
+	 */
+	static double []SilhouetteCoefficientByPairs(final int []clusters, final int M,
+			final int []pointers){
+		double []r=new double[clusters.length];
+		final int N=clusters.length;
+		for (int i=0;i<N;i++){
+			final double[]aAvg=Dbm.AvgSelfDistance(clusters[i], M, pointers);
+			final double[]bAvg=Dbm.AvgDistance(clusters[i], M, pointers);
+			double avg=0;
+			for (int j=0;j<aAvg.length;j++){
+				avg += 
+						(bAvg[j]-aAvg[j])/Math.max(aAvg[j], bAvg[j]);
+				
+			}
+			r[i]=avg/aAvg.length;
+		}
+		return r;
+	}
+
+	/**
+	 * The pairwise Dbm.WeightDistance that GridDistances replaced.
+	 */
+	static double WeightDistanceByPairs(final int cluster, final int M,
+			final int []pointers, final double []weight){
+		int in=0, other=0;
+		for (final int p:pointers){
+			if (p==cluster){
+				in++;
+			} else if (p!=0){
+				other++;
+			}
+		}
+		final int [][]xy1=new int[in][], xy2=new int[other][];
+		final double []w1=new double[in], w2=new double[other];
+		in=0;
+		other=0;
+		for (int i=0;i<pointers.length;i++){
+			final int []xy={(i+1)%M, (i/M)+1};
+			if (pointers[i]==cluster){
+				w1[in]=weight[i];
+				xy1[in++]=xy;
+			} else if (pointers[i]!=0){
+				w2[other]=weight[i];
+				xy2[other++]=xy;
+			}
+		}
+		return Dbm.weightDistance2(xy1, xy2, w1, w2);
+	}
+
+	/*
+	 * Times merge() and fixClusterTear() against MergeByFullPasses() and
+	 * FixClusterTearByRescans() on grids of Gaussian peaks pointed uphill
+	 * like Density.m does, checking both give the same pointers.  Arguments
+	 * are M (default 256), grids (default 8) and repetitions (default 10).
+	 */
+	private static class Benchmark{
+		static void go(final String []args){
+			final int M=args.length>0?Integer.parseInt(args[0]):256;
+			final int grids=args.length>1?Integer.parseInt(args[1]):8;
+			final int reps=args.length>2?Integer.parseInt(args[2]):10;
+			final Object [][]made=new Object[grids][];
+			for (int g=0;g<grids;g++){
+				made[g]=make(M, g+1, 3+g%7);
+			}
+			for (int rep=0;rep<reps;rep++){
+				final long []legacy=run(M, made, true), current=run(M, made, false);
+				System.out.println("Rep #"+(rep+1)+" legacy: "+report(legacy)
+						+"; primitive: "+report(current));
+			}
+		}
+
+		static String report(final long []r){
+			return (r[0]/1000000)+" ms, "+(r[1]/1024)+" KB allocated, "
+					+r[2]+" GCs taking "+r[3]+" ms";
+		}
+
+		/**
+		 * @return nanoseconds, bytes allocated, GC count and GC ms
+		 */
+		static long []run(final int M, final Object [][]made, final boolean legacy){
+			final java.lang.management.ThreadMXBean threads=
+					java.lang.management.ManagementFactory.getThreadMXBean();
+			final long allocated=allocated(threads);
+			final long []gc=gc();
+			long nanos=0;
+			for (int g=0;g<made.length;g++){
+				final Dbm dbm=new Dbm(M);
+				dbm.pointers=((int[])made[g][0]).clone();
+				dbm.density=(double[])made[g][1];
+				dbm.stdErr=(double[])made[g][2];
+				dbm.reportChangeCount=false;
+				final long start=System.nanoTime();
+				if (legacy){
+					MergeByFullPasses(dbm, M);
+					FixClusterTearByRescans(dbm, M);
+				} else {
+					dbm.merge();
+					dbm.fixClusterTear();
+				}
+				nanos+=System.nanoTime()-start;
+				if (legacy){
+					made[g][3]=dbm.pointers;
+				} else if (!java.util.Arrays.equals((int[])made[g][3], dbm.pointers)){
+					System.out.println("Grid #"+(g+1)+" differs!");
+				}
+			}
+			final long []gcAfter=gc();
+			return new long[]{nanos, allocated(threads)-allocated,
+					gcAfter[0]-gc[0], gcAfter[1]-gc[1]};
+		}
+
+		static long allocated(final java.lang.management.ThreadMXBean threads){
+			if (threads instanceof com.sun.management.ThreadMXBean){
+				return ((com.sun.management.ThreadMXBean)threads)
+						.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+			return 0;
+		}
+
+		static long []gc(){
+			final long []r=new long[2];
+			for (final java.lang.management.GarbageCollectorMXBean gc:
+					java.lang.management.ManagementFactory.getGarbageCollectorMXBeans()){
+				r[0]+=Math.max(0, gc.getCollectionCount());
+				r[1]+=Math.max(0, gc.getCollectionTime());
+			}
+			return r;
+		}
+
+		/**
+		 * @return pointers, density, stdErr and a slot for the legacy result
+		 */
+		static Object []make(final int M, final long seed, final int peaks){
+			final Random r=new Random(seed);
+			final int MM=M*M;
+			final double []f=new double[MM], se=new double[MM];
+			final double [][]peak=new double[peaks][];
+			for (int k=0;k<peaks;k++){
+				peak[k]=new double[]{r.nextDouble()*M, r.nextDouble()*M,
+						2+r.nextDouble()*M/8, .5+r.nextDouble()};
+			}
+			for (int i=0;i<MM;i++){
+				final int x=i%M, y=i/M;
+				double v=0.02*r.nextDouble();
+				for (final double []p:peak){
+					final double dx=x-p[0], dy=y-p[1];
+					v+=p[3]*Math.exp(-(dx*dx+dy*dy)/(2*p[2]*p[2]));
+				}
+				f[i]=v;
+				se[i]=0.01+0.02*r.nextDouble();
+			}
+			return new Object[]{pointers(M, f), f, se, null};
+		}
+
+		/**
+		 * @return starting pointers uphill to the densest neighbor, background
+		 * below .05 and dummy states where paths end
+		 */
+		static int []pointers(final int M, final double []f){
+			final int MM=M*M;
+			final int []pointers=new int[MM];
+			final boolean []pointedTo=new boolean[MM];
+			for (int i=0;i<MM;i++){
+				if (f[i]<0.05){
+					pointers[i]=-1;
+					continue;
+				}
+				final int x=i%M, y=i/M;
+				double max=f[i]+0.02;
+				for (int k=0;k<Dbm.DX.length;k++){
+					final int xN=x+Dbm.DX[k], yN=y+Dbm.DY[k];
+					if (k!=Dbm.CENTER && xN>=0 && yN>=0 && xN<M && yN<M && f[yN*M+xN]>max){
+						max=f[yN*M+xN];
+						pointers[i]=yN*M+xN+1;
+					}
+				}
+				if (pointers[i]>0){
+					pointedTo[pointers[i]-1]=true;
+				}
+			}
+			for (int i=0;i<MM;i++){
+				if (pointers[i]==0 && pointedTo[i]){
+					pointers[i]=-1-(i+1);
+				}
+			}
+			return pointers;
+		}
+	}
+
+	/**
+	 * The original Dbm.merge(): every loop sorts and reprocesses every
+	 * dummy and compares the whole grid to the prior loop's.
+	 */
+	static void MergeByFullPasses(final Dbm dbm, final int M){
+		final int MM=M*M;
+		final int []pointers=dbm.pointers;
+		final double []density=dbm.density, stdErr=dbm.stdErr;
+		final LinkedHashSet<Integer>tearAbleSet=new LinkedHashSet<Integer>();
+		dbm.possibleClusterTears=null;
+		boolean tryAgain=true;
+		int outerLoop=0;
+		int changes=0;
+		for (;tryAgain;){
+			outerLoop++;
+			if (dbm.reportChangeCount){
+				if (changes>0){
+					System.out.println(changes+" changes require "+ "Loop #"+outerLoop);
+				}
+			}
+			changes=0;
+			int []priorPointers=new int[pointers.length];
+			System.arraycopy(pointers, 0, priorPointers, 0, pointers.length);
+			final ArrayList<Integer>dummies=new ArrayList<Integer>();
+			for (int i=0;i<MM;i++){
+				if (pointers[i]<-1){
+					dummies.add(i);
+				}
+			}
+			java.util.Collections.sort(dummies, new Comparator<Integer>() {
+
+				@Override
+				public int compare(final Integer o1, final Integer o2) {
+					// TODO Auto-generated method stub
+					final double l=density[o1], r=density[o2];
+					if (l<r){
+						return 1;
+					} else if (l>r){
+						return -1;
+					}
+					return 0;
+				}
+			});
+			final Iterator<Integer>it=dummies.iterator();
+			int []debug=null;
+			if (dbm.debugging>0) {debug=Dbm.ToInt(dummies);}
+			int innerLoop=0;
+			while(it.hasNext()){
+				innerLoop++;
+//				if (dbm.debugging>0 && innerLoop==139 && outerLoop==1){
+//					int i1=dummies.get(138), i2=dummies.get(139);
+//					double d1=density[i1], d2=density[i2];
+//					boolean ll=d1>d2;
+//					boolean rr=d1<d2;
+//					System.out.println("ok-->"+i1+", "+ i2 +", "+d1+", "+d2+", "+ll+", "+rr);
+//				}
+				// make A eh
+				List<Integer>A=new ArrayList<>();
+				final int newDummy=it.next();
+				if (pointers[newDummy]>0){
+					// this happens when before i this gridpoint became part of set B
+					// and then got affected by set a neighbor in C
+					continue;
+				}
+				A.add(newDummy);
+				LinkedHashSet<Integer>lhs=new LinkedHashSet<>();
+				lhs.add(newDummy);
+				final double test=density[newDummy]-stdErr[newDummy];
+				int sizeOfA = 0;                    
+                for (int k=0;k<MM;k++){
+                    final int newSizeOfA=A.size();
+                    if (newSizeOfA>sizeOfA){
+                    	if (k==newSizeOfA-1){ // do all of the original A gridpoints
+                    		sizeOfA=k+1;
+                    	}
+                    	final Dbm.Xy xy=dbm.new Xy(A.get(k));
+            			for (int xI=-1;xI<2;xI++){
+            				int xNeigh=xy.x+xI;
+            				if (xNeigh<0 || xNeigh>=M){
+            					continue;
+            				}
+            				for (int yI=-1;yI<2;yI++){
+            					int yNeigh=xy.y+yI;
+            					if ((xI==0 && yI==0) || yNeigh<0 || yNeigh>=M){
+                					continue;
+                				}
+            					final int neighbor=dbm.vectorIdx(xNeigh, yNeigh);
+            					if (pointers[neighbor]==0 && density[neighbor]+stdErr[neighbor]>test){
+            						if (!lhs.contains(neighbor)){
+            							A.add(neighbor);
+            							lhs.add(neighbor);
+            						}
+            					}
+            				}
+            			}
+            			
+                    } else {
+                    	break;
+                    }
+                }
+                
+                // Make B and tearAble
+                
+                /*
+                 * Denote by B the set containing m(i) as well as the indices of grid points which 
+                 * satisfy the following two conditions. The grid point possesses a pointer to a 
+                 * cluster state, and the grid point has some yp, 
+                 * p isSubsetOf A as neighbor. 
+                 * 
+                 * Define q by f(yq)=maxr isSubsetOf B f(yr), breaking ties arbitrarily.
+                 */
+    			final LinkedHashSet<Integer>B=new LinkedHashSet<>(), tearAble=new LinkedHashSet<>();
+    			double maxB_density=-1;
+    			int maxB_gridPoint=-1;
+    			final int N=A.size();
+    			for (int i=0;i<N;i++){
+    				final int v=A.get(i);
+    				if (pointers[v]<-1){
+    					tearAble.add(pointers[v]);
+    				}
+    				
+                	final Dbm.Xy xy=dbm.new Xy(v);
+        			for (int xI=-1;xI<2;xI++){
+        				int xNeigh=xy.x+xI;
+        				if (xNeigh<0 || xNeigh>=M){
+        					continue;
+        				}
+        				for (int yI=-1;yI<2;yI++){
+        					int yNeigh=xy.y+yI;
+        					if ( yNeigh<0 || yNeigh>=M){
+            					continue;
+            				}
+        					final int neighbor=dbm.vectorIdx(xNeigh, yNeigh);
+        					if (pointers[neighbor]<-1){
+        						if (!B.contains(neighbor)){
+        							B.add(neighbor);
+        							if (density[neighbor]>maxB_density){
+        								maxB_density=density[neighbor];
+        								maxB_gridPoint=neighbor;
+        							}
+        						}
+        					}
+        				}
+        			}
+    			}
+    			if (dbm.debugging>0) {debug=Dbm.ToInt(B);java.util.Arrays.sort(debug);}
+    			assert(maxB_gridPoint>=0);
+    			// making set C logic, C set not needed here only max density of C 
+    			Dbm.Xy xy=dbm.new Xy(maxB_gridPoint);
+    			double maxC_density=maxB_density;
+    			int maxC_gridPoint=-1;
+    			
+    			for (int xI=-1;xI<2;xI++){
+    				int xNeigh=xy.x+xI;
+    				if (xNeigh<0 || xNeigh>=M){
+    					continue;
+    				}
+    				for (int yI=-1;yI<2;yI++){
+    					int yNeigh=xy.y+yI;
+    					if ((xI==0 && yI==0) || yNeigh<0 || yNeigh>=M){
+        					continue;
+        				}
+    					final int neighbor=dbm.vectorIdx(xNeigh, yNeigh);
+    					if (pointers[neighbor]>0){
+    						if (density[neighbor]>maxC_density){
+    							maxC_gridPoint=neighbor;
+    							maxC_density=density[neighbor];
+    						}
+    					}
+    				}
+    			}
+    			final int newPeak;
+    			if (maxC_gridPoint>=0){ // new merging logic
+					newPeak=pointers[maxC_gridPoint];
+    			} else { // old merging logic
+    				// this introduces the possibility of a cluster tear since this 
+    				// create more gridpoints with pointers to the SAME dummy state and 
+    				// future loops may alter this with set B
+    				newPeak=pointers[maxB_gridPoint];
+    			}
+    			Iterator<Integer>it2=A.iterator();
+				while(it2.hasNext()){
+					pointers[ it2.next() ]=newPeak;
+				}
+				it2=B.iterator();
+				while(it2.hasNext()){
+					pointers[ it2.next() ]=newPeak;
+				}
+				if (dbm.debugging>1){
+					System.out.println("Loop #"+ outerLoop+"."+innerLoop+", newPeak="+newPeak+
+							", A="+A.size()+", B="+B.size()+", check sum=" + CheckSum(pointers));
+				}
+				it2=tearAble.iterator();
+    			while (it2.hasNext()){
+    				final int p=it2.next();
+    				if (p != newPeak){
+    					tearAbleSet.add(p);
+    				}
+    			}
+			}
+			if (dbm.debugging==1){
+				System.out.println("Loop #"+ outerLoop+"."+innerLoop+
+						", check sum=" + CheckSum(pointers));
+			}
+
+			tryAgain=false;
+			for (int i=0;i<pointers.length;i++){
+				if (priorPointers[i]!=pointers[i]){
+					tryAgain=true;
+					if (dbm.reportChangeCount){
+						changes++;
+					}else{
+						break;
+					}
+				}
+			}
+		}
+		dbm.possibleClusterTears=Dbm.ToInt(tearAbleSet);
+		java.util.Arrays.sort(dbm.possibleClusterTears);
+	}
+
+	/**
+	 * The original Dbm.fixClusterTear() with boxed sets and a rescan of all
+	 * pointers per fragment.
+	 */
+	static void FixClusterTearByRescans(final Dbm dbm, final int M){
+		final Collection<int[]> tearList=new ArrayList<>();
+		final int []ids=dbm.possibleClusterTears, pointers=dbm.pointers;
+		final int MM=M*M;
+		final int N=ids.length;
+		for (int i=0;i<N;i++){
+			final int id=ids[i];
+			int idCnt=1;
+			int p=-1;
+			for (int j=0;j<pointers.length;j++){
+				if (pointers[j]==id){
+					p=j;
+					break;
+				}
+			}
+			while (p>=0){
+				final int newId=id-(idCnt*MM);
+				int newIdCnt=0;
+				final Set<Integer> done=new LinkedHashSet<>();
+				Set<Integer> toDo=new LinkedHashSet<>();
+				toDo.add(p);
+				while (toDo.size()>0){
+					final Set<Integer>neighbors=new LinkedHashSet<>();
+					Iterator<Integer>it=toDo.iterator();
+					while(it.hasNext()){
+						final int doing=it.next();
+						pointers[doing]=newId;
+						newIdCnt++;
+						final Dbm.Xy xy=dbm.new Xy(doing);
+
+						for (int xI=-1;xI<2;xI++){
+							int xNeigh=xy.x+xI;
+							if (xNeigh<0 || xNeigh>=M){
+								continue;
+							}
+							for (int yI=-1;yI<2;yI++){
+								int yNeigh=xy.y+yI;
+								if ((xI==0 && yI==0) || yNeigh<0 || yNeigh>=M){
+									continue;
+								}
+								final int neighbor=dbm.vectorIdx(xNeigh, yNeigh);
+								if (pointers[neighbor]==id && !done.contains(neighbor)){
+									neighbors.add(neighbor);
+								}
+							}
+						}	
+					}
+					toDo=neighbors;
+					done.addAll(toDo);
+				}
+				p=-1;
+				for (int j=0;j<pointers.length;j++){
+					if (pointers[j]==id){
+						p=j;
+						break;
+					}
+				}
+/*				if (newIdCnt<tooSmall){
+					for (int j=0;j<pointers.length;j++){
+						if (pointers[j]==newId){
+							pointers[j]=-1;
+						}
+					}
+				}else{*/
+					idCnt=idCnt+1;
+				//}
+			}
+			if (idCnt>2){
+				tearList.add(new int[]{id, (idCnt-1)});
+			}
+		}
+		dbm.tears=new int[tearList.size()][];
+		final Iterator<int[]>it=tearList.iterator();
+		for (int i=0;it.hasNext();i++){
+			dbm.tears[i]=it.next();
+		}
+	}
+
+	private static int CheckSum(final int []pointers){
+		int sum=0;
+		for (int i=0;i<pointers.length;i++){
+			sum+=pointers[i];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,194 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Counts and times what Dbm does when set as its listener: outer loops,
+ * the dummies each processed and the pointers each changed, the sizes of
+ * sets A and B, the dummies whose B went to another peak, the possible and
+ * actual cluster tears, the gridpoints merged again by merge(delta,
+ * newPointers) and the time of each phase.  The counts add up
+ * over every merge of the Dbm until clear().
+ *
+ * From MATLAB:
+ *   metrics=edu.stanford.facs.swing.DbmMetrics;
+ *   javaDbm.listener=metrics;
+ *   javaDbm.merge;
+ *   disp(char(metrics.toString));
+ */
+public class DbmMetrics implements Dbm.Listener {
+	private int outerLoops, dummies, reported, moved, possibleTears, torn;
+	private long redone, redoable;
+	private int mergesAgain, differed;
+	private long sumA, sumB;
+	private int maxA, maxB;
+	private int []loopDummies=new int[8], loopChanges=new int[8];
+	private final Map<String, long[]>phases=new LinkedHashMap<String, long[]>();
+
+	public void dummy(final int outerLoop, final int gridpoint, final int sizeOfA,
+			final int sizeOfB, final int dummyPointer, final int newPeak){
+		reported++;
+		sumA+=sizeOfA;
+		sumB+=sizeOfB;
+		if (sizeOfA>maxA){
+			maxA=sizeOfA;
+		}
+		if (sizeOfB>maxB){
+			maxB=sizeOfB;
+		}
+		if (dummyPointer!=newPeak){
+			moved++;
+		}
+	}
+
+	public void loop(final int outerLoop, final int dummies, final int changes){
+		if (outerLoops==loopDummies.length){
+			loopDummies=java.util.Arrays.copyOf(loopDummies, outerLoops*2);
+			loopChanges=java.util.Arrays.copyOf(loopChanges, outerLoops*2);
+		}
+		loopDummies[outerLoops]=dummies;
+		loopChanges[outerLoops]=changes;
+		outerLoops++;
+		this.dummies+=dummies;
+	}
+
+	public void phase(final String phase, final long nanos){
+		long []calls=phases.get(phase);
+		if (calls==null){
+			calls=new long[2];
+			phases.put(phase, calls);
+		}
+		calls[0]++;
+		calls[1]+=nanos;
+	}
+
+	public void tears(final int possible, final int torn){
+		possibleTears+=possible;
+		this.torn+=torn;
+	}
+
+	public void mergedAgain(final int redone, final int gridpoints,
+			final int differ){
+		mergesAgain++;
+		this.redone+=redone;
+		redoable+=gridpoints;
+		if (differ>0){
+			differed++;
+		}
+	}
+
+	public int getOuterLoops(){
+		return outerLoops;
+	}
+
+	/**
+	 * @return dummies processed, for mergeTiled() including those undone
+	 * and processed again
+	 */
+	public int getDummies(){
+		return dummies;
+	}
+
+	/**
+	 * @return dummies processed of each outer loop
+	 */
+	public int []getLoopDummies(){
+		return java.util.Arrays.copyOf(loopDummies, outerLoops);
+	}
+
+	/**
+	 * @return pointers changed by each outer loop
+	 */
+	public int []getLoopChanges(){
+		return java.util.Arrays.copyOf(loopChanges, outerLoops);
+	}
+
+	/**
+	 * @return dummies whose set B went to another peak
+	 */
+	public int getMoved(){
+		return moved;
+	}
+
+	/**
+	 * @return mean and max size of set A, then of set B, of the dummies
+	 * reported one by one
+	 */
+	public double []getSetSizes(){
+		final int n=Math.max(1, reported);
+		return new double[]{(double)sumA/n, maxA, (double)sumB/n, maxB};
+	}
+
+	public int getPossibleTears(){
+		return possibleTears;
+	}
+
+	public int getTorn(){
+		return torn;
+	}
+
+	/**
+	 * @return seconds spent in the phase (one of Dbm.PHASE_) over all its
+	 * calls
+	 */
+	public double getSeconds(final String phase){
+		final long []calls=phases.get(phase);
+		return calls==null?0:calls[1]/1e9;
+	}
+
+	/**
+	 * @return the fraction of the grid merge(delta, newPointers) merged
+	 * again over all its calls
+	 */
+	public double getRedoneFraction(){
+		return redoable==0?0:(double)redone/redoable;
+	}
+
+	/**
+	 * @return calls of merge(delta, newPointers) that with debugging set
+	 * differed from merge()
+	 */
+	public int getDiffered(){
+		return differed;
+	}
+
+	public void clear(){
+		outerLoops=dummies=reported=moved=possibleTears=torn=maxA=maxB=0;
+		mergesAgain=differed=0;
+		sumA=sumB=redone=redoable=0;
+		phases.clear();
+	}
+
+	public String toString(){
+		final StringBuilder sb=new StringBuilder();
+		sb.append(outerLoops).append(" loops, ").append(dummies)
+		.append(" dummies processed, ").append(moved).append(" moved");
+		for (int i=0;i<outerLoops;i++){
+			sb.append(i==0?"\n  dummies/changes per loop: ":", ")
+			.append(loopDummies[i]).append('/').append(loopChanges[i]);
+		}
+		final double []sizes=getSetSizes();
+		sb.append(String.format("\n  set A mean %.1f max %d, set B mean %.1f max %d",
+				sizes[0], maxA, sizes[2], maxB));
+		sb.append("\n  ").append(torn).append(" torn of ").append(possibleTears)
+		.append(" possible tears");
+		if (mergesAgain>0){
+			sb.append(String.format("\n  %d merges again redid %.1f%% of the grid, %d differed",
+					mergesAgain, 100*getRedoneFraction(), differed));
+		}
+		for (final Map.Entry<String, long[]>e:phases.entrySet()){
+			sb.append(String.format("\n  %s: %d x %.3f secs", e.getKey(),
+					e.getValue()[0], e.getValue()[1]/1e9));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,613 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+/*
+ * Dbm's merge() and fixClusterTear() on a grid of M^d gridpoints for small
+ * d (3D UMAP embeddings in particular).  Only the gridpoints that are not
+ * background are stored: background gridpoints never join sets A, B or C
+ * nor a cluster so leaving them out changes nothing while memory follows
+ * the occupied gridpoints instead of M^d.
+ *
+ * Gridpoints are kept in ascending flat index order where the flat index
+ * is x0 + x1*M + x2*M^2 ... (MATLAB's linear index minus 1).  Each
+ * gridpoint's stored neighbors are listed once in CSR form (neighborPtr,
+ * neighbors) in the order of the 3^d-1 offset table which for d=2 is
+ * Dbm's probe order, so for d=2 the result is that of Dbm.merge().
+ * Pointers hold the same values as Dbm's: 0 unassigned, -1 background,
+ * -1-gridpoint for a dummy state and 1+gridpoint for an association.
+ *
+ * FromDensity() builds those starting pointers from a density grid and
+ * its stdErr as Density.m's clusterAnalyze() does in 2D.  Progress goes
+ * to listener as Dbm's does, or is printed as reportChangeCount and
+ * debugging ask when there is none.
+ */
+public class DbmNd {
+	public int debugging=0;
+	public boolean reportChangeCount=true;
+	public final int M, d, n;
+	// flat index of each stored gridpoint ascending
+	public final int []cells;
+	public final int []pointers;
+	public final double []density, stdErr;
+	public int []possibleClusterTears;
+	public int tooSmall=0;
+	public int [][]tears;
+	public Dbm.Listener listener;
+	// the listener of the current merge: listener, a Printer or null
+	private Dbm.Listener active;
+
+	private final long gridpoints;
+	private final int []neighborPtr, neighbors;
+
+	/**
+	 * @param cells flat indexes of the stored gridpoints in any order,
+	 * the gridpoints not given are background
+	 */
+	public DbmNd(final int M, final int d, final int []cells, final double []density,
+			final double []stdErr, final int []pointers){
+		this.M=M;
+		this.d=d;
+		gridpoints=(long)Math.pow(M, d);
+		if (gridpoints*2>=Integer.MAX_VALUE){
+			throw new IllegalArgumentException(M+"^"+d+" gridpoints is too many");
+		}
+		n=cells.length;
+		final int []order=new int[n];
+		final double []keys=new double[n];
+		for (int i=0;i<n;i++){
+			order[i]=i;
+			keys[i]=-cells[i];
+		}
+		Dbm.sortDescending(order, n, keys, new int[n], new double[n]);
+		this.cells=new int[n];
+		this.density=new double[n];
+		this.stdErr=new double[n];
+		this.pointers=new int[n];
+		for (int i=0;i<n;i++){
+			this.cells[i]=cells[order[i]];
+			this.density[i]=density[order[i]];
+			this.stdErr[i]=stdErr[order[i]];
+			this.pointers[i]=pointers[order[i]];
+		}
+		final int []table=OffsetTable(d);
+		neighborPtr=new int[n+1];
+		final int []found=new int[table.length/d];
+		final int []coordinates=new int[d];
+		int []list=new int[Math.max(16, n*4)];
+		int nList=0;
+		for (int c=0;c<n;c++){
+			final int cnt=neighborsOf(this.cells[c], table, coordinates, found);
+			if (nList+cnt>list.length){
+				list=java.util.Arrays.copyOf(list, Math.max(list.length*2, nList+cnt));
+			}
+			System.arraycopy(found, 0, list, nList, cnt);
+			nList+=cnt;
+			neighborPtr[c+1]=nList;
+		}
+		neighbors=java.util.Arrays.copyOf(list, nList);
+	}
+
+	/**
+	 * A dense grid such as Dbm takes where background (-1) pointers are
+	 * not stored.
+	 */
+	public static DbmNd FromGrid(final int M, final int d, final double []density,
+			final double []stdErr, final int []pointers){
+		int n=0;
+		for (int i=0;i<pointers.length;i++){
+			if (pointers[i]!=-1){
+				n++;
+			}
+		}
+		final int []cells=new int[n];
+		final double []f=new double[n], se=new double[n];
+		final int []p=new int[n];
+		n=0;
+		for (int i=0;i<pointers.length;i++){
+			if (pointers[i]!=-1){
+				cells[n]=i;
+				f[n]=density[i];
+				se[n]=stdErr[i];
+				p[n++]=pointers[i];
+			}
+		}
+		return new DbmNd(M, d, cells, f, se, p);
+	}
+
+	/**
+	 * FromGrid() of StartingPointers().
+	 */
+	public static DbmNd FromDensity(final int M, final int d, final double []density,
+			final double []stdErr, final double bgFactor, final double critval){
+		return FromGrid(M, d, density, stdErr,
+				StartingPointers(M, d, density, stdErr, bgFactor, critval));
+	}
+
+	/**
+	 * Density.m's steps 2 and 3 on M^d gridpoints.  Each gridpoint points
+	 * to its steepest uphill neighbor (diagonal differences divided by the
+	 * length of the step in grid units, ties to the first in offset table
+	 * order) if it has one; gridpoints with f<=bgFactor*stdErr are
+	 * background; path ends with f>=critval*stdErr become dummy states and
+	 * the other path ends go to background with every gridpoint whose path
+	 * leads to them.
+	 *
+	 * Density.m's slope is the kernel's derivative toward that neighbor,
+	 * here it is the density difference so slopeIsSignificant is 0.  Its
+	 * other background types need the event weights, apply them to the
+	 * result before FromGrid().
+	 *
+	 * @param density M^d densities by flat index
+	 * @param critval the significance critical value Density.m computes
+	 * from kappa
+	 * @return pointers by flat index as Dbm and FromGrid() take them
+	 */
+	public static int []StartingPointers(final int M, final int d,
+			final double []density, final double []stdErr, final double bgFactor,
+			final double critval){
+		final boolean []background=new boolean[density.length];
+		for (int v=0;v<density.length;v++){
+			background[v]=density[v]<=bgFactor*stdErr[v];
+		}
+		return StartingPointers(M, d, density, stdErr, background, critval);
+	}
+
+	/**
+	 * StartingPointers() with the background given.
+	 */
+	public static int []StartingPointers(final int M, final int d,
+			final double []density, final double []stdErr, final boolean []background,
+			final double critval){
+		final int gridpoints=density.length;
+		final int []table=OffsetTable(d);
+		final int size=table.length/d;
+		final double []stepLength=new double[size];
+		for (int k=0;k<size;k++){
+			int steps=0;
+			for (int dim=0;dim<d;dim++){
+				steps+=table[k*d+dim]*table[k*d+dim];
+			}
+			stepLength[k]=Math.sqrt(steps);
+		}
+		final int []pointers=new int[gridpoints];
+		final boolean []pointedTo=new boolean[gridpoints];
+		final int []coordinates=new int[d];
+		for (int v=0;v<gridpoints;v++){
+			int rest=v;
+			for (int dim=0;dim<d;dim++){
+				coordinates[dim]=rest%M;
+				rest/=M;
+			}
+			double best=density[v];
+			int uphill=-1;
+			for (int k=0;k<size;k++){
+				if (stepLength[k]==0){
+					continue;
+				}
+				int neighbor=0, stride=1;
+				boolean onGrid=true;
+				for (int dim=0;dim<d;dim++){
+					final int coordinate=coordinates[dim]+table[k*d+dim];
+					if (coordinate<0 || coordinate>=M){
+						onGrid=false;
+						break;
+					}
+					neighbor+=coordinate*stride;
+					stride*=M;
+				}
+				if (onGrid){
+					final double f=density[v]+(density[neighbor]-density[v])/stepLength[k];
+					if (f>best){
+						best=f;
+						uphill=neighbor;
+					}
+				}
+			}
+			if (background[v]){
+				pointers[v]=-1;
+			} else if (uphill>=0){
+				pointers[v]=uphill+1;
+				pointedTo[uphill]=true;
+			}
+		}
+		// each path goes strictly uphill so following it ends
+		final int []pathEnd=new int[gridpoints], path=new int[gridpoints];
+		java.util.Arrays.fill(pathEnd, -1);
+		for (int v=0;v<gridpoints;v++){
+			int length=0, end=v;
+			while (pathEnd[end]<0 && pointers[end]>0){
+				path[length++]=end;
+				end=pointers[end]-1;
+			}
+			if (pathEnd[end]>=0){
+				end=pathEnd[end];
+			}
+			pathEnd[end]=end;
+			for (int i=0;i<length;i++){
+				pathEnd[path[i]]=end;
+			}
+		}
+		final boolean []insignificant=new boolean[gridpoints];
+		for (int v=0;v<gridpoints;v++){
+			if (pointers[v]==0 && pointedTo[v]){
+				if (density[v]>=critval*stdErr[v]){
+					pointers[v]=-1-(v+1);
+				} else {
+					insignificant[v]=true;
+				}
+			}
+		}
+		for (int v=0;v<gridpoints;v++){
+			if (insignificant[pathEnd[v]]){
+				pointers[v]=-1;
+			}
+		}
+		return pointers;
+	}
+
+	/**
+	 * The 3^d offsets (dimension 0 changing slowest) each as d deltas of
+	 * -1, 0 or 1; the middle one is all 0.
+	 */
+	public static int []OffsetTable(final int d){
+		int size=1;
+		for (int i=0;i<d;i++){
+			size*=3;
+		}
+		final int []table=new int[size*d];
+		for (int k=0;k<size;k++){
+			int rest=k;
+			for (int dim=d-1;dim>=0;dim--){
+				table[k*d+dim]=rest%3-1;
+				rest/=3;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Puts the stored neighbors of gridpoint flat in found in offset table
+	 * order, itself included at its place (only set B wants it, elsewhere
+	 * it is already stamped, relabeled or not a candidate).
+	 *
+	 * @return how many
+	 */
+	private int neighborsOf(final int flat, final int []table, final int []coordinates,
+			final int []found){
+		int rest=flat;
+		for (int dim=0;dim<d;dim++){
+			coordinates[dim]=rest%M;
+			rest/=M;
+		}
+		int cnt=0;
+		final int size=table.length/d;
+		for (int k=0;k<size;k++){
+			int neighbor=0, stride=1;
+			boolean onGrid=true;
+			for (int dim=0;dim<d;dim++){
+				final int coordinate=coordinates[dim]+table[k*d+dim];
+				if (coordinate<0 || coordinate>=M){
+					onGrid=false;
+					break;
+				}
+				neighbor+=coordinate*stride;
+				stride*=M;
+			}
+			if (onGrid){
+				final int c=indexOf(neighbor);
+				if (c>=0){
+					found[cnt++]=c;
+				}
+			}
+		}
+		return cnt;
+	}
+
+	/**
+	 * @return the storage index of the gridpoint at flat index or -1 if
+	 * it is background
+	 */
+	public int indexOf(final int flat){
+		final int c=java.util.Arrays.binarySearch(cells, flat);
+		return c>=0?c:-1;
+	}
+
+	private boolean []dirty;
+	private int []a, b, stamp, changedInLoop, priorPointers, changed;
+	private int stamps, nChanged, outerLoop;
+
+	/*
+	 * What reportChangeCount and debugging have always printed.
+	 */
+	private class Printer implements Dbm.Listener{
+		int innerLoop;
+
+		public void dummy(final int outerLoop, final int gridpoint, final int sizeOfA,
+				final int sizeOfB, final int dummyPointer, final int newPeak){
+			innerLoop++;
+			if (debugging>1){
+				System.out.println("Loop #"+ outerLoop+"."+innerLoop+", newPeak="+newPeak+
+						", A="+sizeOfA+", B="+sizeOfB);
+			}
+		}
+
+		public void loop(final int outerLoop, final int dummies, final int changes){
+			innerLoop=0;
+			if (reportChangeCount && changes>0){
+				System.out.println(changes+" changes require "+ "Loop #"+(outerLoop+1));
+			}
+		}
+
+		public void phase(final String phase, final long nanos){
+		}
+
+		public void tears(final int possible, final int torn){
+		}
+
+		public void mergedAgain(final int redone, final int gridpoints,
+				final int differ){
+		}
+	}
+
+	private void startListening(){
+		active=listener!=null?listener
+				:(reportChangeCount || debugging>0)?new Printer():null;
+	}
+
+	/*
+	 * Dbm.merge() with the stored neighbors standing in for the 8
+	 * neighbors of the 2D grid.
+	 */
+	public void merge(){
+		startListening();
+		final long began=active==null?0:System.nanoTime();
+		possibleClusterTears=null;
+		dirty=new boolean[n];
+		java.util.Arrays.fill(dirty, true); // never processed
+		a=new int[n];
+		b=new int[n+1];
+		stamp=new int[n];
+		changedInLoop=new int[n];
+		priorPointers=new int[n];
+		changed=new int[n];
+		stamps=0;
+		final int []dummies=new int[n], sortBuffer=new int[n];
+		final double []keys=new double[n], keyBuffer=new double[n];
+		int []tearAble=new int[Math.max(16, n/8)];
+		int nTearAble=0, changes=1;
+		outerLoop=0;
+		while (changes>0){
+			outerLoop++;
+			nChanged=0;
+			int nDummies=0;
+			for (int c=0;c<n;c++){
+				if (pointers[c]<-1){
+					keys[nDummies]=density[c];
+					dummies[nDummies++]=c;
+				}
+			}
+			Dbm.sortDescending(dummies, nDummies, keys, sortBuffer, keyBuffer);
+			int innerLoop=0;
+			for (int di=0;di<nDummies;di++){
+				final int newDummy=dummies[di];
+				if (pointers[newDummy]>0 || !dirty[newDummy]){
+					continue;
+				}
+				innerLoop++;
+				dirty[newDummy]=false;
+				final int sizeOfA=makeA(newDummy);
+				final int sizeOfB=makeB(sizeOfA);
+				final int maxB=b[sizeOfB];
+				final int maxC=maxC(maxB);
+				final int newPeak=pointers[maxC>=0?maxC:maxB];
+				final int dummyPointer=pointers[newDummy];
+				for (int i=0;i<sizeOfA;i++){
+					point(a[i], newPeak);
+				}
+				for (int i=0;i<sizeOfB;i++){
+					point(b[i], newPeak);
+				}
+				if (active!=null){
+					active.dummy(outerLoop, cells[newDummy], sizeOfA, sizeOfB,
+							dummyPointer, newPeak);
+				}
+				if (dummyPointer!=newPeak){
+					if (nTearAble==tearAble.length){
+						nTearAble=Dbm.SortUnique(tearAble, nTearAble);
+						if (nTearAble>tearAble.length/2){
+							tearAble=java.util.Arrays.copyOf(tearAble, tearAble.length*2);
+						}
+					}
+					tearAble[nTearAble++]=dummyPointer;
+				}
+			}
+			changes=0;
+			for (int i=0;i<nChanged;i++){
+				final int c=changed[i];
+				if (pointers[c]!=priorPointers[c]){
+					changes++;
+				}
+			}
+			if (active!=null){
+				active.loop(outerLoop, innerLoop, changes);
+			}
+		}
+		possibleClusterTears=java.util.Arrays.copyOf(tearAble,
+				Dbm.SortUnique(tearAble, nTearAble));
+		dirty=null;
+		b=stamp=changedInLoop=priorPointers=changed=null;
+		if (active!=null){
+			active.phase(Dbm.PHASE_MERGE, System.nanoTime()-began);
+		}
+	}
+
+	private int makeA(final int newDummy){
+		stamps++;
+		int sizeOfA=0;
+		a[sizeOfA++]=newDummy;
+		stamp[newDummy]=stamps;
+		final double test=density[newDummy]-stdErr[newDummy];
+		for (int i=0;i<sizeOfA;i++){
+			final int v=a[i];
+			for (int e=neighborPtr[v];e<neighborPtr[v+1];e++){
+				final int neighbor=neighbors[e];
+				if (stamp[neighbor]!=stamps && pointers[neighbor]==0
+						&& density[neighbor]+stdErr[neighbor]>test){
+					stamp[neighbor]=stamps;
+					a[sizeOfA++]=neighbor;
+				}
+			}
+		}
+		return sizeOfA;
+	}
+
+	/**
+	 * @return size of B, the densest of B is stored after it at b[size]
+	 */
+	private int makeB(final int sizeOfA){
+		stamps++;
+		int sizeOfB=0;
+		double maxB_density=-1;
+		int maxB=-1;
+		for (int i=0;i<sizeOfA;i++){
+			final int v=a[i];
+			for (int e=neighborPtr[v];e<neighborPtr[v+1];e++){
+				final int neighbor=neighbors[e];
+				if (stamp[neighbor]!=stamps && pointers[neighbor]<-1){
+					stamp[neighbor]=stamps;
+					b[sizeOfB++]=neighbor;
+					if (density[neighbor]>maxB_density){
+						maxB_density=density[neighbor];
+						maxB=neighbor;
+					}
+				}
+			}
+		}
+		b[sizeOfB]=maxB;
+		return sizeOfB;
+	}
+
+	private int maxC(final int maxB){
+		double maxC_density=density[maxB];
+		int maxC=-1;
+		for (int e=neighborPtr[maxB];e<neighborPtr[maxB+1];e++){
+			final int neighbor=neighbors[e];
+			if (pointers[neighbor]>0 && density[neighbor]>maxC_density){
+				maxC=neighbor;
+				maxC_density=density[neighbor];
+			}
+		}
+		return maxC;
+	}
+
+	/**
+	 * Points v at newPeak and, if that is a change, marks the gridpoints
+	 * within 2 of v dirty.
+	 */
+	private void point(final int v, final int newPeak){
+		if (pointers[v]==newPeak){
+			return;
+		}
+		if (changedInLoop[v]!=outerLoop){
+			changedInLoop[v]=outerLoop;
+			priorPointers[v]=pointers[v];
+			changed[nChanged++]=v;
+		}
+		pointers[v]=newPeak;
+		for (int e=neighborPtr[v];e<neighborPtr[v+1];e++){
+			final int neighbor=neighbors[e];
+			for (int e2=neighborPtr[neighbor];e2<neighborPtr[neighbor+1];e2++){
+				dirty[neighbors[e2]]=true;
+			}
+		}
+	}
+
+	/**
+	 * Dbm.fixClusterTear() over the stored gridpoints, new ids are
+	 * id-M^d, id-2*M^d ...
+	 */
+	public void fixClusterTear(){
+		startListening();
+		final long began=active==null?0:System.nanoTime();
+		final int []ids=possibleClusterTears.clone();
+		java.util.Arrays.sort(ids);
+		final int N=ids.length;
+		// next fragment id count of each possible tear
+		final int []idCnt=new int[N];
+		java.util.Arrays.fill(idCnt, 1);
+		final int []queue=new int[n];
+		for (int p=0;p<n;p++){
+			final int id=pointers[p];
+			if (id>=-1 || id<-1-gridpoints){
+				continue;
+			}
+			final int i=java.util.Arrays.binarySearch(ids, id);
+			if (i<0){
+				continue;
+			}
+			final int newId=(int)(id-idCnt[i]*gridpoints);
+			int size=0;
+			queue[size++]=p;
+			pointers[p]=newId;
+			for (int j=0;j<size;j++){
+				final int v=queue[j];
+				for (int e=neighborPtr[v];e<neighborPtr[v+1];e++){
+					final int neighbor=neighbors[e];
+					if (pointers[neighbor]==id){
+						pointers[neighbor]=newId;
+						queue[size++]=neighbor;
+					}
+				}
+			}
+			if (size<tooSmall){
+				for (int j=0;j<size;j++){
+					pointers[queue[j]]=-1;
+				}
+			} else {
+				idCnt[i]++;
+			}
+		}
+		final int [][]torn=new int[N][];
+		int nTorn=0;
+		for (int i=0;i<N;i++){
+			if (idCnt[i]>2 && (i==0 || ids[i]!=ids[i-1])){
+				torn[nTorn++]=new int[]{ids[i], idCnt[i]-1};
+			}
+		}
+		tears=java.util.Arrays.copyOf(torn, nTorn);
+		if (active!=null){
+			active.tears(possibleClusterTears.length, nTorn);
+			active.phase(Dbm.PHASE_FIX_TEARS, System.nanoTime()-began);
+		}
+	}
+
+	/**
+	 * Follows the association pointers to the dummy state (cluster) they
+	 * end at as Density.m does after merging.
+	 *
+	 * @return each stored gridpoint's cluster pointer
+	 */
+	public int []resolvePointers(){
+		final int []resolved=pointers.clone();
+		for (int c=0;c<n;c++){
+			int p=resolved[c], hops=0;
+			while (p>0 && hops++<n){
+				final int to=indexOf(p-1);
+				if (to<0){
+					p=-1;
+					break;
+				}
+				p=resolved[to];
+			}
+			resolved[c]=p;
+		}
+		return resolved;
+	}
+}
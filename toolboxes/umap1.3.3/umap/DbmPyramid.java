@@ -0,0 +1,213 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+/*
+ * DBM clustering of one density grid at several resolutions, coarse to
+ * fine.  Each coarser level pools 2x2 gridpoints of the next finer one:
+ * the mean density, the stdErr of that mean as if the 4 were independent
+ * and background only where all 4 are.  Its starting pointers are built
+ * by DbmNd.StartingPointers() with the finest grid's critical value and
+ * it is merged and its tears fixed by Dbm, so every level is exactly
+ * Dbm.merge() and Dbm.fixClusterTear() of its own grid and the finest
+ * level is the caller's (or that of Dbm on it).  Nothing is approximated
+ * from a coarser level: an exact DBM result needs every pointer of the
+ * finer grid, and merge() already only works on its dummies and their
+ * unassigned neighbors.  What the coarser levels add is the coarse to fine
+ * hierarchy: getParents() tells which cluster of the next coarser level
+ * holds most of each cluster's gridpoints.
+ *
+ * From MATLAB (Density.Cluster with M [64 128 256] does this):
+ *   pyramid=edu.stanford.facs.swing.DbmPyramid(M, Pointers, f, stdErr, ...
+ *       critval, 3);
+ *   pyramid.merge(javaDbm.pointers);
+ *   parents=pyramid.getParents(2);
+ */
+public class DbmPyramid {
+	public int tooSmall=0;
+
+	// coarsest first
+	private final int []Ms;
+	private final int [][]starting, labels;
+	private final double [][]densities, stdErrs;
+
+	/**
+	 * @param pointers the finest grid's starting pointers as Dbm takes them
+	 * @param critval the significance critical value Density.m computed
+	 * for the finest grid
+	 * @param levels how many grids counting the finest, fewer if halving
+	 * would go below 4 gridpoints a side
+	 */
+	public DbmPyramid(final int M, final int []pointers, final double []density,
+			final double []stdErr, final double critval, final int levels){
+		int n=1;
+		for (int m=M;n<levels && (m+1)/2>=4;m=(m+1)/2){
+			n++;
+		}
+		Ms=new int[n];
+		starting=new int[n][];
+		labels=new int[n][];
+		densities=new double[n][];
+		stdErrs=new double[n][];
+		Ms[n-1]=M;
+		starting[n-1]=pointers.clone();
+		densities[n-1]=density;
+		stdErrs[n-1]=stdErr;
+		boolean []background=new boolean[M*M];
+		for (int v=0;v<background.length;v++){
+			background[v]=pointers[v]==-1;
+		}
+		for (int level=n-2;level>=0;level--){
+			final int fine=Ms[level+1], coarse=(fine+1)/2;
+			final double []f=new double[coarse*coarse], se=new double[coarse*coarse];
+			final int []count=new int[coarse*coarse];
+			final boolean []coarseBackground=new boolean[coarse*coarse];
+			java.util.Arrays.fill(coarseBackground, true);
+			for (int v=0;v<fine*fine;v++){
+				final int c=(v%fine)/2+(v/fine)/2*coarse;
+				f[c]+=densities[level+1][v];
+				se[c]+=stdErrs[level+1][v]*stdErrs[level+1][v];
+				count[c]++;
+				coarseBackground[c]&=background[v];
+			}
+			for (int c=0;c<f.length;c++){
+				f[c]/=count[c];
+				se[c]=Math.sqrt(se[c])/count[c];
+			}
+			Ms[level]=coarse;
+			densities[level]=f;
+			stdErrs[level]=se;
+			starting[level]=DbmNd.StartingPointers(coarse, 2, f, se, coarseBackground,
+					critval);
+			background=coarseBackground;
+		}
+	}
+
+	/**
+	 * Merges and fixes the tears of every coarser level, coarsest first.
+	 *
+	 * @param finest the finest level's pointers after Dbm.merge() and
+	 * Dbm.fixClusterTear() or null to do those here
+	 */
+	public void merge(final int []finest){
+		final int n=Ms.length;
+		for (int level=0;level<n;level++){
+			if (level==n-1 && finest!=null){
+				labels[level]=Labels(finest);
+				continue;
+			}
+			final Dbm dbm=new Dbm(Ms[level]);
+			dbm.pointers=starting[level].clone();
+			dbm.density=densities[level];
+			dbm.stdErr=stdErrs[level];
+			dbm.reportChangeCount=false;
+			dbm.tooSmall=tooSmall;
+			dbm.merge();
+			dbm.fixClusterTear();
+			labels[level]=Labels(dbm.pointers);
+		}
+	}
+
+	public int getLevels(){
+		return Ms.length;
+	}
+
+	/**
+	 * @param level 0 for the coarsest
+	 */
+	public int getM(final int level){
+		return Ms[level];
+	}
+
+	/**
+	 * @return each gridpoint's cluster 1 to k (in the order of the dummy
+	 * states) or 0 for background and unassigned
+	 */
+	public int []getLabels(final int level){
+		return labels[level];
+	}
+
+	/**
+	 * @return for each cluster 1 to k of level the cluster of level-1
+	 * with the most of its gridpoints or 0 if they are all background
+	 * there
+	 */
+	public int []getParents(final int level){
+		final int fine=Ms[level], coarse=Ms[level-1];
+		final int []fineLabels=labels[level], coarseLabels=labels[level-1];
+		int k=0;
+		for (final int label:fineLabels){
+			k=Math.max(k, label);
+		}
+		final long []pairs=new long[fineLabels.length];
+		int nPairs=0;
+		for (int v=0;v<fineLabels.length;v++){
+			final int c=(v%fine)/2+(v/fine)/2*coarse;
+			if (fineLabels[v]>0 && coarseLabels[c]>0){
+				pairs[nPairs++]=((long)fineLabels[v]<<32)|coarseLabels[c];
+			}
+		}
+		java.util.Arrays.sort(pairs, 0, nPairs);
+		final int []parents=new int[k], most=new int[k];
+		for (int i=0, run=1;i<nPairs;i++, run++){
+			if (i==nPairs-1 || pairs[i+1]!=pairs[i]){
+				final int label=(int)(pairs[i]>>>32);
+				if (run>most[label-1]){
+					most[label-1]=run;
+					parents[label-1]=(int)pairs[i];
+				}
+				run=0;
+			}
+		}
+		return parents;
+	}
+
+	/**
+	 * @return the clusters of merged pointers labeled 1 to k in the order
+	 * of the dummy states the pointers lead to and 0 for background,
+	 * unassigned and cycles
+	 */
+	static int []Labels(final int []pointers){
+		final int n=pointers.length;
+		final int unknown=1, onPath=2, none=0;
+		// the dummy state each gridpoint's pointers lead to or none
+		final int []end=new int[n], path=new int[n];
+		java.util.Arrays.fill(end, unknown);
+		for (int v=0;v<n;v++){
+			int length=0, at=v;
+			while (end[at]==unknown && pointers[at]>0){
+				end[at]=onPath;
+				path[length++]=at;
+				at=pointers[at]-1;
+			}
+			if (end[at]==unknown){
+				end[at]=pointers[at]<-1?pointers[at]:none;
+			}
+			final int e=end[at]==onPath?none:end[at];
+			for (int i=0;i<length;i++){
+				end[path[i]]=e;
+			}
+		}
+		final int []ids=new int[n];
+		int k=0;
+		for (final int e:end){
+			if (e!=none){
+				ids[k++]=e;
+			}
+		}
+		k=Dbm.SortUnique(ids, k);
+		final int []labels=new int[n];
+		for (int v=0;v<n;v++){
+			if (end[v]!=none){
+				labels[v]=java.util.Arrays.binarySearch(ids, 0, k, end[v])+1;
+			}
+		}
+		return labels;
+	}
+}
@@ -0,0 +1,162 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.stream.IntStream;
+
+/*
+ * Java port of the linear binning in Density.Weight and the Density
+ * constructor (PUBREF=REF 2.1).  Each event gives its 4 surrounding grid
+ * points the bilinear weights prod(1-|event-gridpoint|/delta) in one pass
+ * instead of 4 repmat+accumarray passes.  Events are added in chunks so
+ * sets larger than memory can be streamed through; each chunk is split
+ * over the processors with a partial grid per part that is summed into
+ * the weights at the end of the chunk.
+ */
+public class DensityBinner {
+	private static final int MIN_EVENTS_PER_PART=8192;
+
+	public final int M;
+	private final double minX, minY, deltaX, deltaY;
+	private final double []weights;
+	private double [][]partials=new double[0][];
+	private int n, offScale;
+
+	public DensityBinner(final int M, final double []mins, final double []maxs){
+		this.M=M;
+		this.minX=mins[0];
+		this.minY=mins[1];
+		this.deltaX=(maxs[0]-mins[0])/(M-1);
+		this.deltaY=(maxs[1]-mins[1])/(M-1);
+		this.weights=new double[M*M];
+	}
+
+	/**
+	 * Bins one chunk of events given as 2 columns.  Events outside of
+	 * mins/maxs (or NaN) are not binned and are counted by getOffScale().
+	 */
+	public void add(final double []x, final double []y){
+		final int N=x.length;
+		final int parts=Math.max(1, Math.min(
+				Runtime.getRuntime().availableProcessors(), N/MIN_EVENTS_PER_PART));
+		if (parts==1){
+			offScale+=bin(x, y, 0, N, weights);
+		} else {
+			if (partials.length<parts){
+				partials=new double[parts][];
+			}
+			final int []offScales=new int[parts];
+			IntStream.range(0, parts).parallel().forEach(part->{
+				if (partials[part]==null){
+					partials[part]=new double[M*M];
+				}
+				offScales[part]=bin(x, y, (int)((long)N*part/parts),
+						(int)((long)N*(part+1)/parts), partials[part]);
+			});
+			IntStream.range(0, M).parallel().forEach(col->{
+				final int end=(col+1)*M;
+				for (int part=0;part<parts;part++){
+					final double []partial=partials[part];
+					for (int v=col*M;v<end;v++){
+						weights[v]+=partial[v];
+						partial[v]=0;
+					}
+				}
+			});
+			for (int part=0;part<parts;part++){
+				offScale+=offScales[part];
+			}
+		}
+		n+=N;
+	}
+
+	/**
+	 * Bins one chunk of events given as N rows of 2 columns.
+	 */
+	public void add(final double [][]events){
+		final double []x=new double[events.length], y=new double[events.length];
+		for (int i=0;i<events.length;i++){
+			x[i]=events[i][0];
+			y[i]=events[i][1];
+		}
+		add(x, y);
+	}
+
+	private int bin(final double []x, final double []y, final int from,
+			final int to, final double []grid){
+		final int last=M-2;
+		// (maxs-mins)/delta can round to just over M-1 for events on maxs
+		final double top=M-1+1e-9*(M-1);
+		int skipped=0;
+		for (int i=from;i<to;i++){
+			final double ex=(x[i]-minX)/deltaX, ey=(y[i]-minY)/deltaY;
+			if (!(ex>=0 && ex<=top && ey>=0 && ey<=top)){
+				skipped++;
+				continue;
+			}
+			// lower left grid point, the upper edge bins with the one below it
+			final int lowX=Math.min((int)ex, last), lowY=Math.min((int)ey, last);
+			final double fx=Math.min(ex-lowX, 1), fy=Math.min(ey-lowY, 1);
+			final int v=lowX+lowY*M;
+			grid[v]+=(1-fx)*(1-fy);
+			grid[v+1]+=fx*(1-fy);
+			grid[v+M]+=(1-fx)*fy;
+			grid[v+M+1]+=fx*fy;
+		}
+		return skipped;
+	}
+
+	/**
+	 * @return events added including those off scale
+	 */
+	public int getN(){
+		return n;
+	}
+
+	public int getOffScale(){
+		return offScale;
+	}
+
+	/**
+	 * @return the column major M*M vector of the weight grid, element
+	 * x+y*M is wmat(x+1, y+1) in Density.m
+	 */
+	public double []getWeightVector(){
+		return weights;
+	}
+
+	/**
+	 * @return wmat as Density.Weight returns it, indexed [x][y]
+	 */
+	public double [][]getWeights(){
+		final double [][]wmat=new double[M][M];
+		IntStream.range(0, M).parallel().forEach(x->{
+			for (int y=0;y<M;y++){
+				wmat[x][y]=weights[x+y*M];
+			}
+		});
+		return wmat;
+	}
+
+	public void clear(){
+		java.util.Arrays.fill(weights, 0);
+		n=0;
+		offScale=0;
+	}
+
+	/**
+	 * Density.Weight in one call.
+	 */
+	public static double [][]Weight(final double []x, final double []y,
+			final int M, final double []mins, final double []maxs){
+		final DensityBinner binner=new DensityBinner(M, mins, maxs);
+		binner.add(x, y);
+		return binner.getWeights();
+	}
+}
@@ -0,0 +1,262 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.stream.IntStream;
+
+/*
+ * Java port of the event to grid point to cluster lookups in Density.m:
+ * the interp2(xgrid, ygrid, z', x, y, 'nearest') giving eventBinIdxs in
+ * the constructor and density2D, and the end of dbm() that follows
+ * Dbm's pointers to their dummy states, numbers the clusters with events
+ * 1 to k, gives each event its cluster and computePointersWithEvents().
+ *
+ * Events are added in chunks as in DensityBinner so new events can be
+ * streamed in: each chunk is binned in parallel and counted per grid
+ * point, and once the pointers are labeled a chunk's cluster ids are a
+ * lookup of its bins.  Bins are 1 based (x+y*M+1) and 0 is off scale
+ * where interp2 gives NaN.
+ */
+public class EventBins {
+	private static final int MIN_EVENTS_PER_PART=8192;
+
+	public final int M;
+	private final double minX, minY, maxX, maxY, deltaX, deltaY;
+	private int []bins=new int[0];
+	private int n, offScale;
+	// events in each grid point
+	private final int []counts;
+	// the labeled pointers or null
+	private int []labels;
+	private int numClusters;
+
+	public EventBins(final int M, final double []mins, final double []maxs){
+		this.M=M;
+		this.minX=mins[0];
+		this.minY=mins[1];
+		this.maxX=maxs[0];
+		this.maxY=maxs[1];
+		this.deltaX=(maxs[0]-mins[0])/(M-1);
+		this.deltaY=(maxs[1]-mins[1])/(M-1);
+		this.counts=new int[M*M];
+	}
+
+	/**
+	 * Bins one chunk of events given as 2 columns.
+	 *
+	 * @return the chunk's bins
+	 */
+	public int []add(final double []x, final double []y){
+		final int N=x.length;
+		final int []chunk=new int[N];
+		IntStream.range(0, parts(N)).parallel().forEach(part->{
+			final int end=end(N, part);
+			for (int i=start(N, part);i<end;i++){
+				chunk[i]=bin(x[i], y[i]);
+			}
+		});
+		addBins(chunk);
+		return chunk;
+	}
+
+	/**
+	 * Adds events already binned, for example Density.m's eventBinIdxs.
+	 */
+	public void addBins(final int []chunk){
+		if (n+chunk.length>bins.length){
+			bins=java.util.Arrays.copyOf(bins,
+					Math.max(n+chunk.length, bins.length+(bins.length>>1)));
+		}
+		System.arraycopy(chunk, 0, bins, n, chunk.length);
+		for (final int b:chunk){
+			if (b>0){
+				counts[b-1]++;
+			} else {
+				offScale++;
+			}
+		}
+		n+=chunk.length;
+	}
+
+	/**
+	 * The nearest grid point rounding half up as interp2 does.
+	 */
+	private int bin(final double x, final double y){
+		if (!(x>=minX && x<=maxX && y>=minY && y<=maxY)){
+			return 0;
+		}
+		final int last=M-1;
+		return Math.min((int)((x-minX)/deltaX+.5), last)
+				+Math.min((int)((y-minY)/deltaY+.5), last)*M+1;
+	}
+
+	/**
+	 * Labels the grid from Dbm's pointers as dbm() in Density.m does:
+	 * positive pointers are followed to their dummy state, the dummy
+	 * states of grid points with events are numbered 1 to k in ascending
+	 * order and everything else is 0.
+	 *
+	 * @param pointers Dbm.pointers after fixClusterTear
+	 * @return the number of clusters k
+	 */
+	public int label(final int []pointers){
+		final int MM=M*M;
+		final int []resolved=new int[MM];
+		IntStream.range(0, M).parallel().forEach(col->{
+			final int end=(col+1)*M;
+			for (int v=col*M;v<end;v++){
+				int p=pointers[v];
+				for (int hops=0;p>0;hops++){
+					if (hops>MM){
+						throw new IllegalStateException(
+								"Pointers loop from gridpoint "+(v+1));
+					}
+					p=pointers[p-1];
+				}
+				resolved[v]=p==-1?0:p;
+			}
+		});
+		int []ids=new int[MM];
+		int nIds=0;
+		for (int v=0;v<MM;v++){
+			if (counts[v]>0 && resolved[v]!=0){
+				ids[nIds++]=resolved[v];
+			}
+		}
+		ids=java.util.Arrays.copyOf(ids, nIds);
+		java.util.Arrays.sort(ids);
+		numClusters=0;
+		for (int i=0;i<nIds;i++){
+			if (i==0 || ids[i]!=ids[i-1]){
+				ids[numClusters++]=ids[i];
+			}
+		}
+		final int []clusters=java.util.Arrays.copyOf(ids, numClusters);
+		labels=new int[MM];
+		IntStream.range(0, M).parallel().forEach(col->{
+			final int end=(col+1)*M;
+			for (int v=col*M;v<end;v++){
+				final int id=resolved[v];
+				if (id!=0){
+					final int k=java.util.Arrays.binarySearch(clusters, id);
+					labels[v]=k<0?0:k+1;
+				}
+			}
+		});
+		return numClusters;
+	}
+
+	public int getNumClusters(){
+		return numClusters;
+	}
+
+	/**
+	 * @return the pointers labeled 1 to k as Density.pointers, x fastest
+	 */
+	public int []getPointers(){
+		return labels;
+	}
+
+	/**
+	 * @return the labels of the grid points with events and 0 elsewhere
+	 * as computePointersWithEvents() gives
+	 */
+	public int []getPointersWithEvents(){
+		final int []withEvents=new int[M*M];
+		for (int v=0;v<withEvents.length;v++){
+			if (counts[v]>0){
+				withEvents[v]=labels[v];
+			}
+		}
+		return withEvents;
+	}
+
+	/**
+	 * @return the bins of every event added
+	 */
+	public int []getBins(){
+		return java.util.Arrays.copyOf(bins, n);
+	}
+
+	/**
+	 * @return the cluster of every event added, 0 for background and off
+	 * scale
+	 */
+	public int []getClusterIds(){
+		return getClusterIds(0, n);
+	}
+
+	/**
+	 * @return the cluster of the events added from to to, for example of
+	 * the last chunk streamed in
+	 */
+	public int []getClusterIds(final int from, final int to){
+		if (labels==null){
+			throw new IllegalStateException("label(pointers) first");
+		}
+		final int N=to-from;
+		final int []clusterIds=new int[N];
+		IntStream.range(0, parts(N)).parallel().forEach(part->{
+			final int end=end(N, part);
+			for (int i=start(N, part);i<end;i++){
+				final int b=bins[from+i];
+				clusterIds[i]=b>0?labels[b-1]:0;
+			}
+		});
+		return clusterIds;
+	}
+
+	/**
+	 * @return events in each grid point, x fastest
+	 */
+	public int []getCounts(){
+		return counts;
+	}
+
+	/**
+	 * @return events added including those off scale
+	 */
+	public int getN(){
+		return n;
+	}
+
+	public int getOffScale(){
+		return offScale;
+	}
+
+	public void clear(){
+		java.util.Arrays.fill(counts, 0);
+		n=0;
+		offScale=0;
+		labels=null;
+		numClusters=0;
+	}
+
+	private static int parts(final int N){
+		return Math.max(1, Math.min(
+				Runtime.getRuntime().availableProcessors(), N/MIN_EVENTS_PER_PART));
+	}
+
+	private static int start(final int N, final int part){
+		return (int)((long)N*part/parts(N));
+	}
+
+	private static int end(final int N, final int part){
+		return (int)((long)N*(part+1)/parts(N));
+	}
+
+	/**
+	 * The eventBinIdxs interp2 gives in the Density constructor, in one
+	 * call.
+	 */
+	public static int []ToBins(final int M, final double []mins,
+			final double []maxs, final double []x, final double []y){
+		return new EventBins(M, mins, maxs).add(x, y);
+	}
+}
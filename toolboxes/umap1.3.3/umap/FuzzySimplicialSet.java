@@ -0,0 +1,342 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.stream.IntStream;
+
+/*
+ * Java port of compute_membership_strengths.m plus the fuzzy union in
+ * fuzzy_simplicial_set.m.  The kNN arrays go straight to a symmetric
+ * sparse graph in compressed sparse row (CSR) form without building the
+ * COO rows/cols/vals, A', A.*A' temporaries of MATLAB's sparse path.
+ *
+ * Row i's columns are colIdx[rowPtr[i]] ... colIdx[rowPtr[i+1]-1] in
+ * ascending order with the membership strengths at the same positions
+ * in vals.  Indices are 0 based; the MATLAB facing methods
+ * convert to 1 based.
+ */
+public class FuzzySimplicialSet {
+	public final int n;
+	public final int []rowPtr;
+	public final int []colIdx;
+	public final double []vals;
+
+	public FuzzySimplicialSet(final int n, final int []rowPtr, final int []colIdx,
+			final double []vals){
+		this.n=n;
+		this.rowPtr=rowPtr;
+		this.colIdx=colIdx;
+		this.vals=vals;
+	}
+
+	/**
+	 * MATLAB entry point; knn_indices are 1 based with -1 marking a
+	 * failed neighbor search just as nearest_neighbors.m returns them.
+	 */
+	public FuzzySimplicialSet(final double [][]knn_indices, final double [][]knn_dists,
+			final double []sigmas, final double []rhos, final boolean same_set,
+			final double set_op_mix_ratio){
+		this(Build(flatIndices(knn_indices), flat(knn_dists), knn_indices.length,
+				knn_indices.length>0?knn_indices[0].length:0, sigmas, rhos,
+				same_set, set_op_mix_ratio));
+	}
+
+	private FuzzySimplicialSet(final FuzzySimplicialSet built){
+		this(built.n, built.rowPtr, built.colIdx, built.vals);
+	}
+
+	/**
+	 * Builds the symmetric fuzzy graph
+	 * set_op_mix_ratio*(A+A'-A.*A') + (1-set_op_mix_ratio)*A.*A'
+	 * where A holds the membership strengths of each point's kNN.
+	 *
+	 * @param knnIndices row major n x k, 0 based, -1 for a failed neighbor
+	 * @param knnDists row major n x k
+	 */
+	public static FuzzySimplicialSet Build(final int []knnIndices,
+			final double []knnDists, final int n, final int k,
+			final double []sigmas, final double []rhos, final boolean same_set,
+			final double set_op_mix_ratio){
+		final FuzzySimplicialSet a=MembershipStrengths(knnIndices, knnDists, n, k,
+				sigmas, rhos, same_set);
+		return a.union(a.transpose(), set_op_mix_ratio);
+	}
+
+	/**
+	 * The directed graph of compute_membership_strengths.m with each row's
+	 * columns sorted, duplicates summed and zero strengths dropped
+	 * (as MATLAB's sparse function does).
+	 */
+	public static FuzzySimplicialSet MembershipStrengths(final int []knnIndices,
+			final double []knnDists, final int n, final int k,
+			final double []sigmas, final double []rhos, final boolean same_set){
+		final int []rowPtr=new int[n+1];
+		final int []cols=new int[n*k];
+		final double []strengths=new double[n*k];
+		final int []counts=new int[n];
+		IntStream.range(0, n).parallel().forEach(row->{
+			final int start=row*k;
+			int cnt=0;
+			for (int j=0;j<k;j++){
+				final int col=knnIndices[start+j];
+				if (col<0 || (same_set && col==row)){
+					continue;
+				}
+				final double d=knnDists[start+j]-rhos[row];
+				final double v=d>0?Math.exp(-d/sigmas[row]):1;
+				if (v==0){
+					continue;
+				}
+				// insertion sort by column, k is small
+				int at=start+cnt;
+				while (at>start && cols[at-1]>col){
+					cols[at]=cols[at-1];
+					strengths[at]=strengths[at-1];
+					at--;
+				}
+				if (at>start && cols[at-1]==col){
+					strengths[at-1]+=v;
+					for (int m=at;m<start+cnt;m++){
+						cols[m]=cols[m+1];
+						strengths[m]=strengths[m+1];
+					}
+					continue;
+				}
+				cols[at]=col;
+				strengths[at]=v;
+				cnt++;
+			}
+			counts[row]=cnt;
+		});
+		for (int row=0;row<n;row++){
+			rowPtr[row+1]=rowPtr[row]+counts[row];
+		}
+		final int []colIdx=new int[rowPtr[n]];
+		final double []vals=new double[rowPtr[n]];
+		IntStream.range(0, n).parallel().forEach(row->{
+			System.arraycopy(cols, row*k, colIdx, rowPtr[row], counts[row]);
+			System.arraycopy(strengths, row*k, vals, rowPtr[row], counts[row]);
+		});
+		return new FuzzySimplicialSet(n, rowPtr, colIdx, vals);
+	}
+
+	public FuzzySimplicialSet transpose(){
+		final int nnz=rowPtr[n];
+		final int []tRowPtr=new int[n+1];
+		for (int e=0;e<nnz;e++){
+			tRowPtr[colIdx[e]+1]++;
+		}
+		for (int row=0;row<n;row++){
+			tRowPtr[row+1]+=tRowPtr[row];
+		}
+		final int []next=new int[n];
+		System.arraycopy(tRowPtr, 0, next, 0, n);
+		final int []tColIdx=new int[nnz];
+		final double []tVals=new double[nnz];
+		// rows visited in ascending order keep each transposed row sorted
+		for (int row=0;row<n;row++){
+			for (int e=rowPtr[row];e<rowPtr[row+1];e++){
+				final int at=next[colIdx[e]]++;
+				tColIdx[at]=row;
+				tVals[at]=vals[e];
+			}
+		}
+		return new FuzzySimplicialSet(n, tRowPtr, tColIdx, tVals);
+	}
+
+	/**
+	 * @param t this graph's transpose
+	 */
+	FuzzySimplicialSet union(final FuzzySimplicialSet t, final double set_op_mix_ratio){
+		final int []counts=new int[n];
+		IntStream.range(0, n).parallel().forEach(row->{
+			counts[row]=mergeRow(t, row, set_op_mix_ratio, null, null, 0);
+		});
+		final int []uRowPtr=new int[n+1];
+		for (int row=0;row<n;row++){
+			uRowPtr[row+1]=uRowPtr[row]+counts[row];
+		}
+		final int []uColIdx=new int[uRowPtr[n]];
+		final double []uVals=new double[uRowPtr[n]];
+		IntStream.range(0, n).parallel().forEach(row->{
+			mergeRow(t, row, set_op_mix_ratio, uColIdx, uVals, uRowPtr[row]);
+		});
+		return new FuzzySimplicialSet(n, uRowPtr, uColIdx, uVals);
+	}
+
+	private int mergeRow(final FuzzySimplicialSet t, final int row,
+			final double mix, final int []outCols, final double []outVals,
+			final int outStart){
+		int e1=rowPtr[row], e2=t.rowPtr[row], out=outStart;
+		final int end1=rowPtr[row+1], end2=t.rowPtr[row+1];
+		while (e1<end1 || e2<end2){
+			final int c1=e1<end1?colIdx[e1]:Integer.MAX_VALUE,
+					c2=e2<end2?t.colIdx[e2]:Integer.MAX_VALUE;
+			final int col;
+			double a=0, b=0;
+			if (c1<=c2){
+				col=c1;
+				a=vals[e1++];
+			} else {
+				col=c2;
+			}
+			if (c2==col){
+				b=t.vals[e2++];
+			}
+			final double product=a*b;
+			final double v=mix*(a+b-product)+(1-mix)*product;
+			if (v!=0){
+				if (outCols!=null){
+					outCols[out]=col;
+					outVals[out]=v;
+				}
+				out++;
+			}
+		}
+		return out-outStart;
+	}
+
+	/**
+	 * MATLAB entry point for [rows, cols, vals]=find(graph); find's column
+	 * major order leaves each row's columns ascending after the stable
+	 * counting sort by row.
+	 */
+	public static FuzzySimplicialSet FromCoo(final double []rows, final double []cols,
+			final double []vals, final int n){
+		final int nnz=vals.length;
+		final int []rowPtr=new int[n+1];
+		for (int e=0;e<nnz;e++){
+			rowPtr[(int)rows[e]]++;
+		}
+		for (int row=0;row<n;row++){
+			rowPtr[row+1]+=rowPtr[row];
+		}
+		final int []next=new int[n];
+		System.arraycopy(rowPtr, 0, next, 0, n);
+		final int []colIdx=new int[nnz];
+		final double []v=new double[nnz];
+		for (int e=0;e<nnz;e++){
+			final int at=next[(int)rows[e]-1]++;
+			colIdx[at]=(int)cols[e]-1;
+			v[at]=vals[e];
+		}
+		return new FuzzySimplicialSet(n, rowPtr, colIdx, v);
+	}
+
+	public int nnz(){
+		return rowPtr[n];
+	}
+
+	public double max(){
+		double max=0;
+		for (int e=0;e<vals.length;e++){
+			if (vals[e]>max){
+				max=vals[e];
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Zeroes strengths below minimum as remove_sparse.m does.
+	 */
+	public FuzzySimplicialSet removeBelow(final double minimum){
+		final int []pRowPtr=new int[n+1];
+		for (int row=0;row<n;row++){
+			int cnt=0;
+			for (int e=rowPtr[row];e<rowPtr[row+1];e++){
+				if (vals[e]>=minimum){
+					cnt++;
+				}
+			}
+			pRowPtr[row+1]=pRowPtr[row]+cnt;
+		}
+		final int []pColIdx=new int[pRowPtr[n]];
+		final double []pVals=new double[pRowPtr[n]];
+		int out=0;
+		for (int e=0;e<vals.length;e++){
+			if (vals[e]>=minimum){
+				pColIdx[out]=colIdx[e];
+				pVals[out++]=vals[e];
+			}
+		}
+		return new FuzzySimplicialSet(n, pRowPtr, pColIdx, pVals);
+	}
+
+	/**
+	 * The arguments StochasticGradientDescent needs, in the order of
+	 * MATLAB's [head, tail, graph_data]=find(graph) on this symmetric
+	 * graph.  head and tail are 1 based.
+	 */
+	public static class Edges{
+		public final int []head, tail;
+		public final double []weights, epochs_per_sample;
+
+		Edges(final FuzzySimplicialSet graph){
+			final int nnz=graph.nnz();
+			head=new int[nnz];
+			tail=new int[nnz];
+			weights=new double[nnz];
+			epochs_per_sample=new double[nnz];
+			final double max=graph.max();
+			IntStream.range(0, graph.n).parallel().forEach(col->{
+				for (int e=graph.rowPtr[col];e<graph.rowPtr[col+1];e++){
+					head[e]=graph.colIdx[e]+1;
+					tail[e]=col+1;
+					final double w=graph.vals[e];
+					weights[e]=w;
+					epochs_per_sample[e]=w>0?max/w:-1;
+				}
+			});
+		}
+	}
+
+	public Edges getEdges(){
+		return new Edges(this);
+	}
+
+	/**
+	 * 1 based row, col, val triplets for MATLAB's sparse function.
+	 */
+	public double [][]toCoo(){
+		final int nnz=nnz();
+		final double [][]coo=new double[3][nnz];
+		IntStream.range(0, n).parallel().forEach(row->{
+			for (int e=rowPtr[row];e<rowPtr[row+1];e++){
+				coo[0][e]=row+1;
+				coo[1][e]=colIdx[e]+1;
+				coo[2][e]=vals[e];
+			}
+		});
+		return coo;
+	}
+
+	static int []flatIndices(final double [][]in){
+		final int rows=in.length;
+		final int cols=rows>0?in[0].length:0;
+		final int []out=new int[rows*cols];
+		for (int row=0;row<rows;row++){
+			for (int col=0;col<cols;col++){
+				final double v=in[row][col];
+				out[row*cols+col]=v<1?-1:(int)v-1;
+			}
+		}
+		return out;
+	}
+
+	static double []flat(final double [][]in){
+		final int rows=in.length;
+		final int cols=rows>0?in[0].length:0;
+		final double []out=new double[rows*cols];
+		for (int row=0;row<rows;row++){
+			System.arraycopy(in[row], 0, out, row*cols, cols);
+		}
+		return out;
+	}
+}
@@ -9,16 +9,312 @@
 package edu.stanford.facs.swing;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.TreeSet;
+import java.util.stream.IntStream;
 
+/*
+ * The edge of the grid cluster with 1 based bins bi: the bins on the
+ * grid's border or with a neighbor among their 8 that is not in bi.
+ * computeAll() gives every edge bin, compute() the outermost edge bin of
+ * each grid row and column.
+ *
+ * Membership is a long[] bitset of the M*M bins (bin b is bit b-1, x
+ * varies fastest) and a word of edge bits is the word of members less
+ * those whose 8 neighbors are all members: the AND of the bitset read at
+ * the 8 neighbor offsets 1, M-1, M and M+1 either way.  The bitsets and
+ * work arrays are kept for the next call so one GridClusterEdge can draw
+ * the borders of many clusters without garbage; only the words spanning
+ * the cluster's rows are touched.
+ *
+ * computeAllClusters() gives computeAll() of every cluster of a label
+ * grid from one sweep over the grid, in parallel by rows, so drawing all
+ * borders costs the same for 5 clusters as for 50.
+ */
 public class GridClusterEdge {
-	private final int M;
+	public final int M;
+	public boolean []edge=null;
+	public int []edgeBins;
+	public double []x,y;
+	// computeAllClusters(): the labels and where each one's edges start
+	public int []ids, starts;
+	private final int words;
+	// bins 1<x<M and 1<y<M
+	private final long []inner;
+	private final long []member;
+	private final int []offsets;
+	// edge bins 0 based ascending, the x and y of compute()'s picks
+	private int []edges=new int[64], xL=new int[64], yL=new int[64];
+	private int nEdges;
+	// extreme edge y of each x and x of each y, 1 based and 0 for none
+	private final int []minY, maxY, minX, maxX;
+	// computeAllClusters(): edge flags by bin and edge counts by label
+	private boolean []isEdge;
+	private int []counts=new int[0];
+
 	public GridClusterEdge(final int M){
 		this.M=M;
+		final int MM=M*M;
+		words=(MM+63)/64;
+		inner=new long[words];
+		member=new long[words];
+		for (int y=1;y<M-1;y++){
+			for (int x=1;x<M-1;x++){
+				final int v=x+y*M;
+				inner[v>>>6]|=1L<<v;
+			}
+		}
+		offsets=new int[]{-M-1, -M, -M+1, -1, 1, M-1, M, M+1};
+		minY=new int[M+1];
+		maxY=new int[M+1];
+		minX=new int[M+1];
+		maxX=new int[M+1];
 	}
+
+	/**
+	 * @return the 64 membership bits from bit position start on
+	 */
+	private long bits(final long start){
+		final long word=Math.floorDiv(start, 64);
+		final int shift=Math.floorMod(start, 64);
+		final long low=word>=0 && word<words?member[(int)word]:0;
+		if (shift==0){
+			return low;
+		}
+		final long high=word+1>=0 && word+1<words?member[(int)word+1]:0;
+		return (low>>>shift)|(high<<(64-shift));
+	}
+
+	/**
+	 * Puts the 0 based edge bins of bi in edges ascending.
+	 */
+	private void findEdges(final int []bi){
+		final int N=bi.length;
+		int first=Integer.MAX_VALUE, last=-1;
+		for (int i=0;i<N;i++){
+			final int v=bi[i]-1;
+			member[v>>>6]|=1L<<v;
+			if (v<first){
+				first=v;
+			}
+			if (v>last){
+				last=v;
+			}
+		}
+		nEdges=0;
+		if (last<0){
+			return;
+		}
+		final int fromWord=first>>>6, toWord=last>>>6;
+		for (int w=fromWord;w<=toWord;w++){
+			final long members=member[w];
+			if (members==0){
+				continue;
+			}
+			long interior=members&inner[w];
+			final long at=(long)w*64;
+			for (int k=0;k<offsets.length && interior!=0;k++){
+				interior&=bits(at+offsets[k]);
+			}
+			long edge=members&~interior;
+			while (edge!=0){
+				if (nEdges==edges.length){
+					edges=java.util.Arrays.copyOf(edges, nEdges*2);
+				}
+				edges[nEdges++]=w*64+Long.numberOfTrailingZeros(edge);
+				edge&=edge-1;
+			}
+		}
+		java.util.Arrays.fill(member, fromWord, toWord+1, 0);
+	}
+
+	/**
+	 * Sets edgeBins, x and y to every edge bin ascending.
+	 */
 	public void computeAll(final int []bi, final double[]mins, final double[]deltas){
+		findEdges(bi);
+		edgeBins=new int[nEdges];
+		x=new double[nEdges];
+		y=new double[nEdges];
+		for (int i=0;i<nEdges;i++){
+			final int v=edges[i];
+			edgeBins[i]=v+1;
+			x[i]=mins[0]+v%M*deltas[0];
+			y[i]=mins[1]+v/M*deltas[1];
+		}
+	}
+
+	/**
+	 * computeAll() for the bins of every label above 0 in pointers, the
+	 * M*M labels of the grid's bins in bin order (Density's pointers once
+	 * clustered).  A bin is an edge of its cluster when it is on the grid's
+	 * border or a neighbor among its 8 has another label.
+	 *
+	 * Sets ids to the labels found ascending and starts to their offsets
+	 * into edgeBins, x and y: the edges of label ids[i] are at 0 based
+	 * starts[i] to starts[i+1]-1, ascending by bin.
+	 */
+	public void computeAllClusters(final int []pointers, final double[]mins,
+			final double[]deltas){
+		final int MM=M*M;
+		if (isEdge==null){
+			isEdge=new boolean[MM];
+		}
+		int maxLabel=0;
+		for (int v=0;v<MM;v++){
+			if (pointers[v]>maxLabel){
+				maxLabel=pointers[v];
+			}
+		}
+		if (counts.length<maxLabel+2){
+			counts=new int[maxLabel+2];
+		} else {
+			java.util.Arrays.fill(counts, 0);
+		}
+		IntStream.range(0, M).parallel().forEach(row->{
+			for (int col=0, v=row*M;col<M;col++, v++){
+				final int label=pointers[v];
+				boolean edge=label>0;
+				if (edge && row>0 && row<M-1 && col>0 && col<M-1){
+					edge=false;
+					for (int k=0;k<offsets.length;k++){
+						if (pointers[v+offsets[k]]!=label){
+							edge=true;
+							break;
+						}
+					}
+				}
+				isEdge[v]=edge;
+			}
+		});
+		for (int v=0;v<MM;v++){
+			if (isEdge[v]){
+				counts[pointers[v]+1]++;
+			}
+		}
+		int nIds=0;
+		for (int label=1;label<=maxLabel;label++){
+			if (counts[label+1]>0){
+				nIds++;
+			}
+		}
+		ids=new int[nIds];
+		starts=new int[nIds+1];
+		nIds=0;
+		for (int label=1;label<=maxLabel;label++){
+			if (counts[label+1]>0){
+				ids[nIds]=label;
+				starts[nIds+1]=starts[nIds]+counts[label+1];
+				nIds++;
+			}
+			// now where the label's next edge goes
+			counts[label+1]=counts[label]+counts[label+1];
+		}
+		final int N=nIds==0?0:starts[nIds];
+		edgeBins=new int[N];
+		x=new double[N];
+		y=new double[N];
+		for (int v=0;v<MM;v++){
+			if (isEdge[v]){
+				final int i=counts[pointers[v]]++;
+				edgeBins[i]=v+1;
+				x[i]=mins[0]+v%M*deltas[0];
+				y[i]=mins[1]+v/M*deltas[1];
+			}
+		}
+	}
+
+	/**
+	 * Sets x and y to the edge bins with the least and greatest y of each
+	 * x ascending, then those with the least and greatest x of each y
+	 * ascending that are not already in.  With outputBins edgeBins are
+	 * those bins ascending and x and y are in their order, otherwise
+	 * edgeBins is empty and without mins or deltas x and y are the 1 based
+	 * grid positions.
+	 */
+	public void compute(final int []bi, final boolean outputBins, final double[]mins, final double[]deltas){
+		findEdges(bi);
+		java.util.Arrays.fill(minY, 0);
+		java.util.Arrays.fill(maxY, 0);
+		java.util.Arrays.fill(minX, 0);
+		java.util.Arrays.fill(maxX, 0);
+		// edges ascend by y then x
+		for (int i=0;i<nEdges;i++){
+			final int v=edges[i], ex=v%M+1, ey=v/M+1;
+			if (minY[ex]==0){
+				minY[ex]=ey;
+			}
+			maxY[ex]=ey;
+			if (minX[ey]==0){
+				minX[ey]=ex;
+			}
+			maxX[ey]=ex;
+		}
+		int N2=0;
+		if (xL.length<4*M){
+			xL=new int[4*M];
+			yL=new int[4*M];
+		}
+		for (int ex=1;ex<=M;ex++){
+			if (minY[ex]>0){
+				xL[N2]=ex;
+				yL[N2++]=minY[ex];
+				if (maxY[ex]>minY[ex]){
+					xL[N2]=ex;
+					yL[N2++]=maxY[ex];
+				}
+			}
+		}
+		for (int ey=1;ey<=M;ey++){
+			final int topX=minX[ey], bottomX=maxX[ey];
+			if (topX>0){
+				if (ey!=minY[topX] && ey!=maxY[topX]){
+					xL[N2]=topX;
+					yL[N2++]=ey;
+				}
+				if (bottomX>topX && ey!=minY[bottomX] && ey!=maxY[bottomX]){
+					xL[N2]=bottomX;
+					yL[N2++]=ey;
+				}
+			}
+		}
+		x=new double[N2];
+		y=new double[N2];
+		if (outputBins){
+			edgeBins=new int[N2];
+			for (int i=0;i<N2;i++){
+				edgeBins[i]=(yL[i]-1)*M+xL[i];
+			}
+			java.util.Arrays.sort(edgeBins);
+			for (int i=0;i<N2;i++){
+				final int b=edgeBins[i];
+				x[i]=mins[0]+(b-1)%M*deltas[0];
+				y[i]=mins[1]+(b-1)/M*deltas[1];
+			}
+		} else {
+			edgeBins=new int[0];
+			if (mins == null || deltas==null){
+				for (int i=0;i<N2;i++){
+					x[i]=xL[i];
+					y[i]=yL[i];
+				}
+			}else{
+				for (int i=0;i<N2;i++){
+					x[i]=mins[0]+(xL[i]-1)*deltas[0];
+					y[i]=mins[1]+(yL[i]-1)*deltas[1];
+				}
+			}
+		}
+	}
+
+	/**
+	 * The original computeAll() with a boolean grid and boxed sets, Test
+	 * checks computeAll() against it.
+	 */
+	public void computeAllByTreeSets(final int []bi, final double[]mins, final double[]deltas){
 		final boolean []matrix=new boolean[M*M+2];
 		final int N=bi.length;
 		for (int i=0;i<N;i++){
@@ -85,10 +381,11 @@ public class GridClusterEdge {
 		}
 		
 	}
-	public boolean []edge=null;
-	public int []edgeBins;
-	public double []x,y;
-	public void compute(final int []bi, final boolean outputBins, final double[]mins, final double[]deltas){
+	/**
+	 * The original compute() with boolean grids and boxed sets, Test checks
+	 * compute() against it.
+	 */
+	public void computeByTreeSets(final int []bi, final boolean outputBins, final double[]mins, final double[]deltas){
 		final boolean []matrix=new boolean[M*M+2];
 		final int N=bi.length;
 		for (int i=0;i<N;i++){
@@ -222,5 +519,150 @@ public class GridClusterEdge {
 		}
 	}
 
+	public static void main(final String []args){
+		Test.go(args);
+	}
 
+	/*
+	 * Checks compute() and computeAll() against computeByTreeSets() and
+	 * computeAllByTreeSets() on random blobs of bins, and each label's
+	 * edges from computeAllClusters() against computeAll() of its bins.
+	 */
+	private static class Test{
+		static void go(final String []args){
+			final Random r=new Random(args.length>0?Long.parseLong(args[0]):5);
+			final double []mins={-1, 2}, deltas={.1, .3};
+			int bad=0, n=0;
+			for (final int M:new int[]{3, 7, 64, 65, 127, 256}){
+				final GridClusterEdge edge=new GridClusterEdge(M),
+						original=new GridClusterEdge(M);
+				for (int t=0;t<60;t++){
+					final int []bi=blob(M, r);
+					if (bi.length==0){
+						continue;
+					}
+					edge.computeAll(bi, mins, deltas);
+					original.computeAllByTreeSets(bi, mins, deltas);
+					n++;
+					if (!same(edge, original)){
+						System.out.println("computeAll differs for M="+M);
+						bad++;
+					}
+					for (int o=0;o<3;o++){
+						final boolean outputBins=o==1;
+						edge.compute(bi, outputBins, o==2?null:mins, deltas);
+						original.computeByTreeSets(bi, outputBins, o==2?null:mins, deltas);
+						n++;
+						if (!same(edge, original)){
+							System.out.println("compute differs for M="+M
+									+", outputBins="+outputBins);
+							bad++;
+						}
+					}
+				}
+			}
+			System.out.println(bad+" of "+n+" edges differ");
+			bad=0;
+			n=0;
+			for (final int M:new int[]{4, 33, 128, 512}){
+				final GridClusterEdge all=new GridClusterEdge(M),
+						one=new GridClusterEdge(M);
+				for (int t=0;t<5;t++){
+					final int K=1+r.nextInt(60);
+					final int []pointers=labels(M, K, r);
+					all.computeAllClusters(pointers, mins, deltas);
+					for (int label=1;label<=K;label++){
+						int size=0;
+						for (final int p:pointers){
+							if (p==label){
+								size++;
+							}
+						}
+						final int []bi=new int[size];
+						size=0;
+						for (int v=0;v<pointers.length;v++){
+							if (pointers[v]==label){
+								bi[size++]=v+1;
+							}
+						}
+						final int i=java.util.Arrays.binarySearch(all.ids, label);
+						if (size==0){
+							if (i>=0){
+								bad++;
+							}
+							continue;
+						}
+						one.computeAll(bi, mins, deltas);
+						n++;
+						if (i<0 || !java.util.Arrays.equals(one.edgeBins, java.util.Arrays
+								.copyOfRange(all.edgeBins, all.starts[i], all.starts[i+1]))
+								|| !java.util.Arrays.equals(one.x, java.util.Arrays
+										.copyOfRange(all.x, all.starts[i], all.starts[i+1]))
+								|| !java.util.Arrays.equals(one.y, java.util.Arrays
+										.copyOfRange(all.y, all.starts[i], all.starts[i+1]))){
+							System.out.println("computeAllClusters differs for M="+M
+									+", label "+label);
+							bad++;
+						}
+					}
+				}
+			}
+			System.out.println(bad+" of "+n+" clusters' edges differ");
+		}
+
+		/**
+		 * @return M*M labels 1 to K of random discs, the rest 0 or -1
+		 */
+		static int []labels(final int M, final int K, final Random r){
+			final double [][]discs=new double[K][];
+			for (int k=0;k<K;k++){
+				discs[k]=new double[]{r.nextDouble()*M, r.nextDouble()*M,
+						2+r.nextDouble()*M/4};
+			}
+			final int []pointers=new int[M*M];
+			for (int v=0;v<pointers.length;v++){
+				double nearest=1;
+				for (int k=0;k<K;k++){
+					final double d=Math.hypot(v%M-discs[k][0], v/M-discs[k][1])
+							/discs[k][2];
+					if (d<nearest){
+						nearest=d;
+						pointers[v]=k+1;
+					}
+				}
+				if (pointers[v]==0 && r.nextDouble()<.3){
+					pointers[v]=-1;
+				}
+			}
+			return pointers;
+		}
+
+		/**
+		 * @return the 1 based bins of a wavy disc with some strays, shuffled
+		 */
+		static int []blob(final int M, final Random r){
+			final double cx=r.nextDouble()*M, cy=r.nextDouble()*M,
+					radius=1+r.nextDouble()*M/3;
+			final List<Integer>bins=new ArrayList<>();
+			for (int v=0;v<M*M;v++){
+				final int x=v%M, y=v/M;
+				if (Math.hypot(x-cx, y-cy)<radius*(.7+.3*Math.sin(x*.7+y*.3))
+						|| r.nextDouble()<.01){
+					bins.add(v+1);
+				}
+			}
+			Collections.shuffle(bins, r);
+			final int []bi=new int[bins.size()];
+			for (int i=0;i<bi.length;i++){
+				bi[i]=bins.get(i);
+			}
+			return bi;
+		}
+
+		static boolean same(final GridClusterEdge a, final GridClusterEdge b){
+			return java.util.Arrays.equals(a.edgeBins, b.edgeBins)
+					&& java.util.Arrays.equals(a.x, b.x)
+					&& java.util.Arrays.equals(a.y, b.y);
+		}
+	}
 }
@@ -0,0 +1,415 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+/*
+ * Marching squares over the M*M grid of Density (bin order, x varies
+ * fastest) giving closed, ordered polygons ready to plot: the iso lines
+ * of a density grid at contour levels (as MATLAB's contour draws them)
+ * and the borders of the clusters of a label grid (the clusters' bins as
+ * areas, 8-connected like Dbm's).
+ *
+ * The grid is padded with one ring of nodes outside every level and every
+ * label so each polygon closes.  Each cell crossed by a contour adds its
+ * segments from one crossed edge to another with the inside on the left,
+ * so outer borders run counterclockwise and holes clockwise.  Every
+ * crossing is where one segment ends and the next starts, so the
+ * polygons are traced by following next[] from edge to edge.  Vertices
+ * within tolerance grid units of the line through their neighbors are
+ * dropped (Douglas-Peucker).
+ *
+ * x and y hold the polygons with the first vertex repeated at the end and
+ * a NaN after each, so one plot() call draws them all.  The polygons are
+ * grouped by ids ascending (level numbers or cluster labels); the
+ * polygons of ids[i] are x(starts[i]+1:starts[i+1]) in MATLAB and
+ * holes[k] says whether polygon k (in x and y order) is a hole.
+ */
+public class GridContours {
+	public final int M;
+	// grid units, 0 keeps every crossing
+	public double tolerance=0.25;
+	public double []x, y;
+	public int []ids, starts;
+	public boolean []holes;
+
+	// padded grid of P*P nodes, node (i,j) is bin (i-1,j-1)
+	private final int P;
+	// crossing ids: (2*node+vertical)*2+side, side 1 for the contour of
+	// the label of the edge's upper node
+	private final int []next, owner;
+	private double []levelGrid;
+	private int []labelGrid;
+	private double level;
+	// polygons as they are traced
+	private double []px=new double[256], py=new double[256];
+	private int []polygonStarts=new int[16], polygonIds=new int[16];
+	private int nPoints, nPolygons;
+	private double []ringX=new double[64], ringY=new double[64];
+	private int []stack=new int[64];
+	private boolean []keep=new boolean[64];
+
+	public GridContours(final int M){
+		this.M=M;
+		P=M+2;
+		next=new int[4*P*P];
+		owner=new int[4*P*P];
+		java.util.Arrays.fill(next, -1);
+	}
+
+	/**
+	 * Iso lines of the density z (M*M in bin order) at each of levels,
+	 * ids are the 1 based level numbers.  A bin is inside a level when its
+	 * density exceeds it; crossings are interpolated linearly and the grid
+	 * border closes the polygons that reach it.
+	 */
+	public void traceLevels(final double []z, final double []levels,
+			final double []mins, final double []deltas){
+		levelGrid=z;
+		labelGrid=null;
+		start();
+		for (int k=0;k<levels.length;k++){
+			level=levels[k];
+			for (int j=0;j<P-1;j++){
+				for (int i=0;i<P-1;i++){
+					levelCell(i, j, k+1);
+				}
+			}
+			trace();
+		}
+		finish(mins, deltas);
+	}
+
+	/**
+	 * The borders of every label above 0 in pointers (M*M in bin order,
+	 * Density's pointers once clustered) from one sweep, ids are the
+	 * labels.  Borders run midway between a cluster's bins and the others.
+	 */
+	public void traceClusters(final int []pointers, final double []mins,
+			final double []deltas){
+		labelGrid=pointers;
+		levelGrid=null;
+		start();
+		for (int j=0;j<P-1;j++){
+			for (int i=0;i<P-1;i++){
+				labelCell(i, j);
+			}
+		}
+		trace();
+		finish(mins, deltas);
+	}
+
+	private double value(final int i, final int j){
+		if (i<1 || j<1 || i>M || j>M){
+			return Double.NEGATIVE_INFINITY;
+		}
+		return levelGrid[i-1+(j-1)*M];
+	}
+
+	private int label(final int i, final int j){
+		if (i<1 || j<1 || i>M || j>M){
+			return 0;
+		}
+		return labelGrid[i-1+(j-1)*M];
+	}
+
+	/*
+	 * The cell's corners counterclockwise are a=(i,j), b=(i+1,j),
+	 * c=(i+1,j+1) and d=(i,j+1) and its edges bottom a-b, right b-c, top
+	 * d-c and left a-d.  Going counterclockwise a segment leads from an edge
+	 * crossed inside to outside to one crossed outside to inside.  Of the
+	 * two ways to pair a saddle's edges the center decides: inside joins a
+	 * and c (or b and d).
+	 */
+	private static final int BOTTOM=0, RIGHT=1, TOP=2, LEFT=3;
+	private final int []edges=new int[4];
+
+	private void levelCell(final int i, final int j, final int id){
+		final double a=value(i, j), b=value(i+1, j), c=value(i+1, j+1),
+				d=value(i, j+1);
+		final boolean inA=a>level, inB=b>level, inC=c>level, inD=d>level;
+		if (inA==inB && inB==inC && inC==inD){
+			return;
+		}
+		final boolean center=(a+b+c+d)/4>level;
+		cell(i, j, inA, inB, inC, inD, center, 0, id);
+	}
+
+	private void labelCell(final int i, final int j){
+		final int a=label(i, j), b=label(i+1, j), c=label(i+1, j+1),
+				d=label(i, j+1);
+		if (a==b && b==c && c==d){
+			return;
+		}
+		// 8-connected: a diagonal pair shares the center, a's first
+		final int center=a==c?a:b==d?b:0;
+		for (int k=0;k<4;k++){
+			final int L=k==0?a:k==1?b:k==2?c:d;
+			if (L<=0 || (k>0 && L==a) || (k>1 && L==b) || (k>2 && L==c)){
+				continue;
+			}
+			cell(i, j, a==L, b==L, c==L, d==L, center==L, L, L);
+		}
+	}
+
+	private void cell(final int i, final int j, final boolean inA,
+			final boolean inB, final boolean inC, final boolean inD,
+			final boolean center, final int label, final int id){
+		// whether each edge, counterclockwise, is crossed inside to outside
+		// (1) or outside to inside (-1)
+		final int bottom=inA==inB?0:inA?1:-1, right=inB==inC?0:inB?1:-1,
+				top=inC==inD?0:inC?1:-1, left=inD==inA?0:inD?1:-1;
+		final int []edges=this.edges;
+		edges[BOTTOM]=bottom;
+		edges[RIGHT]=right;
+		edges[TOP]=top;
+		edges[LEFT]=left;
+		int nOut=0;
+		for (final int e:edges){
+			if (e==1){
+				nOut++;
+			}
+		}
+		for (int e=0;e<4;e++){
+			if (edges[e]!=1){
+				continue;
+			}
+			int to;
+			if (nOut==1){
+				to=e;
+				do {
+					to=(to+1)%4;
+				} while (edges[to]!=-1);
+			} else {
+				// saddle: the edge leaves an inside corner, which the center
+				// joins to the next corner's edge or cuts off with the prior
+				to=center?(e+1)%4:(e+3)%4;
+			}
+			final int from=crossing(i, j, e, label), end=crossing(i, j, to, label);
+			next[from]=end;
+			owner[from]=id;
+		}
+	}
+
+	/**
+	 * @return the crossing id of edge e of cell (i,j) for the contour of
+	 * label (0 for levels)
+	 */
+	private int crossing(final int i, final int j, final int e, final int label){
+		final int node, vertical, upper;
+		if (e==BOTTOM){
+			node=i+j*P;
+			vertical=0;
+			upper=labelGrid==null?0:label(i+1, j);
+		} else if (e==RIGHT){
+			node=i+1+j*P;
+			vertical=1;
+			upper=labelGrid==null?0:label(i+1, j+1);
+		} else if (e==TOP){
+			node=i+(j+1)*P;
+			vertical=0;
+			upper=labelGrid==null?0:label(i+1, j+1);
+		} else {
+			node=i+j*P;
+			vertical=1;
+			upper=labelGrid==null?0:label(i, j+1);
+		}
+		final int side=labelGrid!=null && upper==label?1:0;
+		return ((2*node+vertical)<<1)+side;
+	}
+
+	/**
+	 * The crossing's position in grid units, bin (0,0) at 0,0.
+	 */
+	private void position(final int crossing, final double []xy){
+		final int edge=crossing>>>1, node=edge>>>1, i=node%P, j=node/P;
+		final boolean vertical=(edge&1)==1;
+		double t=0.5;
+		if (levelGrid!=null){
+			final double z0=value(i, j), z1=vertical?value(i, j+1):value(i+1, j);
+			if (z0==Double.NEGATIVE_INFINITY){
+				t=1;
+			} else if (z1==Double.NEGATIVE_INFINITY){
+				t=0;
+			} else {
+				t=(level-z0)/(z1-z0);
+			}
+		}
+		xy[0]=i-1+(vertical?0:t);
+		xy[1]=j-1+(vertical?t:0);
+	}
+
+	private void start(){
+		nPoints=0;
+		nPolygons=0;
+	}
+
+	/**
+	 * Follows next[] from every crossing not yet used into polygons.
+	 */
+	private void trace(){
+		final double []xy=new double[2];
+		for (int from=0;from<next.length;from++){
+			if (next[from]<0){
+				continue;
+			}
+			int n=0, at=from;
+			final int id=owner[from];
+			while (next[at]>=0){
+				if (n==ringX.length){
+					ringX=java.util.Arrays.copyOf(ringX, n*2);
+					ringY=java.util.Arrays.copyOf(ringY, n*2);
+				}
+				position(at, xy);
+				ringX[n]=xy[0];
+				ringY[n++]=xy[1];
+				final int to=next[at];
+				next[at]=-1;
+				at=to;
+			}
+			addPolygon(n, id);
+		}
+	}
+
+	private void addPolygon(final int n, final int id){
+		final int kept=simplify(n);
+		if (kept<3){
+			return;
+		}
+		if (nPolygons+1>=polygonStarts.length){
+			polygonStarts=java.util.Arrays.copyOf(polygonStarts, polygonStarts.length*2);
+			polygonIds=java.util.Arrays.copyOf(polygonIds, polygonIds.length*2);
+		}
+		if (nPoints+kept+2>px.length){
+			final int size=Math.max(px.length*2, nPoints+kept+2);
+			px=java.util.Arrays.copyOf(px, size);
+			py=java.util.Arrays.copyOf(py, size);
+		}
+		polygonStarts[nPolygons]=nPoints;
+		polygonIds[nPolygons++]=id;
+		for (int k=0;k<n;k++){
+			if (keep[k]){
+				px[nPoints]=ringX[k];
+				py[nPoints++]=ringY[k];
+			}
+		}
+		px[nPoints]=px[polygonStarts[nPolygons-1]];
+		py[nPoints]=py[polygonStarts[nPolygons-1]];
+		nPoints++;
+		px[nPoints]=Double.NaN;
+		py[nPoints++]=Double.NaN;
+	}
+
+	/**
+	 * Douglas-Peucker on the closed ring ringX/Y[0,n): keeps vertex 0 and
+	 * the vertex furthest from it, then within each span the vertex
+	 * furthest from its chord while that is more than tolerance.
+	 *
+	 * @return vertices kept, flagged in keep
+	 */
+	private int simplify(final int n){
+		if (keep.length<n+1){
+			keep=new boolean[n+1];
+			stack=new int[2*n+2];
+		}
+		if (tolerance<=0 || n<4){
+			java.util.Arrays.fill(keep, 0, n, true);
+			return n;
+		}
+		java.util.Arrays.fill(keep, 0, n, false);
+		int far=0;
+		double farthest=-1;
+		for (int k=1;k<n;k++){
+			final double dx=ringX[k]-ringX[0], dy=ringY[k]-ringY[0],
+					d=dx*dx+dy*dy;
+			if (d>farthest){
+				farthest=d;
+				far=k;
+			}
+		}
+		keep[0]=true;
+		keep[far]=true;
+		int kept=2, top=0;
+		// spans as first, last with last==n meaning vertex 0 again
+		stack[top++]=0;
+		stack[top++]=far;
+		stack[top++]=far;
+		stack[top++]=n;
+		while (top>0){
+			final int last=stack[--top], first=stack[--top];
+			final int l=last%n;
+			final double x0=ringX[first], y0=ringY[first],
+					dx=ringX[l]-x0, dy=ringY[l]-y0, length=Math.hypot(dx, dy);
+			int worst=-1;
+			double max=tolerance;
+			for (int k=first+1;k<last;k++){
+				final double d=length==0?Math.hypot(ringX[k]-x0, ringY[k]-y0)
+						:Math.abs(dx*(ringY[k]-y0)-dy*(ringX[k]-x0))/length;
+				if (d>max){
+					max=d;
+					worst=k;
+				}
+			}
+			if (worst>=0){
+				keep[worst]=true;
+				kept++;
+				if (top+4>stack.length){
+					stack=java.util.Arrays.copyOf(stack, stack.length*2);
+				}
+				stack[top++]=first;
+				stack[top++]=worst;
+				stack[top++]=worst;
+				stack[top++]=last;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Groups the polygons by id, maps them to data units and flags holes.
+	 */
+	private void finish(final double []mins, final double []deltas){
+		final Integer []order=new Integer[nPolygons];
+		for (int k=0;k<nPolygons;k++){
+			order[k]=k;
+		}
+		java.util.Arrays.sort(order, (p, q)->Integer.compare(polygonIds[p], polygonIds[q]));
+		polygonStarts[nPolygons]=nPoints;
+		x=new double[nPoints];
+		y=new double[nPoints];
+		holes=new boolean[nPolygons];
+		int nIds=0;
+		for (int k=0;k<nPolygons;k++){
+			if (k==0 || polygonIds[order[k]]!=polygonIds[order[k-1]]){
+				nIds++;
+			}
+		}
+		ids=new int[nIds];
+		starts=new int[nIds+1];
+		nIds=0;
+		int at=0;
+		for (int k=0;k<nPolygons;k++){
+			final int p=order[k], from=polygonStarts[p], to=polygonStarts[p+1];
+			if (k==0 || polygonIds[p]!=polygonIds[order[k-1]]){
+				ids[nIds]=polygonIds[p];
+				starts[nIds++]=at;
+			}
+			// shoelace over the closed ring, the NaN excluded
+			double area=0;
+			for (int v=from;v<to-2;v++){
+				area+=px[v]*py[v+1]-px[v+1]*py[v];
+			}
+			holes[k]=area<0;
+			for (int v=from;v<to;v++){
+				x[at]=Double.isNaN(px[v])?Double.NaN:mins[0]+px[v]*deltas[0];
+				y[at++]=Double.isNaN(py[v])?Double.NaN:mins[1]+py[v]*deltas[1];
+			}
+		}
+		starts[nIds]=at;
+	}
+}
@@ -0,0 +1,255 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.stream.IntStream;
+
+/*
+ * The grid distance sums behind Dbm.SilhouetteCoefficient and
+ * Dbm.WeightDistances.  Grid points sit on integer positions so every
+ * distance comes from one table of sqrt(dx^2+dy^2) for 0<=dx,dy<M.
+ *
+ * The sum of distances from each grid point to the members of a cluster
+ * is the convolution of the cluster's occupancy grid with that table, so
+ * large clusters cost two FFTs (KernelSmoother) instead of O(cells^2)
+ * pairs and two clusters share each transform.  The distances to the
+ * other clusters are those to all assigned points less those to the
+ * cluster.  Small clusters sum their pairs from the table instead,
+ * whichever costs less, in parallel across clusters.
+ *
+ * Positions are the 1 based x=(v+1)%M, y=v/M+1 that Dbm has always used.
+ */
+public class GridDistances {
+	public final int M;
+	private final int []pointers;
+	private final double []table, kernel;
+	private final int []x, y;
+	private final int []all;
+	private final KernelSmoother smoother;
+	private double []allSums;
+
+	public GridDistances(final int M, final int []pointers){
+		this.M=M;
+		this.pointers=pointers;
+		final int MM=M*M;
+		table=new double[MM];
+		IntStream.range(0, M).parallel().forEach(dy->{
+			for (int dx=0;dx<M;dx++){
+				table[dx+dy*M]=Math.sqrt(dx*dx+dy*dy);
+			}
+		});
+		final int K=2*M-1;
+		kernel=new double[K*K];
+		for (int b=0;b<K;b++){
+			final int dy=Math.abs(b-(M-1));
+			for (int a=0;a<K;a++){
+				kernel[a+b*K]=table[Math.abs(a-(M-1))+dy*M];
+			}
+		}
+		smoother=new KernelSmoother(M, M, K, K);
+		smoother.fft=true;
+		x=new int[MM];
+		y=new int[MM];
+		int n=0;
+		for (int v=0;v<MM;v++){
+			x[v]=(v+1)%M;
+			y[v]=v/M+1;
+			if (pointers[v]!=0){
+				n++;
+			}
+		}
+		all=new int[n];
+		n=0;
+		for (int v=0;v<MM;v++){
+			if (pointers[v]!=0){
+				all[n++]=v;
+			}
+		}
+	}
+
+	private double distance(final int v, final int w){
+		return table[Math.abs(x[v]-x[w])+Math.abs(y[v]-y[w])*M];
+	}
+
+	/*
+	 * Members of a cluster and the distance sums from every grid point
+	 * to them (or, when summed in pairs, to the cluster and to all).
+	 */
+	private class Cluster {
+		final int id;
+		final int []members;
+		double []sums;
+		// pair sums for the members only: to the cluster and to the others
+		double []toSelf, toOthers;
+
+		Cluster(final int id){
+			this.id=id;
+			int n=0;
+			for (int v:all){
+				if (pointers[v]==id){
+					n++;
+				}
+			}
+			members=new int[n];
+			n=0;
+			for (int v:all){
+				if (pointers[v]==id){
+					members[n++]=v;
+				}
+			}
+		}
+
+		boolean byFft(){
+			return (double)members.length*all.length>3*smoother.fftCost();
+		}
+
+		double []occupancy(){
+			final double []grid=new double[M*M];
+			for (final int v:members){
+				grid[position(v)]=1;
+			}
+			return grid;
+		}
+
+		void sumPairs(){
+			final int n=members.length;
+			toSelf=new double[n];
+			toOthers=new double[n];
+			IntStream.range(0, n).parallel().forEach(i->{
+				final int v=members[i];
+				double self=0, others=0;
+				for (final int w:all){
+					if (pointers[w]==id){
+						self+=distance(v, w);
+					} else {
+						others+=distance(v, w);
+					}
+				}
+				toSelf[i]=self;
+				toOthers[i]=others;
+			});
+		}
+
+		double toSelf(final int i){
+			return sums==null?toSelf[i]:sums[position(members[i])];
+		}
+
+		double toOthers(final int i){
+			return sums==null?toOthers[i]
+					:allSums[position(members[i])]-sums[position(members[i])];
+		}
+	}
+
+	// the occupancy grid index of grid point v
+	private int position(final int v){
+		return x[v]+(y[v]-1)*M;
+	}
+
+	/**
+	 * Gives each cluster either FFT sums or pair sums.
+	 */
+	private Cluster []sum(final int []ids){
+		final Cluster []clusters=new Cluster[ids.length];
+		IntStream.range(0, ids.length).parallel().forEach(i->{
+			clusters[i]=new Cluster(ids[i]);
+		});
+		int byFft=0;
+		for (final Cluster c:clusters){
+			if (c.byFft()){
+				byFft++;
+			}
+		}
+		if (byFft>0 && allSums==null){
+			final double []grid=new double[M*M];
+			for (final int v:all){
+				grid[position(v)]=1;
+			}
+			allSums=smoother.convolvePair(grid, null, kernel)[0];
+		}
+		Cluster pending=null;
+		for (final Cluster c:clusters){
+			if (c.byFft()){
+				if (pending==null){
+					pending=c;
+				} else {
+					final double [][]sums=smoother.convolvePair(
+							pending.occupancy(), c.occupancy(), kernel);
+					pending.sums=sums[0];
+					c.sums=sums[1];
+					pending=null;
+				}
+			}
+		}
+		if (pending!=null){
+			pending.sums=smoother.convolvePair(pending.occupancy(), null, kernel)[0];
+		}
+		IntStream.range(0, clusters.length).parallel().forEach(i->{
+			if (!clusters[i].byFft()){
+				clusters[i].sumPairs();
+			}
+		});
+		return clusters;
+	}
+
+	/**
+	 * @return Dbm.SilhouetteCoefficient of each cluster
+	 */
+	public double []silhouetteCoefficients(final int []ids){
+		final Cluster []clusters=sum(ids);
+		final double []r=new double[ids.length];
+		IntStream.range(0, ids.length).parallel().forEach(i->{
+			final Cluster c=clusters[i];
+			final int n=c.members.length, others=all.length-n;
+			double avg=0;
+			for (int j=0;j<n;j++){
+				final double a=c.toSelf(j)/n, b=others==0?0:c.toOthers(j)/others;
+				avg+=(b-a)/Math.max(a, b);
+			}
+			r[i]=avg/n;
+		});
+		return r;
+	}
+
+	/**
+	 * @return Dbm.WeightDistance of each cluster: the sum over the pairs
+	 * of a member and a grid point of another cluster of their distance
+	 * times the sum of their weights
+	 */
+	public double []weightDistances(final int []ids, final double []weight){
+		final Cluster []clusters=sum(ids);
+		final double []r=new double[ids.length];
+		IntStream.range(0, ids.length).parallel().forEach(i->{
+			final Cluster c=clusters[i];
+			double sum=0;
+			for (int j=0;j<c.members.length;j++){
+				sum+=weight[c.members[j]]*c.toOthers(j);
+			}
+			// each other point's weight times its distances to the cluster
+			if (c.sums!=null){
+				for (final int w:all){
+					if (pointers[w]!=c.id){
+						sum+=weight[w]*c.sums[position(w)];
+					}
+				}
+			} else {
+				for (final int w:all){
+					if (pointers[w]!=c.id){
+						double d=0;
+						for (final int v:c.members){
+							d+=distance(v, w);
+						}
+						sum+=weight[w]*d;
+					}
+				}
+			}
+			r[i]=sum;
+		});
+		return r;
+	}
+}
@@ -0,0 +1,285 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.stream.IntStream;
+
+/*
+ * The second derivatives of a density grid computed once for the whole
+ * grid so Density.m's peak and ridge queries are lookups.
+ *
+ * getSecondDerivative() is Density.get2ndDerivative() including its edge
+ * and corner stencils.  The Hessian [fxx fxy; fxy fyy] comes from central
+ * differences (the stencil moved inward on the edges) and its eigenvalues
+ * from the closed form of a symmetric 2x2 matrix, which classifies each
+ * grid point as a PEAK (both negative), a RIDGE (one negative and the
+ * other within RIDGE_TOLERANCE of 0 relative to it), a SADDLE (opposite
+ * signs) or OTHER.  clusters() tabulates every cluster's peak density and
+ * peak eig (the first maximum in grid order as MATLAB's max) with their
+ * medians in one pass so getPeak() and getPeakEig() need not find() the
+ * cluster's grid points per query.  Grids are x fastest, fmat(:) order,
+ * and grid points are 1 based.
+ */
+public class GridHessian {
+	public static final byte OTHER=0, PEAK=1, RIDGE=2, SADDLE=3;
+	// the eigenvalue nearer 0 over the other at most this is a RIDGE
+	public static final double RIDGE_TOLERANCE=.1;
+
+	public final int M;
+	private final double []f;
+	private final double deltaX, deltaY;
+	private final double []secondDerivative, fxx, fyy, fxy, eigMin, eigMax;
+	private final byte []kinds;
+	// per cluster 1 to k: peaks are 1 based grid points or 0 if none
+	private int []densityPeaks=new int[1], eigPeaks=new int[1];
+	private double []densityMaxs=new double[1], densityMedians=new double[1],
+			eigMaxs=new double[1], eigMedians=new double[1];
+
+	/**
+	 * @param f the density grid, fmatVector
+	 * @param deltas the distances between grid points in x and y
+	 */
+	public GridHessian(final int M, final double []f, final double []deltas){
+		this.M=M;
+		this.f=f;
+		this.deltaX=deltas[0];
+		this.deltaY=deltas[1];
+		final int MM=M*M;
+		secondDerivative=new double[MM];
+		fxx=new double[MM];
+		fyy=new double[MM];
+		fxy=new double[MM];
+		eigMin=new double[MM];
+		eigMax=new double[MM];
+		kinds=new byte[MM];
+		IntStream.range(0, M).parallel().forEach(y->{
+			for (int x=0, v=y*M;x<M;x++, v++){
+				secondDerivative[v]=secondDerivative(x, y);
+				hessian(x, y, v);
+			}
+		});
+	}
+
+	/**
+	 * Density.get2ndDerivative() at x, y: the sums of 2 neighbors less 2f
+	 * over the deltas with its one sided pairs on the edges.
+	 */
+	private double secondDerivative(final int x, final int y){
+		final int last=M-1;
+		final double fx, fy;
+		if (x>0 && x<last && y>0 && y<last){
+			fx=f(x-1, y)+f(x+1, y);
+			fy=f(x, y-1)+f(x, y+1);
+		} else if (x==0 && y>0 && y<last){
+			fx=f(x+1, y-1)+f(x+1, y);
+			fy=f(x, y-1)+f(x, y+1);
+		} else if (x==last && y>0 && y<last){
+			fx=f(x-1, y)+f(x-1, y-1);
+			fy=f(x, y-1)+f(x, y+1);
+		} else if (y==last && x>0 && x<last){
+			fx=f(x-1, y)+f(x+1, y);
+			fy=f(x, y-1)+f(x-1, y-1);
+		} else if (y==0 && x>0 && x<last){
+			fx=f(x-1, y)+f(x+1, y);
+			fy=f(x+1, y+1)+f(x, y+1);
+		} else if (x==0 && y==0){
+			fx=f(1, 0)+f(1, 1);
+			fy=f(1, 1)+f(0, 1);
+		} else if (x==0){
+			fx=f(1, last)+f(1, last-1);
+			fy=f(0, last-1)+f(1, last-1);
+		} else if (y==0){
+			fx=f(last-1, 0)+f(last-1, 1);
+			fy=f(last, 1)+f(last-1, 1);
+		} else {
+			fx=f(last-1, last)+f(last-1, last-1);
+			fy=f(last, last-1)+f(last-1, last-1);
+		}
+		final double twoF=2*f(x, y);
+		return (fx-twoF)/deltaX+(fy-twoF)/deltaY;
+	}
+
+	private void hessian(final int x, final int y, final int v){
+		if (M<3){
+			return;
+		}
+		final int cx=Math.min(Math.max(x, 1), M-2), cy=Math.min(Math.max(y, 1), M-2);
+		final double xx=(f(cx-1, y)-2*f(cx, y)+f(cx+1, y))/(deltaX*deltaX);
+		final double yy=(f(x, cy-1)-2*f(x, cy)+f(x, cy+1))/(deltaY*deltaY);
+		final int left=Math.max(x-1, 0), right=Math.min(x+1, M-1);
+		final int down=Math.max(y-1, 0), up=Math.min(y+1, M-1);
+		final double xy=(f(right, up)-f(right, down)-f(left, up)+f(left, down))
+				/((right-left)*deltaX*(up-down)*deltaY);
+		fxx[v]=xx;
+		fyy[v]=yy;
+		fxy[v]=xy;
+		final double mean=(xx+yy)/2, half=(xx-yy)/2;
+		final double radius=Math.sqrt(half*half+xy*xy);
+		final double small=mean-radius, large=mean+radius;
+		eigMin[v]=small;
+		eigMax[v]=large;
+		if (large<0){
+			kinds[v]=Math.abs(large)<=RIDGE_TOLERANCE*Math.abs(small)?RIDGE:PEAK;
+		} else if (small<0){
+			kinds[v]=large<=RIDGE_TOLERANCE*-small?RIDGE:SADDLE;
+		} else {
+			kinds[v]=OTHER;
+		}
+	}
+
+	private double f(final int x, final int y){
+		return f[x+y*M];
+	}
+
+	/**
+	 * Tabulates each cluster's peaks for getPeak() and getPeakEig().
+	 *
+	 * @param pointersWithEvents each grid point's cluster 1 to k or 0
+	 * @param eig Density.eigVec or null
+	 */
+	public void clusters(final int []pointersWithEvents, final double []eig){
+		int k=0;
+		for (final int label:pointersWithEvents){
+			k=Math.max(k, label);
+		}
+		// counting sort of the grid points by cluster, ascending within
+		final int []start=new int[k+2];
+		for (final int label:pointersWithEvents){
+			if (label>0){
+				start[label+1]++;
+			}
+		}
+		for (int c=1;c<=k;c++){
+			start[c+1]+=start[c];
+		}
+		final int []next=java.util.Arrays.copyOf(start, k+1);
+		final int []byCluster=new int[start[k+1]];
+		for (int v=0;v<pointersWithEvents.length;v++){
+			final int label=pointersWithEvents[v];
+			if (label>0){
+				byCluster[next[label]++]=v;
+			}
+		}
+		densityPeaks=new int[k+1];
+		eigPeaks=new int[k+1];
+		densityMaxs=new double[k+1];
+		densityMedians=new double[k+1];
+		eigMaxs=new double[k+1];
+		eigMedians=new double[k+1];
+		IntStream.rangeClosed(1, k).parallel().forEach(c->{
+			final int from=start[c], to=start[c+1];
+			if (from==to){
+				return;
+			}
+			densityPeaks[c]=1+peak(f, byCluster, from, to);
+			densityMaxs[c]=f[densityPeaks[c]-1];
+			densityMedians[c]=median(f, byCluster, from, to);
+			if (eig!=null){
+				eigPeaks[c]=1+peak(eig, byCluster, from, to);
+				eigMaxs[c]=eig[eigPeaks[c]-1];
+				eigMedians[c]=median(eig, byCluster, from, to);
+			}
+		});
+	}
+
+	private static int peak(final double []values, final int []bins,
+			final int from, final int to){
+		int best=bins[from];
+		for (int i=from+1;i<to;i++){
+			if (values[bins[i]]>values[best] || Double.isNaN(values[best])){
+				best=bins[i];
+			}
+		}
+		return best;
+	}
+
+	private static double median(final double []values, final int []bins,
+			final int from, final int to){
+		final double []sorted=new double[to-from];
+		for (int i=from;i<to;i++){
+			sorted[i-from]=values[bins[i]];
+		}
+		java.util.Arrays.sort(sorted);
+		final int half=sorted.length/2;
+		return sorted.length%2==1?sorted[half]:(sorted[half-1]+sorted[half])/2;
+	}
+
+	/**
+	 * @return xIdx, yIdx, mxDns and avgDns as Density.getPeak() or zeros
+	 * if the cluster has no grid points
+	 */
+	public double []getPeak(final int clue){
+		if (clue<1 || clue>=densityPeaks.length || densityPeaks[clue]==0){
+			return new double[4];
+		}
+		final int v=densityPeaks[clue]-1;
+		return new double[]{v%M+1, v/M+1, densityMaxs[clue], densityMedians[clue]};
+	}
+
+	/**
+	 * @return xIdx, yIdx, mxEig and avgEig as Density.getPeakEig() or
+	 * zeros if the cluster has no grid points
+	 */
+	public double []getPeakEig(final int clue){
+		if (clue<1 || clue>=eigPeaks.length || eigPeaks[clue]==0){
+			return new double[4];
+		}
+		final int v=eigPeaks[clue]-1;
+		return new double[]{v%M+1, v/M+1, eigMaxs[clue], eigMedians[clue]};
+	}
+
+	/**
+	 * @return PEAK, RIDGE, SADDLE or OTHER at the 1 based grid point
+	 */
+	public byte getKind(final int gridPoint){
+		return kinds[gridPoint-1];
+	}
+
+	public boolean isPeak(final int gridPoint){
+		return kinds[gridPoint-1]==PEAK;
+	}
+
+	public boolean isRidge(final int gridPoint){
+		return kinds[gridPoint-1]==RIDGE;
+	}
+
+	public byte []getKinds(){
+		return kinds;
+	}
+
+	public double []getSecondDerivative(){
+		return secondDerivative;
+	}
+
+	public double []getFxx(){
+		return fxx;
+	}
+
+	public double []getFyy(){
+		return fyy;
+	}
+
+	public double []getFxy(){
+		return fxy;
+	}
+
+	/**
+	 * @return the smaller Hessian eigenvalue at each grid point
+	 */
+	public double []getEigMin(){
+		return eigMin;
+	}
+
+	/**
+	 * @return the larger Hessian eigenvalue at each grid point
+	 */
+	public double []getEigMax(){
+		return eigMax;
+	}
+}
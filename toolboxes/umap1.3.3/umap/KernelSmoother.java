@@ -0,0 +1,320 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.stream.IntStream;
+
+/*
+ * convn(grid, kernel, 'same') for the DBM density grids of Density.m.
+ * Narrow kernels are convolved directly in O(M^2 kernel^2); wide ones
+ * with a zero padded 2D FFT in O(P^2 log P) where P is the power of 2
+ * covering M+kernel/2.  Two real kernels share the transforms by going
+ * in as the real and imaginary parts of one complex kernel, which is how
+ * DensityAndStdErr gets the density and its standard error from one
+ * forward and one inverse pass.
+ *
+ * Grids and kernels are column major vectors as MATLAB's (:) gives them.
+ */
+public class KernelSmoother {
+	// butterflies per multiply-add of the direct path, roughly
+	static double FFT_COST=6;
+
+	public final int rows, cols, kRows, kCols;
+	public boolean fft;
+	private final int P, Q, logP, logQ;
+	private double []spectrumOf, spectrumRe, spectrumIm;
+
+	public KernelSmoother(final int rows, final int cols, final int kRows, final int kCols){
+		this.rows=rows;
+		this.cols=cols;
+		this.kRows=kRows;
+		this.kCols=kCols;
+		P=PaddedSize(rows, kRows);
+		Q=PaddedSize(cols, kCols);
+		logP=Integer.numberOfTrailingZeros(P);
+		logQ=Integer.numberOfTrailingZeros(Q);
+		final double direct=(double)rows*cols*kRows*kCols,
+				transforms=3*fftCost();
+		fft=transforms<direct;
+	}
+
+	/**
+	 * The full convolution wraps around a transform of size n but 'same'
+	 * only keeps n from kernel/2 on, so the power of 2 need only hold
+	 * those n (n+kernel/2) and keep the full convolution's tail past them
+	 * from wrapping onto its first (n+kernel-1-kernel/2, which is 1 less
+	 * for even kernels).
+	 */
+	static int PaddedSize(final int n, final int kernel){
+		final int needed=n+kernel/2;
+		return needed<=1?1:Integer.highestOneBit(needed-1)<<1;
+	}
+
+	/**
+	 * @return the operations of one forward or inverse FFT of the padded
+	 * grid in units of a direct multiply-add
+	 */
+	public double fftCost(){
+		return FFT_COST*0.5*P*Q*(logP+logQ);
+	}
+
+	public double []convolve(final double []grid, final double []kernel){
+		return convolve(grid, kernel, null)[0];
+	}
+
+	/**
+	 * @return convn(grid, kernel1, 'same') and convn(grid, kernel2, 'same')
+	 * where kernel2 may be null
+	 */
+	public double [][]convolve(final double []grid, final double []kernel1,
+			final double []kernel2){
+		if (fft){
+			return convolveFft(grid, kernel1, kernel2);
+		}
+		return kernel2==null?new double[][]{direct(grid, kernel1)}
+		:new double[][]{direct(grid, kernel1), direct(grid, kernel2)};
+	}
+
+	/**
+	 * @return convn(grid1, kernel, 'same') and convn(grid2, kernel, 'same')
+	 * where grid2 may be null.  For FFT the transform of kernel is kept
+	 * for the next call with the same kernel.
+	 */
+	public double [][]convolvePair(final double []grid1, final double []grid2,
+			final double []kernel){
+		if (!fft){
+			return grid2==null?new double[][]{direct(grid1, kernel)}
+			:new double[][]{direct(grid1, kernel), direct(grid2, kernel)};
+		}
+		if (kernel!=spectrumOf){
+			spectrumRe=new double[P*Q];
+			spectrumIm=new double[P*Q];
+			pad(kernel, kRows, kCols, spectrumRe);
+			new Transform().forward(spectrumRe, spectrumIm);
+			spectrumOf=kernel;
+		}
+		final double []re=new double[P*Q], im=new double[P*Q];
+		pad(grid1, rows, cols, re);
+		if (grid2!=null){
+			pad(grid2, rows, cols, im);
+		}
+		final Transform transform=new Transform();
+		transform.forward(re, im);
+		IntStream.range(0, Q).parallel().forEach(y->{
+			for (int v=y*P, end=v+P;v<end;v++){
+				final double r=re[v]*spectrumRe[v]-im[v]*spectrumIm[v];
+				im[v]=re[v]*spectrumIm[v]+im[v]*spectrumRe[v];
+				re[v]=r;
+			}
+		});
+		transform.inverse(re, im);
+		return crop(re, grid2==null?null:im);
+	}
+
+	private double []direct(final double []grid, final double []kernel){
+		final double []out=new double[rows*cols];
+		final int zRows=kRows/2, zCols=kCols/2;
+		IntStream.range(0, cols).parallel().forEach(y->{
+			for (int b=0;b<kCols;b++){
+				final int gy=y+zCols-b;
+				if (gy<0 || gy>=cols){
+					continue;
+				}
+				final int gCol=gy*rows, kCol=b*kRows;
+				for (int a=0;a<kRows;a++){
+					final double k=kernel[kCol+a];
+					if (k==0){
+						continue;
+					}
+					final int shift=zRows-a,
+							from=Math.max(0, -shift), to=Math.min(rows, rows-shift);
+					for (int x=from, v=y*rows+from;x<to;x++, v++){
+						out[v]+=k*grid[gCol+x+shift];
+					}
+				}
+			}
+		});
+		return out;
+	}
+
+	private double [][]convolveFft(final double []grid, final double []kernel1,
+			final double []kernel2){
+		final double []gRe=new double[P*Q], gIm=new double[P*Q],
+				kRe=new double[P*Q], kIm=new double[P*Q];
+		pad(grid, rows, cols, gRe);
+		pad(kernel1, kRows, kCols, kRe);
+		if (kernel2!=null){
+			pad(kernel2, kRows, kCols, kIm);
+		}
+		final Transform transform=new Transform();
+		transform.forward(gRe, gIm);
+		transform.forward(kRe, kIm);
+		IntStream.range(0, Q).parallel().forEach(y->{
+			for (int v=y*P, end=v+P;v<end;v++){
+				final double re=gRe[v]*kRe[v]-gIm[v]*kIm[v];
+				kIm[v]=gRe[v]*kIm[v]+gIm[v]*kRe[v];
+				kRe[v]=re;
+			}
+		});
+		transform.inverse(kRe, kIm);
+		return crop(kRe, kernel2==null?null:kIm);
+	}
+
+	private double [][]crop(final double []re, final double []im){
+		final double [][]out=new double[im==null?1:2][rows*cols];
+		final int zRows=kRows/2, zCols=kCols/2;
+		IntStream.range(0, cols).parallel().forEach(y->{
+			final int from=(y+zCols)*P+zRows;
+			System.arraycopy(re, from, out[0], y*rows, rows);
+			if (im!=null){
+				System.arraycopy(im, from, out[1], y*rows, rows);
+			}
+		});
+		return out;
+	}
+
+	private void pad(final double []from, final int fromRows, final int fromCols,
+			final double []to){
+		for (int y=0;y<fromCols;y++){
+			System.arraycopy(from, y*fromRows, to, y*P, fromRows);
+		}
+	}
+
+	/*
+	 * In place radix 2 transforms of the P by Q column major arrays: the
+	 * columns of length P first, then the rows of length Q.
+	 */
+	private class Transform {
+		final double []cosP, sinP, cosQ, sinQ;
+
+		Transform(){
+			cosP=new double[P/2];
+			sinP=new double[P/2];
+			twiddles(cosP, sinP, P);
+			if (Q==P){
+				cosQ=cosP;
+				sinQ=sinP;
+			} else {
+				cosQ=new double[Q/2];
+				sinQ=new double[Q/2];
+				twiddles(cosQ, sinQ, Q);
+			}
+		}
+
+		void forward(final double []re, final double []im){
+			transform(re, im, 1);
+		}
+
+		void inverse(final double []re, final double []im){
+			transform(re, im, -1);
+			final double scale=1.0/(P*Q);
+			IntStream.range(0, Q).parallel().forEach(y->{
+				for (int v=y*P, end=v+P;v<end;v++){
+					re[v]*=scale;
+					im[v]*=scale;
+				}
+			});
+		}
+
+		private void transform(final double []re, final double []im, final int sign){
+			IntStream.range(0, Q).parallel().forEach(y->{
+				Fft(re, im, y*P, P, logP, cosP, sinP, sign);
+			});
+			IntStream.range(0, P).parallel().forEach(x->{
+				final double []rowRe=new double[Q], rowIm=new double[Q];
+				for (int y=0, v=x;y<Q;y++, v+=P){
+					rowRe[y]=re[v];
+					rowIm[y]=im[v];
+				}
+				Fft(rowRe, rowIm, 0, Q, logQ, cosQ, sinQ, sign);
+				for (int y=0, v=x;y<Q;y++, v+=P){
+					re[v]=rowRe[y];
+					im[v]=rowIm[y];
+				}
+			});
+		}
+	}
+
+	private static void twiddles(final double []cos, final double []sin, final int n){
+		for (int k=0;k<cos.length;k++){
+			final double angle=-2*Math.PI*k/n;
+			cos[k]=Math.cos(angle);
+			sin[k]=Math.sin(angle);
+		}
+	}
+
+	/**
+	 * Iterative radix 2 FFT of re/im[offset..offset+n), sign -1 for the
+	 * inverse without its 1/n scaling.
+	 */
+	static void Fft(final double []re, final double []im, final int offset,
+			final int n, final int log, final double []cos, final double []sin,
+			final int sign){
+		for (int i=1;i<n;i++){
+			final int j=Integer.reverse(i)>>>(32-log);
+			if (j>i){
+				double t=re[offset+i];
+				re[offset+i]=re[offset+j];
+				re[offset+j]=t;
+				t=im[offset+i];
+				im[offset+i]=im[offset+j];
+				im[offset+j]=t;
+			}
+		}
+		for (int half=1, step=n/2;half<n;half<<=1, step>>=1){
+			for (int start=offset;start<offset+n;start+=half<<1){
+				for (int k=0, tw=0;k<half;k++, tw+=step){
+					final double wr=cos[tw], wi=sign*sin[tw];
+					final int i=start+k, j=i+half;
+					final double tr=re[j]*wr-im[j]*wi, ti=re[j]*wi+im[j]*wr;
+					re[j]=re[i]-tr;
+					im[j]=im[i]-ti;
+					re[i]+=tr;
+					im[i]+=ti;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return convn(grid, kernel, 'same')
+	 */
+	public static double []Convolve(final double []grid, final int rows,
+			final int cols, final double []kernel, final int kRows, final int kCols){
+		return new KernelSmoother(rows, cols, kRows, kCols).convolve(grid, kernel);
+	}
+
+	/**
+	 * The density f and standard error stdErr that Density.m computes
+	 * from the weight grid wmat (PUBREF=REF 2.2 and STEP 1):
+	 * f=1/N*convn(wmat,phimat,'same')
+	 * stdErr=sqrt(1/(N*(N-1))*convn(wmat,phimat.^2,'same') - 1/(N-1)*f.^2)
+	 * where rounding below 0 takes sqrt's real part 0.
+	 *
+	 * @return {f, stdErr}
+	 */
+	public static double [][]DensityAndStdErr(final double []wmat, final int M,
+			final int N, final double []phimat, final int kRows, final int kCols){
+		final double []phimat2=new double[phimat.length];
+		for (int i=0;i<phimat.length;i++){
+			phimat2[i]=phimat[i]*phimat[i];
+		}
+		final double [][]out=new KernelSmoother(M, M, kRows, kCols)
+				.convolve(wmat, phimat, phimat2);
+		final double []f=out[0], stdErr=out[1];
+		final double n=N;
+		IntStream.range(0, M).parallel().forEach(y->{
+			for (int v=y*M, end=v+M;v<end;v++){
+				f[v]/=n;
+				stdErr[v]=Math.sqrt(Math.max(0, stdErr[v]/(n*(n-1)) - f[v]*f[v]/(n-1)));
+			}
+		});
+		return out;
+	}
+}
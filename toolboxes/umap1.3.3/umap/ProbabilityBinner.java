@@ -0,0 +1,389 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Java port of probability_bin.m.  Every bin is split in 2 on the column
+ * with the highest variance at the median until the bins are as small as
+ * minBinSize allows (or for minBinSize levels with doFixedSplits).
+ * Instead of copying sub matrices into cell arrays the rows stay put and
+ * only a permutation (order) is rearranged so that bin b's rows are
+ * order[binStarts[b]] ... order[binStarts[b+1]-1].  Bins are split in
+ * parallel with fork-join.
+ *
+ * Each split selects the median in linear time instead of sorting.
+ * probability_bin.m's stable sorts only matter for the rows tied with the
+ * median: they are in the order the sorts of the bin's ancestors left
+ * them, that is by the ancestors' split columns from the nearest back to
+ * the root and then by row, so ordering just those rows that way makes
+ * the bins (and ties) come out exactly as probability_bin.m makes them.
+ *
+ * The teacher's rows come first and the student's after them as in
+ * [teachData; studData].
+ */
+public class ProbabilityBinner {
+	static final int PARALLEL_THRESHOLD=8192;
+
+	public final int rows, cols, numBins;
+	// rows 0 to teachRows-1 are the teacher's
+	public final int teachRows;
+	// ptrs are 0 based bins
+	public final int []order, binStarts, ptrs;
+	public final double [][]means;
+	private final double []data;
+	// keys[i] is the splitting column of row order[i]
+	private final double []keys;
+
+	/**
+	 * @param data row major rows x cols
+	 */
+	public ProbabilityBinner(final double []data, final int rows, final int cols,
+			final int minBinSize){
+		this(data, rows, cols, rows, Depth(rows, minBinSize));
+	}
+
+	/**
+	 * @param data row major rows x cols, the teacher's teachRows first
+	 * @param depth the number of times bins are split
+	 */
+	public ProbabilityBinner(final double []data, final int rows, final int cols,
+			final int teachRows, final int depth){
+		this.data=data;
+		this.rows=rows;
+		this.cols=cols;
+		this.teachRows=teachRows;
+		order=new int[rows];
+		for (int i=0;i<rows;i++){
+			order[i]=i;
+		}
+		keys=new double[rows];
+		final int []sizes=new int[rows+1];
+		ForkJoinPool.commonPool().invoke(new Split(0, rows, depth, sizes, new int[0]));
+		int bins=0;
+		for (int i=0;i<=rows;i++){
+			if (sizes[i]>0){
+				bins++;
+			}
+		}
+		numBins=bins;
+		binStarts=new int[numBins+1];
+		ptrs=new int[rows];
+		means=new double[numBins][cols];
+		int b=0;
+		for (int i=0;i<rows;i++){
+			if (sizes[i]>0){
+				binStarts[b]=i;
+				binStarts[b+1]=i+sizes[i];
+				b++;
+			}
+		}
+		java.util.stream.IntStream.range(0, numBins).parallel().forEach(bin->{
+			final double []mean=means[bin];
+			final int start=binStarts[bin], end=binStarts[bin+1];
+			for (int i=start;i<end;i++){
+				final int row=order[i];
+				ptrs[row]=bin;
+				for (int col=0;col<cols;col++){
+					mean[col]+=data[row*cols+col];
+				}
+			}
+			for (int col=0;col<cols;col++){
+				mean[col]/=(end-start);
+			}
+		});
+	}
+
+	/**
+	 * probability_bin.m splits every bin as long as the first (largest)
+	 * bin of the current level has at least 2*minBinSize rows.
+	 */
+	public static int Depth(final int rows, final int minBinSize){
+		int depth=0, size=rows;
+		while (size>1 && size/2.0>=minBinSize){
+			size=(size+1)/2;
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * With doFixedSplits probability_bin.m splits minBinSize times unless
+	 * the first bin is down to 1 row.
+	 */
+	public static int FixedDepth(final int rows, final int minBinSize){
+		int depth=0, size=rows;
+		while (size>1 && depth<minBinSize){
+			size=(size+1)/2;
+			depth++;
+		}
+		return depth;
+	}
+
+	/**
+	 * The events per bin probability_means_weights_ptrs.m uses.
+	 */
+	public static int EventsPerBin(final int rows){
+		final int MIN_BINS=8192, MIN_EVENTS_PER_BIN=4, MAX_EVENTS_PER_BIN=34;
+		int eventsPerBin=(int)Math.floor(2*Math.log(rows));
+		final int numberOfBins=eventsPerBin>0?rows/eventsPerBin:0;
+		if (numberOfBins<MIN_BINS){
+			eventsPerBin=rows/MIN_BINS;
+		}
+		if (eventsPerBin<MIN_EVENTS_PER_BIN){
+			eventsPerBin=MIN_EVENTS_PER_BIN;
+		}else if (eventsPerBin>MAX_EVENTS_PER_BIN){
+			eventsPerBin=MAX_EVENTS_PER_BIN;
+		}
+		if (numberOfBins>16384){
+			eventsPerBin=MAX_EVENTS_PER_BIN;
+		}
+		return eventsPerBin;
+	}
+
+	private class Split extends RecursiveAction{
+		private static final long serialVersionUID=1L;
+		final int start, end, depth;
+		final int []sizes;
+		// the split columns of the bin's ancestors from the root down
+		final int []ancestors;
+
+		Split(final int start, final int end, final int depth, final int []sizes,
+				final int []ancestors){
+			this.start=start;
+			this.end=end;
+			this.depth=depth;
+			this.sizes=sizes;
+			this.ancestors=ancestors;
+		}
+
+		@Override
+		protected void compute(){
+			final int n=end-start;
+			if (depth==0 || n<2){
+				sizes[start]=n;
+				return;
+			}
+			final int col=maxVarianceColumn(start, end);
+			final int middle=start+(n+1)/2;
+			select(col, start, end, middle, ancestors);
+			final int []path=java.util.Arrays.copyOf(ancestors, ancestors.length+1);
+			path[ancestors.length]=col;
+			final Split low=new Split(start, middle, depth-1, sizes, path),
+					high=new Split(middle, end, depth-1, sizes, path);
+			if (n>=PARALLEL_THRESHOLD){
+				invokeAll(low, high);
+			} else {
+				low.compute();
+				high.compute();
+			}
+		}
+	}
+
+	private int maxVarianceColumn(final int start, final int end){
+		final int n=end-start;
+		final double []means=new double[cols], ss=new double[cols];
+		for (int i=start;i<end;i++){
+			for (int col=0, at=order[i]*cols;col<cols;col++, at++){
+				means[col]+=data[at];
+			}
+		}
+		for (int col=0;col<cols;col++){
+			means[col]/=n;
+		}
+		for (int i=start;i<end;i++){
+			for (int col=0, at=order[i]*cols;col<cols;col++, at++){
+				final double d=data[at]-means[col];
+				ss[col]+=d*d;
+			}
+		}
+		int maxCol=0;
+		double maxVariance=-Double.MIN_VALUE;
+		for (int col=0;col<cols;col++){
+			// equal variances summed in another order differ in the last
+			// bits so near ties go to the first column as exact ones do
+			if (ss[col]/n>maxVariance*(1+1e-12)){
+				maxVariance=ss[col]/n;
+				maxCol=col;
+			}
+		}
+		return maxCol;
+	}
+
+	/**
+	 * Rearranges order[start,end) so the rows a stable sort on column col
+	 * would put before middle are there, by 3 way quickselect.  Disjoint
+	 * bins use disjoint ranges of order and keys so splits can run
+	 * concurrently.
+	 */
+	private void select(final int col, final int start, final int end,
+			final int middle, final int []ancestors){
+		for (int i=start;i<end;i++){
+			keys[i]=data[order[i]*cols+col];
+		}
+		int lo=start, hi=end;
+		while (true){
+			final double pivot=medianOf3(keys[lo], keys[(lo+hi)>>>1], keys[hi-1]);
+			// keys[lo,less) < pivot, keys[less,i) == pivot, keys(more,hi) > pivot
+			int less=lo, i=lo, more=hi-1;
+			while (i<=more){
+				final double key=keys[i];
+				if (key<pivot){
+					swap(i++, less++);
+				} else if (key>pivot){
+					swap(i, more--);
+				} else {
+					i++;
+				}
+			}
+			if (middle<less){
+				hi=less;
+			} else if (middle>i){
+				lo=i;
+			} else {
+				if (middle>less && middle<i){
+					orderTies(less, i, ancestors);
+				}
+				return;
+			}
+		}
+	}
+
+	private static double medianOf3(final double a, final double b, final double c){
+		if (a<b){
+			return b<c?b:(a<c?c:a);
+		}
+		return a<c?a:(b<c?c:b);
+	}
+
+	private void swap(final int i, final int j){
+		final int row=order[i];
+		order[i]=order[j];
+		order[j]=row;
+		final double key=keys[i];
+		keys[i]=keys[j];
+		keys[j]=key;
+	}
+
+	/**
+	 * Merge sorts the rows tied with the median into the order
+	 * probability_bin.m's earlier stable sorts left them.
+	 */
+	private void orderTies(final int start, final int end, final int []ancestors){
+		final int n=end-start;
+		int []src=java.util.Arrays.copyOfRange(order, start, end), dst=new int[n];
+		for (int width=1;width<n;width*=2){
+			for (int lo=0;lo<n;lo+=2*width){
+				final int mid=Math.min(lo+width, n), hi=Math.min(lo+2*width, n);
+				int i=lo, j=mid, out=lo;
+				while (i<mid && j<hi){
+					dst[out++]=before(src[j], src[i], ancestors)?src[j++]:src[i++];
+				}
+				while (i<mid){
+					dst[out++]=src[i++];
+				}
+				while (j<hi){
+					dst[out++]=src[j++];
+				}
+			}
+			final int []swap=src;
+			src=dst;
+			dst=swap;
+		}
+		System.arraycopy(src, 0, order, start, n);
+	}
+
+	private boolean before(final int a, final int b, final int []ancestors){
+		for (int level=ancestors.length-1;level>=0;level--){
+			final double keyA=data[a*cols+ancestors[level]],
+					keyB=data[b*cols+ancestors[level]];
+			if (keyA<keyB){
+				return true;
+			}
+			if (keyA>keyB){
+				return false;
+			}
+		}
+		return a<b;
+	}
+
+	/**
+	 * @return the bin of each of the teacher's rows, 1 based
+	 */
+	public int []getTeachPtrs(){
+		final int []teachPtrs=new int[teachRows];
+		for (int row=0;row<teachRows;row++){
+			teachPtrs[row]=ptrs[row]+1;
+		}
+		return teachPtrs;
+	}
+
+	/**
+	 * @return the bin of each of the student's rows, 1 based
+	 */
+	public int []getStudPtrs(){
+		final int []studPtrs=new int[rows-teachRows];
+		for (int row=teachRows;row<rows;row++){
+			studPtrs[row-teachRows]=ptrs[row]+1;
+		}
+		return studPtrs;
+	}
+
+	/**
+	 * @return the fraction of the teacher's rows in each bin
+	 */
+	public double []getTeachWeights(){
+		return weights(0, teachRows);
+	}
+
+	/**
+	 * @return the fraction of the student's rows in each bin
+	 */
+	public double []getStudWeights(){
+		return weights(teachRows, rows);
+	}
+
+	private double []weights(final int from, final int to){
+		final double []weights=new double[numBins];
+		for (int row=from;row<to;row++){
+			weights[ptrs[row]]++;
+		}
+		for (int bin=0;bin<numBins;bin++){
+			weights[bin]/=(to-from);
+		}
+		return weights;
+	}
+
+	/**
+	 * probability_bin(teachData, studData, minBinSize, doFixedSplits) for
+	 * MATLAB.  A null or empty studData bins the teacher alone as
+	 * probability_bin.m does when both are equal; the student's ptrs and
+	 * weights are then the teacher's.
+	 */
+	public static ProbabilityBinner Bin(final double [][]teachData,
+			final double [][]studData, final int minBinSize,
+			final boolean doFixedSplits){
+		final int teachRows=teachData.length;
+		final int studRows=studData==null?0:studData.length;
+		final int rows=teachRows+studRows;
+		final int cols=rows==0?0:(teachRows>0?teachData[0]:studData[0]).length;
+		final double []data=new double[rows*cols];
+		for (int row=0;row<teachRows;row++){
+			System.arraycopy(teachData[row], 0, data, row*cols, cols);
+		}
+		for (int row=0;row<studRows;row++){
+			System.arraycopy(studData[row], 0, data, (teachRows+row)*cols, cols);
+		}
+		final int depth=doFixedSplits?FixedDepth(rows, minBinSize)
+				:Depth(rows, minBinSize);
+		return new ProbabilityBinner(data, rows, cols, teachRows, depth);
+	}
+}
@@ -0,0 +1,881 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/*
+ * The dissimilarities QfHiDM.m's distance() computes for a pair of id sets
+ * (subsets or mergers of subsets) of the teacher and student.
+ *
+ * The QF dissimilarity is QfHiDM.Distance() of the bin weights
+ * AdaptiveBins.weigh() gives: with g=h-f over the bins u either side
+ * has events in, D^2=sum(A_ij g_i g_j) and A_ij=1-d_ij/d_max which is
+ * (sum g)^2-sum(d_ij g_i g_j)/d_max so D needs one pass over u x u and
+ * no A, H or F matrices.  The Earth mover's distances are
+ * AdaptiveBins.Emd(), each side binned by ProbabilityBinner and the
+ * transportation problem between the bins solved by successive shortest
+ * paths.  The other distance types are pdist2 of the medians.
+ *
+ * Each id set's histogram (and medians and EMD bins) is computed once and
+ * kept, as is each pair's distance, so QfHiDM's computeMerged(), which
+ * computes many rows and columns again with one merger more, only
+ * computes the pairs it has not seen.  computeAll() computes the pairs of
+ * an N by N matrix in parallel, each thread reusing its own buffers.
+ *
+ * Id sets are numeric vectors of ids > 0 and a row is in a set if any of
+ * its columns of idPerRow is.  NaN means the pair needs QfHiDM.m: u has
+ * more than MAX_SIZE bins, a side has no events or the quadratic form is
+ * negative.
+ */
+public class QfDissimilarity {
+	public static final double MAX_QF_DISTANCE=100;
+	// AdaptiveBins.MAX_SIZE
+	public static final int MAX_SIZE=25000;
+	// bins per pair where the QF's inner loop is parallel too
+	static final int PARALLEL_BINS=1024;
+	// AdaptiveBins.dists is kept up to this many bins
+	static final int MAX_DISTS_BINS=2048;
+	static final double EPSILON=1e-12;
+
+	public final int numBins, dims;
+	private final double [][]means;
+	// the distances between bins or null if computed as needed
+	private final double []dists;
+	private final boolean weighBySampleSize;
+	private final Side teach, stud;
+	private final ConcurrentHashMap<String, ConcurrentHashMap<Pair, Double>>pairs
+		=new ConcurrentHashMap<>();
+	private final ThreadLocal<Work>work=new ThreadLocal<Work>(){
+		@Override
+		protected Work initialValue(){
+			return new Work();
+		}
+	};
+
+	/**
+	 * @param means AdaptiveBins.means
+	 * @param teachPtrs AdaptiveBins.teachPtrs, 1 based
+	 * @param studPtrs AdaptiveBins.studPtrs, 1 based
+	 * @param tIdPerRow QfHiDM.tIdPerRow(:), column major
+	 * @param tIdCols columns of tIdPerRow
+	 * @param weighBySampleSize if weights are over all of the teacher's
+	 * and student's rows as for QfHiDM.binStrategy<0
+	 */
+	public QfDissimilarity(final double [][]means, final int []teachPtrs,
+			final int []studPtrs, final double []tIdPerRow, final int tIdCols,
+			final double []sIdPerRow, final int sIdCols,
+			final boolean weighBySampleSize){
+		this.means=means;
+		this.numBins=means.length;
+		this.dims=numBins==0?0:means[0].length;
+		this.weighBySampleSize=weighBySampleSize;
+		this.teach=new Side(tIdPerRow, tIdCols, teachPtrs);
+		this.stud=new Side(sIdPerRow, sIdCols, studPtrs);
+		if (numBins<=MAX_DISTS_BINS){
+			dists=new double[numBins*numBins];
+			IntStream.range(0, numBins).parallel().forEach(i->{
+				for (int j=i+1;j<numBins;j++){
+					final double d=distance(i, j);
+					dists[i*numBins+j]=d;
+					dists[j*numBins+i]=d;
+				}
+			});
+		} else {
+			dists=null;
+		}
+	}
+
+	/**
+	 * The rows of the teacher's and student's data for the EMD and median
+	 * distance types, column major as QfHiDM.tData(:).
+	 */
+	public void setData(final double []tData, final double []sData,
+			final int cols){
+		teach.setData(tData, cols);
+		stud.setData(sData, cols);
+	}
+
+	/**
+	 * QfHiDM.distance(sIdSet, tIdSet) for distanceType.
+	 *
+	 * @return the dissimilarity or NaN if QfHiDM.m must compute it
+	 */
+	public double distance(final String distanceType, final double []sIds,
+			final double []tIds){
+		final ConcurrentHashMap<Pair, Double>cache=pairs(distanceType);
+		final Pair pair=new Pair(new IdSet(sIds), new IdSet(tIds));
+		final Double D=cache.get(pair);
+		if (D!=null){
+			return D;
+		}
+		final double d=compute(distanceType, pair);
+		cache.putIfAbsent(pair, d);
+		return d;
+	}
+
+	/**
+	 * The events of the teacher's id set, QfHiDM.distance()'s tSz.
+	 */
+	public int getTeachSize(final double []tIds){
+		return teach.histogram(new IdSet(tIds)).size;
+	}
+
+	public int getStudSize(final double []sIds){
+		return stud.histogram(new IdSet(sIds)).size;
+	}
+
+	/**
+	 * Computes the pairs of QfHiDM.computeNbyN(sIdSets, tIdSets, txt,
+	 * only, transpose) that are not computed yet in parallel so its
+	 * calls to distance() are lookups.
+	 *
+	 * @param sIdSets a cell of numeric vectors
+	 * @param onlyRow the only row needed, 1 based, or 0 for all
+	 * @param onlyCol the only column needed, 1 based, or 0 for all
+	 * @param isIdentityMatrix if the lower triangle mirrors the upper and
+	 * only the first diagonal element is needed
+	 * @return the number of pairs computed
+	 */
+	public int computeAll(final String distanceType, final Object []sIdSets,
+			final Object []tIdSets, final int onlyRow, final int onlyCol,
+			final boolean isIdentityMatrix){
+		final ConcurrentHashMap<Pair, Double>cache=pairs(distanceType);
+		final IdSet []sSets=new IdSet[sIdSets.length], tSets=new IdSet[tIdSets.length];
+		for (int row=0;row<sSets.length;row++){
+			sSets[row]=new IdSet(sIdSets[row]);
+		}
+		for (int col=0;col<tSets.length;col++){
+			tSets[col]=new IdSet(tIdSets[col]);
+		}
+		final List<Pair>todo=new ArrayList<>();
+		final HashMap<Pair, Boolean>seen=new HashMap<>();
+		for (int row=0;row<sSets.length;row++){
+			if (onlyRow>0 && row!=onlyRow-1){
+				continue;
+			}
+			for (int col=isIdentityMatrix?row:0;col<tSets.length;col++){
+				if (onlyCol>0 && col!=onlyCol-1
+						|| isIdentityMatrix && col==row && col>0){
+					continue;
+				}
+				final Pair pair=new Pair(sSets[row], tSets[col]);
+				if (!cache.containsKey(pair) && seen.put(pair, true)==null){
+					todo.add(pair);
+				}
+			}
+		}
+		// each id set's histogram, medians or bins first so pairs do not
+		// wait on one another
+		final boolean isQf=isQf(distanceType);
+		final int maxBins=emdMaxBins(distanceType);
+		final List<Runnable>sets=new ArrayList<>();
+		final HashMap<IdSet, Boolean>sSeen=new HashMap<>(), tSeen=new HashMap<>();
+		for (final Pair pair:todo){
+			if (sSeen.put(pair.s, true)==null){
+				sets.add(()->prepare(stud, pair.s, isQf, maxBins));
+			}
+			if (tSeen.put(pair.t, true)==null){
+				sets.add(()->prepare(teach, pair.t, isQf, maxBins));
+			}
+		}
+		sets.parallelStream().forEach(Runnable::run);
+		todo.parallelStream().forEach(pair->
+			cache.putIfAbsent(pair, compute(distanceType, pair)));
+		return todo.size();
+	}
+
+	private void prepare(final Side side, final IdSet set, final boolean isQf,
+			final int maxBins){
+		if (isQf){
+			side.histogram(set);
+		} else if (maxBins==0){
+			side.medians(set);
+		}
+	}
+
+	private ConcurrentHashMap<Pair, Double>pairs(final String distanceType){
+		// QF + Euclidean's and QF + CityBlock's QF are QF's
+		final String type=isQf(distanceType)?"QF":distanceType;
+		ConcurrentHashMap<Pair, Double>cache=pairs.get(type);
+		if (cache==null){
+			pairs.putIfAbsent(type, new ConcurrentHashMap<>());
+			cache=pairs.get(type);
+		}
+		return cache;
+	}
+
+	private static boolean isQf(final String distanceType){
+		return distanceType==null || distanceType.isEmpty()
+				|| distanceType.equals("QF")
+				|| distanceType.equals("QF + Euclidean")
+				|| distanceType.equals("QF + CityBlock");
+	}
+
+	/**
+	 * @return the bins argument of AdaptiveBins.Emd() or 0 if not EMD
+	 */
+	private static int emdMaxBins(final String distanceType){
+		if ("Fast EMD".equals(distanceType)){
+			return 7;
+		}
+		if ("Earth mover's (EMD)".equals(distanceType)){
+			return 8;
+		}
+		return 0;
+	}
+
+	private double compute(final String distanceType, final Pair pair){
+		if (isQf(distanceType)){
+			return qf(teach.histogram(pair.t), stud.histogram(pair.s));
+		}
+		final int maxBins=emdMaxBins(distanceType);
+		if (maxBins>0){
+			return emd(pair.t, pair.s, maxBins);
+		}
+		return medianDistance(distanceType, teach.medians(pair.t),
+				stud.medians(pair.s));
+	}
+
+	/**
+	 * QfHiDM.Distance(h, f, meansOrDists) for AdaptiveBins.weigh()'s h
+	 * and f.
+	 */
+	private double qf(final Histogram h, final Histogram f){
+		if (h.size==0 || f.size==0){
+			return Double.NaN;
+		}
+		final double tSize=weighBySampleSize?teach.ptrs.length:h.size;
+		final double sSize=weighBySampleSize?stud.ptrs.length:f.size;
+		final Work w=work.get();
+		// g=h-f over the union of both histograms' bins
+		final int most=h.bins.length+f.bins.length;
+		if (w.u.length<most){
+			w.u=new int[most];
+			w.g=new double[most];
+		}
+		final int []u=w.u;
+		final double []g=w.g;
+		int n=0, i=0, j=0;
+		double G=0;
+		while (i<h.bins.length || j<f.bins.length){
+			final int hBin=i<h.bins.length?h.bins[i]:Integer.MAX_VALUE;
+			final int fBin=j<f.bins.length?f.bins[j]:Integer.MAX_VALUE;
+			final int bin=Math.min(hBin, fBin);
+			double gi=0;
+			if (hBin==bin){
+				gi+=h.counts[i++]/tSize;
+			}
+			if (fBin==bin){
+				gi-=f.counts[j++]/sSize;
+			}
+			u[n]=bin;
+			g[n++]=gi;
+			G+=gi;
+		}
+		if (n>MAX_SIZE){
+			return Double.NaN;
+		}
+		final int N=n;
+		// without dists the means of u are copied together for the u x u pass
+		final double []uMeans;
+		if (dists==null){
+			if (w.uMeans.length<N*dims){
+				w.uMeans=new double[N*dims];
+			}
+			uMeans=w.uMeans;
+			for (int a=0;a<N;a++){
+				System.arraycopy(means[u[a]-1], 0, uMeans, a*dims, dims);
+			}
+		} else {
+			uMeans=null;
+		}
+		final double []sums=new double[2]; // d_max and sum(d_ij g_i g_j)
+		if (N>=PARALLEL_BINS){
+			// copies since this thread may run another pair while it waits
+			final int []uCopy=Arrays.copyOf(u, N);
+			final double []gCopy=Arrays.copyOf(g, N);
+			final double []uMeansCopy=uMeans==null?null:Arrays.copyOf(uMeans, N*dims);
+			final double []maxs=new double[N], rowSums=new double[N];
+			IntStream.range(0, N).parallel().forEach(a->{
+				final double []row=upper(uCopy, gCopy, uMeansCopy, N, a);
+				maxs[a]=row[0];
+				rowSums[a]=row[1];
+			});
+			for (int a=0;a<N;a++){
+				sums[0]=Math.max(sums[0], maxs[a]);
+				sums[1]+=rowSums[a];
+			}
+		} else {
+			for (int a=0;a<N;a++){
+				final double []row=upper(u, g, uMeans, N, a);
+				sums[0]=Math.max(sums[0], row[0]);
+				sums[1]+=row[1];
+			}
+		}
+		final double D2=G*G-2*sums[1]/sums[0];
+		if (Double.isNaN(D2)){
+			return MAX_QF_DISTANCE;
+		}
+		if (D2<0){
+			// rounding error of a 0 distance or else complex in MATLAB
+			return D2>-EPSILON?0:Double.NaN;
+		}
+		return Math.sqrt(D2);
+	}
+
+	/**
+	 * @param uMeans the means of u's bins one after the other or null to
+	 * look up dists
+	 * @return the largest d_ab and the sum of d_ab g_a g_b for b>a
+	 */
+	private double []upper(final int []u, final double []g, final double []uMeans,
+			final int N, final int a){
+		double max=0, sum=0;
+		final int binA=u[a]-1;
+		for (int b=a+1;b<N;b++){
+			final double d;
+			if (uMeans==null){
+				d=dists[binA*numBins+u[b]-1];
+			} else {
+				double ss=0;
+				for (int col=0, at=a*dims, bt=b*dims;col<dims;col++, at++, bt++){
+					final double diff=uMeans[at]-uMeans[bt];
+					ss+=diff*diff;
+				}
+				d=Math.sqrt(ss);
+			}
+			if (d>max){
+				max=d;
+			}
+			sum+=d*g[b];
+		}
+		return new double[]{max, sum*g[a]};
+	}
+
+	private double distance(final int binA, final int binB){
+		final double []a=means[binA], b=means[binB];
+		double ss=0;
+		for (int col=0;col<dims;col++){
+			final double d=a[col]-b[col];
+			ss+=d*d;
+		}
+		return Math.sqrt(ss);
+	}
+
+	/**
+	 * pdist2(median(tData_), median(sData_), distanceType).
+	 */
+	private static double medianDistance(final String distanceType,
+			final double []t, final double []s){
+		if (t==null || s==null){
+			return Double.NaN;
+		}
+		double sum=0, max=0, tt=0, ss=0;
+		for (int col=0;col<t.length;col++){
+			final double d=Math.abs(t[col]-s[col]);
+			sum+="CityBlock".equals(distanceType)?d:d*d;
+			max=Math.max(max, d);
+			tt+=t[col]*t[col];
+			ss+=s[col]*s[col];
+		}
+		switch (distanceType){
+		case "Euclidean":
+			return Math.sqrt(sum);
+		case "SquaredEuclidean":
+		case "CityBlock":
+			return sum;
+		case "Chebychev":
+			return max;
+		case "Cosine":
+			double dot=0;
+			for (int col=0;col<t.length;col++){
+				dot+=t[col]*s[col];
+			}
+			return 1-dot/Math.sqrt(tt*ss);
+		default:
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * AdaptiveBins.Emd(tData_, sData_, bins) with ground distances
+	 * between the bins' means that are Euclidean.
+	 */
+	private double emd(final IdSet t, final IdSet s, final int maxBins){
+		final int tN=teach.size(t), sN=stud.size(s);
+		if (tN==0 || sN==0 || teach.data==null || stud.data==null){
+			return Double.NaN;
+		}
+		final int mx=Math.max(tN, sN);
+		final double numberOfBins=Math.floor(mx/Math.floor(2*Math.log(mx)));
+		final int bins;
+		if (numberOfBins<32){
+			bins=5;
+		} else if (numberOfBins<64){
+			bins=6;
+		} else if (numberOfBins<128){
+			bins=7;
+		} else {
+			bins=maxBins;
+		}
+		return work.get().transport(teach.signature(t, bins), stud.signature(s, bins));
+	}
+
+	/**
+	 * Forgets every histogram, signature and pair computed.
+	 */
+	public void clear(){
+		pairs.clear();
+		teach.clear();
+		stud.clear();
+	}
+
+	private final class Side{
+		final int rows, idCols;
+		final double []idPerRow;
+		final int []ptrs;
+		// the rows of each id ascending
+		final HashMap<Double, int[]>rowsById=new HashMap<>();
+		double []data;
+		int cols;
+		final ConcurrentHashMap<IdSet, Histogram>histograms=new ConcurrentHashMap<>();
+		final ConcurrentHashMap<IdSet, double[]>medians=new ConcurrentHashMap<>();
+		final ConcurrentHashMap<Integer, ConcurrentHashMap<IdSet, Signature>>signatures
+			=new ConcurrentHashMap<>();
+
+		Side(final double []idPerRow, final int idCols, final int []ptrs){
+			this.idPerRow=idPerRow;
+			this.idCols=idCols;
+			this.ptrs=ptrs;
+			this.rows=idCols==0?0:idPerRow.length/idCols;
+			final HashMap<Double, int[]>counts=new HashMap<>();
+			for (final double id:idPerRow){
+				if (id>0){
+					counts.computeIfAbsent(id, k->new int[1])[0]++;
+				}
+			}
+			for (final Double id:counts.keySet()){
+				rowsById.put(id, new int[counts.get(id)[0]]);
+				counts.get(id)[0]=0;
+			}
+			for (int col=0;col<idCols;col++){
+				for (int row=0, at=col*rows;row<rows;row++, at++){
+					final double id=idPerRow[at];
+					if (id>0){
+						rowsById.get(id)[counts.get(id)[0]++]=row;
+					}
+				}
+			}
+			if (idCols>1){
+				for (final Double id:rowsById.keySet()){
+					final int []idRows=rowsById.get(id);
+					Arrays.sort(idRows);
+					rowsById.put(id, distinct(idRows, idRows.length));
+				}
+			}
+		}
+
+		void setData(final double []data, final int cols){
+			this.data=data;
+			this.cols=cols;
+			medians.clear();
+			signatures.clear();
+		}
+
+		/**
+		 * MatBasics.LookForIds(idPerRow, set), the rows ascending.
+		 */
+		int []rows(final IdSet set){
+			if (set.ids.length==1){
+				final int []idRows=rowsById.get(set.ids[0]);
+				return idRows==null?new int[0]:idRows;
+			}
+			int n=0;
+			for (final double id:set.ids){
+				final int []idRows=rowsById.get(id);
+				n+=idRows==null?0:idRows.length;
+			}
+			final int []setRows=new int[n];
+			n=0;
+			for (final double id:set.ids){
+				final int []idRows=rowsById.get(id);
+				if (idRows!=null){
+					System.arraycopy(idRows, 0, setRows, n, idRows.length);
+					n+=idRows.length;
+				}
+			}
+			Arrays.sort(setRows);
+			return idCols>1?distinct(setRows, n):setRows;
+		}
+
+		int size(final IdSet set){
+			return histogram(set).size;
+		}
+
+		Histogram histogram(final IdSet set){
+			Histogram h=histograms.get(set);
+			if (h==null){
+				h=work.get().histogram(rows(set), ptrs);
+				histograms.putIfAbsent(set, h);
+			}
+			return h;
+		}
+
+		/**
+		 * median(data(rows(set), :)) or null if the set has no rows.
+		 */
+		double []medians(final IdSet set){
+			double []m=medians.get(set);
+			if (m==null){
+				final int []setRows=rows(set);
+				if (setRows.length==0 || data==null){
+					return null;
+				}
+				m=new double[cols];
+				final double []column=new double[setRows.length];
+				for (int col=0;col<cols;col++){
+					for (int i=0;i<setRows.length;i++){
+						column[i]=data[col*rows+setRows[i]];
+					}
+					m[col]=median(column);
+				}
+				medians.putIfAbsent(set, m);
+			}
+			return m;
+		}
+
+		/**
+		 * AdaptiveBins.Create(data_, data_, bins, true) of the set's rows.
+		 */
+		Signature signature(final IdSet set, final int bins){
+			ConcurrentHashMap<IdSet, Signature>byBins=signatures.get(bins);
+			if (byBins==null){
+				signatures.putIfAbsent(bins, new ConcurrentHashMap<>());
+				byBins=signatures.get(bins);
+			}
+			Signature sig=byBins.get(set);
+			if (sig==null){
+				final int []setRows=rows(set);
+				final int n=setRows.length;
+				final double []rowMajor=new double[n*cols];
+				for (int i=0;i<n;i++){
+					for (int col=0;col<cols;col++){
+						rowMajor[i*cols+col]=data[col*rows+setRows[i]];
+					}
+				}
+				final ProbabilityBinner pb=new ProbabilityBinner(rowMajor, n, cols,
+						n, ProbabilityBinner.FixedDepth(n, bins));
+				sig=new Signature(pb.means, pb.getTeachWeights());
+				byBins.putIfAbsent(set, sig);
+			}
+			return sig;
+		}
+
+		void clear(){
+			histograms.clear();
+			medians.clear();
+			signatures.clear();
+		}
+	}
+
+	private static int []distinct(final int []sorted, final int n){
+		int m=0;
+		for (int i=0;i<n;i++){
+			if (i==0 || sorted[i]!=sorted[i-1]){
+				sorted[m++]=sorted[i];
+			}
+		}
+		return m==sorted.length?sorted:Arrays.copyOf(sorted, m);
+	}
+
+	/**
+	 * MATLAB's median: NaN if any value is.
+	 */
+	private static double median(final double []values){
+		final double []sorted=values.clone();
+		Arrays.sort(sorted);
+		final int n=sorted.length;
+		if (Double.isNaN(sorted[n-1])){
+			return Double.NaN;
+		}
+		final int half=n/2;
+		return n%2==1?sorted[half]:(sorted[half-1]+sorted[half])/2;
+	}
+
+	/**
+	 * The events of an id set per bin, bins ascending and 1 based.
+	 */
+	private static final class Histogram{
+		final int []bins, counts;
+		final int size;
+
+		Histogram(final int []bins, final int []counts, final int size){
+			this.bins=bins;
+			this.counts=counts;
+			this.size=size;
+		}
+	}
+
+	/**
+	 * An id set's EMD bins.
+	 */
+	private static final class Signature{
+		final double [][]means;
+		final double []weights;
+
+		Signature(final double [][]means, final double []weights){
+			this.means=means;
+			this.weights=weights;
+		}
+	}
+
+	/**
+	 * The sorted distinct ids of an id set.
+	 */
+	private static final class IdSet{
+		final double []ids;
+		final int hash;
+
+		IdSet(final Object ids){
+			this(ToIds(ids));
+		}
+
+		IdSet(final double []ids){
+			final double []sorted=ids.clone();
+			Arrays.sort(sorted);
+			int n=0;
+			for (int i=0;i<sorted.length;i++){
+				if (i==0 || sorted[i]!=sorted[i-1]){
+					sorted[n++]=sorted[i];
+				}
+			}
+			this.ids=Arrays.copyOf(sorted, n);
+			this.hash=Arrays.hashCode(this.ids);
+		}
+
+		@Override
+		public int hashCode(){
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object o){
+			return o instanceof IdSet && Arrays.equals(ids, ((IdSet)o).ids);
+		}
+	}
+
+	private static final class Pair{
+		final IdSet s, t;
+
+		Pair(final IdSet s, final IdSet t){
+			this.s=s;
+			this.t=t;
+		}
+
+		@Override
+		public int hashCode(){
+			return 31*s.hash+t.hash;
+		}
+
+		@Override
+		public boolean equals(final Object o){
+			return o instanceof Pair && s.equals(((Pair)o).s) && t.equals(((Pair)o).t);
+		}
+	}
+
+	/**
+	 * An element of a MATLAB cell: a scalar, a vector or a column.
+	 */
+	private static double []ToIds(final Object ids){
+		if (ids instanceof double[]){
+			return (double[])ids;
+		}
+		if (ids instanceof double[][]){
+			final double [][]column=(double[][])ids;
+			final double []flat=new double[column.length];
+			for (int i=0;i<column.length;i++){
+				flat[i]=column[i][0];
+			}
+			return flat;
+		}
+		return new double[]{((Number)ids).doubleValue()};
+	}
+
+	/**
+	 * Each thread's buffers.
+	 */
+	private final class Work{
+		// counts per bin, 0 between uses, and the bins counted
+		final int []counts=new int[numBins+1], touched=new int[numBins+1];
+		int []u=new int[0];
+		double []g=new double[0], uMeans=new double[0];
+		double []supply=new double[0], demand=new double[0], potentials=new double[0],
+				paths=new double[0], flow=new double[0], cost=new double[0];
+		int []previous=new int[0];
+		boolean []done=new boolean[0];
+
+		Histogram histogram(final int []rows, final int []ptrs){
+			int n=0;
+			for (final int row:rows){
+				if (counts[ptrs[row]]++==0){
+					touched[n++]=ptrs[row];
+				}
+			}
+			Arrays.sort(touched, 0, n);
+			final int []bins=Arrays.copyOf(touched, n), binCounts=new int[n];
+			for (int i=0;i<n;i++){
+				binCounts[i]=counts[bins[i]];
+				counts[bins[i]]=0;
+			}
+			return new Histogram(bins, binCounts, rows.length);
+		}
+
+		/**
+		 * The minimum cost of moving the smaller total weight of t onto s
+		 * over that weight, as emd_flow gives, by successive shortest
+		 * paths with Dijkstra on reduced costs.
+		 */
+		double transport(final Signature t, final Signature s){
+			final int n=t.weights.length, m=s.weights.length, V=n+m;
+			if (supply.length<n || demand.length<m){
+				supply=new double[n];
+				demand=new double[m];
+			}
+			if (flow.length<n*m){
+				flow=new double[n*m];
+				cost=new double[n*m];
+			}
+			if (potentials.length<V){
+				potentials=new double[V];
+				paths=new double[V];
+				previous=new int[V];
+				done=new boolean[V];
+			}
+			double tTotal=0, sTotal=0;
+			for (int i=0;i<n;i++){
+				supply[i]=t.weights[i];
+				tTotal+=supply[i];
+			}
+			for (int j=0;j<m;j++){
+				demand[j]=s.weights[j];
+				sTotal+=demand[j];
+			}
+			final double total=Math.min(tTotal, sTotal);
+			for (int i=0;i<n;i++){
+				for (int j=0;j<m;j++){
+					double ss=0;
+					final double []a=t.means[i], b=s.means[j];
+					for (int col=0;col<a.length;col++){
+						final double d=a[col]-b[col];
+						ss+=d*d;
+					}
+					cost[i*m+j]=Math.sqrt(ss);
+					flow[i*m+j]=0;
+				}
+			}
+			Arrays.fill(potentials, 0, V, 0);
+			double moved=0, spent=0;
+			while (total-moved>EPSILON){
+				// left nodes 0 to n-1, right nodes n to V-1
+				Arrays.fill(paths, 0, V, Double.POSITIVE_INFINITY);
+				Arrays.fill(done, 0, V, false);
+				for (int i=0;i<n;i++){
+					if (supply[i]>EPSILON){
+						paths[i]=0;
+						previous[i]=-1;
+					}
+				}
+				int sink=-1;
+				double sinkPath=0;
+				while (true){
+					int v=-1;
+					for (int x=0;x<V;x++){
+						if (!done[x] && paths[x]<Double.POSITIVE_INFINITY
+								&& (v<0 || paths[x]<paths[v])){
+							v=x;
+						}
+					}
+					if (v<0){
+						break;
+					}
+					done[v]=true;
+					if (v>=n && demand[v-n]>EPSILON){
+						sink=v;
+						sinkPath=paths[v];
+						break;
+					}
+					if (v<n){
+						for (int j=0;j<m;j++){
+							final int x=n+j;
+							if (!done[x]){
+								final double p=paths[v]+Math.max(0,
+										cost[v*m+j]+potentials[v]-potentials[x]);
+								if (p<paths[x]){
+									paths[x]=p;
+									previous[x]=v;
+								}
+							}
+						}
+					} else {
+						final int j=v-n;
+						for (int i=0;i<n;i++){
+							if (!done[i] && flow[i*m+j]>EPSILON){
+								final double p=paths[v]+Math.max(0,
+										-cost[i*m+j]+potentials[v]-potentials[i]);
+								if (p<paths[i]){
+									paths[i]=p;
+									previous[i]=v;
+								}
+							}
+						}
+					}
+				}
+				if (sink<0){
+					break;
+				}
+				for (int x=0;x<V;x++){
+					potentials[x]+=Math.min(paths[x], sinkPath);
+				}
+				// the bottleneck of the path back to its source
+				double amount=demand[sink-n];
+				int x=sink;
+				while (previous[x]>=0){
+					final int p=previous[x];
+					if (p>=n){
+						amount=Math.min(amount, flow[x*m+p-n]);
+					}
+					x=p;
+				}
+				amount=Math.min(amount, supply[x]);
+				supply[x]-=amount;
+				demand[sink-n]-=amount;
+				x=sink;
+				while (previous[x]>=0){
+					final int p=previous[x];
+					if (p<n){
+						flow[p*m+x-n]+=amount;
+						spent+=amount*cost[p*m+x-n];
+					} else {
+						flow[x*m+p-n]-=amount;
+						spent-=amount*cost[x*m+p-n];
+					}
+					x=p;
+				}
+				moved+=amount;
+			}
+			return moved>0?spent/moved:Double.NaN;
+		}
+	}
+}
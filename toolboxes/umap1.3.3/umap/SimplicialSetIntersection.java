@@ -0,0 +1,191 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.stream.IntStream;
+
+/*
+ * Java ports of the supervised UMAP kernels fast_intersection.m,
+ * reset_local_connectivity.m and general_simplicial_set_intersection.m.
+ * They work on the CSR graph of FuzzySimplicialSet in parallel over rows,
+ * overwriting its vals where the sparsity pattern does not change.
+ */
+public class SimplicialSetIntersection {
+
+	/**
+	 * fast_intersection.m in place: edges between points of different
+	 * labels are scaled by exp(-far_dist) and edges touching an unknown
+	 * label (-1) by exp(-unknown_dist).
+	 */
+	public static void Categorical(final FuzzySimplicialSet graph,
+			final double []target, final double unknown_dist, final double far_dist){
+		final double unknownScale=Math.exp(-unknown_dist), farScale=Math.exp(-far_dist);
+		IntStream.range(0, graph.n).parallel().forEach(row->{
+			final double rowLabel=target[row];
+			for (int e=graph.rowPtr[row];e<graph.rowPtr[row+1];e++){
+				final double colLabel=target[graph.colIdx[e]];
+				if (rowLabel==-1 || colLabel==-1){
+					graph.vals[e]*=unknownScale;
+				} else if (rowLabel!=colLabel){
+					graph.vals[e]*=farScale;
+				}
+			}
+		});
+	}
+
+	/**
+	 * categorical_simplicial_set_intersection.m: Categorical followed by
+	 * ResetLocalConnectivity.
+	 */
+	public static FuzzySimplicialSet CategoricalIntersection(
+			final FuzzySimplicialSet graph, final double []target,
+			final double unknown_dist, final double far_dist){
+		Categorical(graph, target, unknown_dist, far_dist);
+		return ResetLocalConnectivity(graph);
+	}
+
+	/**
+	 * reset_local_connectivity.m: divides each row by its maximum and
+	 * takes the fuzzy union with the transpose.  When the sparsity pattern
+	 * is symmetric (as the fuzzy union graphs are) the new strengths are
+	 * written back into graph.vals and graph is returned; otherwise a new
+	 * graph is built.
+	 */
+	public static FuzzySimplicialSet ResetLocalConnectivity(final FuzzySimplicialSet graph){
+		final int n=graph.n;
+		IntStream.range(0, n).parallel().forEach(row->{
+			double max=0;
+			for (int e=graph.rowPtr[row];e<graph.rowPtr[row+1];e++){
+				max=Math.max(max, graph.vals[e]);
+			}
+			if (max>0){
+				for (int e=graph.rowPtr[row];e<graph.rowPtr[row+1];e++){
+					graph.vals[e]/=max;
+				}
+			}
+		});
+		final int []transposed=TransposePositions(graph);
+		if (transposed==null){
+			return graph.union(graph.transpose(), 1);
+		}
+		final double []union=new double[graph.nnz()];
+		IntStream.range(0, n).parallel().forEach(row->{
+			for (int e=graph.rowPtr[row];e<graph.rowPtr[row+1];e++){
+				final double a=graph.vals[e], b=graph.vals[transposed[e]];
+				union[e]=a+b-a*b;
+			}
+		});
+		System.arraycopy(union, 0, graph.vals, 0, union.length);
+		return graph;
+	}
+
+	/**
+	 * @return for each entry (i,j) the position of entry (j,i) or null if
+	 * the sparsity pattern is not symmetric
+	 */
+	static int []TransposePositions(final FuzzySimplicialSet graph){
+		final int []positions=new int[graph.nnz()];
+		final boolean symmetric=IntStream.range(0, graph.n).parallel().allMatch(row->{
+			for (int e=graph.rowPtr[row];e<graph.rowPtr[row+1];e++){
+				final int col=graph.colIdx[e];
+				final int at=java.util.Arrays.binarySearch(graph.colIdx,
+						graph.rowPtr[col], graph.rowPtr[col+1], row);
+				if (at<0){
+					return false;
+				}
+				positions[e]=at;
+			}
+			return true;
+		});
+		return symmetric?positions:null;
+	}
+
+	/**
+	 * general_simplicial_set_intersection.m following umap-learn's
+	 * general_sset_intersection: the result has the union of both
+	 * sparsity patterns, a strength missing from one side counts as half
+	 * of that side's smallest strength and
+	 * weight < 0.5: left * right^(weight/(1-weight))
+	 * otherwise:    left^((1-weight)/weight) * right
+	 */
+	public static FuzzySimplicialSet General(final FuzzySimplicialSet left,
+			final FuzzySimplicialSet right, final double weight){
+		final int n=left.n;
+		final double leftMin=Math.max(MinPositive(left)/2, 1e-8),
+				rightMin=Math.max(MinPositive(right)/2, 1e-8);
+		final int []counts=new int[n];
+		IntStream.range(0, n).parallel().forEach(row->{
+			counts[row]=general(left, right, row, weight, leftMin, rightMin, null, null, 0);
+		});
+		final int []rowPtr=new int[n+1];
+		for (int row=0;row<n;row++){
+			rowPtr[row+1]=rowPtr[row]+counts[row];
+		}
+		final int []colIdx=new int[rowPtr[n]];
+		final double []vals=new double[rowPtr[n]];
+		IntStream.range(0, n).parallel().forEach(row->{
+			general(left, right, row, weight, leftMin, rightMin, colIdx, vals, rowPtr[row]);
+		});
+		return new FuzzySimplicialSet(n, rowPtr, colIdx, vals);
+	}
+
+	private static int general(final FuzzySimplicialSet left,
+			final FuzzySimplicialSet right, final int row, final double weight,
+			final double leftMin, final double rightMin, final int []outCols,
+			final double []outVals, final int outStart){
+		int e1=left.rowPtr[row], e2=right.rowPtr[row], out=outStart;
+		final int end1=left.rowPtr[row+1], end2=right.rowPtr[row+1];
+		while (e1<end1 || e2<end2){
+			final int c1=e1<end1?left.colIdx[e1]:Integer.MAX_VALUE,
+					c2=e2<end2?right.colIdx[e2]:Integer.MAX_VALUE;
+			final int col=Math.min(c1, c2);
+			double l=0, r=0;
+			if (c1==col){
+				l=left.vals[e1++];
+			}
+			if (c2==col){
+				r=right.vals[e2++];
+			}
+			double v=l+r;
+			if (v==0){
+				continue;
+			}
+			if (l==0){
+				l=leftMin;
+			}
+			if (r==0){
+				r=rightMin;
+			}
+			if (l>leftMin || r>rightMin){
+				if (weight<0.5){
+					v=l*Math.pow(r, weight/(1-weight));
+				} else {
+					v=Math.pow(l, (1-weight)/weight)*r;
+				}
+			}
+			if (outCols!=null){
+				outCols[out]=col;
+				outVals[out]=v;
+			}
+			out++;
+		}
+		return out-outStart;
+	}
+
+	static double MinPositive(final FuzzySimplicialSet graph){
+		double min=Double.POSITIVE_INFINITY;
+		for (int e=0;e<graph.vals.length;e++){
+			final double v=graph.vals[e];
+			if (v!=0 && v<min){
+				min=v;
+			}
+		}
+		return min==Double.POSITIVE_INFINITY?0:min;
+	}
+}
@@ -0,0 +1,129 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.stream.IntStream;
+
+/*
+ * Java port of smooth_knn_dist.m.  Each row's sigma (knn_dist) and rho
+ * (nn_dist) are solved independently so a row stops bisecting as soon
+ * as it is within SMOOTH_K_TOLERANCE instead of waiting for every other
+ * row to converge.  Rows are solved in parallel.
+ */
+public class SmoothKnnDist {
+	public static final double SMOOTH_K_TOLERANCE=1e-5;
+	public static final double MIN_K_DIST_SCALE=1e-3;
+
+	public final double []sigmas, rhos;
+	public final int identicalRows;
+
+	public SmoothKnnDist(final double [][]distances, final double k){
+		this(distances, k, 1, 64, 1, true);
+	}
+
+	public SmoothKnnDist(final double [][]distances, final double k,
+			final double local_connectivity, final int n_iter,
+			final double bandwidth, final boolean same_set){
+		final int height=distances.length;
+		final int n_neighbors=height>0?distances[0].length:0;
+		final double []flat=new double[height*n_neighbors];
+		for (int row=0;row<height;row++){
+			System.arraycopy(distances[row], 0, flat, row*n_neighbors, n_neighbors);
+		}
+		sigmas=new double[height];
+		rhos=new double[height];
+		identicalRows=Compute(flat, height, n_neighbors, k, local_connectivity,
+				n_iter, bandwidth, same_set, sigmas, rhos);
+	}
+
+	/**
+	 * Computes sigmas and rhos into the caller's arrays.
+	 *
+	 * @param distances row major height x n_neighbors, each row sorted ascending
+	 * @return the number of rows whose distances are all 0 (at least
+	 * n_neighbors identical data points)
+	 */
+	public static int Compute(final double []distances, final int height,
+			final int n_neighbors, final double k, final double local_connectivity,
+			final int n_iter, final double bandwidth, final boolean same_set,
+			final double []sigmas, final double []rhos){
+		if (height==0 || n_neighbors==0){
+			return 0;
+		}
+		final double target=(Math.log(k)/Math.log(2))*bandwidth;
+		final int index=(int)Math.floor(local_connectivity);
+		final double interpolation=local_connectivity-index;
+		final int firstCol=same_set?1:0;
+		final double meanOfAll=IntStream.range(0, height).parallel().mapToDouble(row->{
+			final int start=row*n_neighbors;
+			double sum=0;
+			for (int col=0;col<n_neighbors;col++){
+				sum+=distances[start+col];
+			}
+			return sum;
+		}).sum()/((double)height*n_neighbors);
+		return IntStream.range(0, height).parallel().map(row->{
+			final int start=row*n_neighbors;
+			int zeroDists=0;
+			double max=0, sum=0;
+			for (int col=0;col<n_neighbors;col++){
+				final double v=distances[start+col];
+				if (v==0){
+					zeroDists++;
+				}
+				if (v>max){
+					max=v;
+				}
+				sum+=v;
+			}
+			// aug_dists=[0 distances repmat(max, 1, index+1)]
+			final int augIdx=zeroDists+index;
+			final double aug=augValue(distances, start, n_neighbors, max, augIdx),
+					augNext=augValue(distances, start, n_neighbors, max, augIdx+1);
+			final double rho=aug+interpolation*(aug-augNext);
+			double lo=0, hi=Double.POSITIVE_INFINITY, mid=1;
+			for (int n=0;n<n_iter;n++){
+				double psum=0;
+				for (int col=firstCol;col<n_neighbors;col++){
+					final double d=distances[start+col]-rho;
+					if (d>0){
+						psum+=Math.exp(-d/mid);
+					} else {
+						psum+=1;
+					}
+				}
+				if (Math.abs(psum-target)<SMOOTH_K_TOLERANCE){
+					break;
+				}
+				if (psum>target){
+					hi=mid;
+					mid=(lo+hi)/2;
+				} else {
+					lo=mid;
+					mid=Math.min(2*lo, (lo+hi)/2);
+				}
+			}
+			final double minimum=MIN_K_DIST_SCALE*(rho>0?sum/n_neighbors:meanOfAll);
+			sigmas[row]=Math.max(mid, minimum);
+			rhos[row]=rho;
+			return zeroDists==n_neighbors?1:0;
+		}).sum();
+	}
+
+	private static double augValue(final double []distances, final int start,
+			final int n_neighbors, final double max, final int augIdx){
+		if (augIdx==0){
+			return 0;
+		}
+		if (augIdx<=n_neighbors){
+			return distances[start+augIdx-1];
+		}
+		return max;
+	}
+}
@@ -0,0 +1,325 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/*
+ * Java port of spectral_layout.m.  LOBPCG finds the n_components+1
+ * smallest eigenvectors of the normalized Laplacian
+ * L = I - D^-1/2 * A * D^-1/2 working directly on the CSR fuzzy graph
+ * with a parallel sparse mat-vec.  The iteration count is bounded and
+ * converged tells whether the residuals got below tolerance; if the
+ * solver breaks down the layout falls back to random just as
+ * spectral_layout.m does when eigs fails.
+ */
+public class SpectralLayout {
+	public int maxIterations=300;
+	public double tolerance=1e-4;
+	public boolean converged, fellBack;
+	public int iterations;
+	public double []eigenvalues;
+
+	private final FuzzySimplicialSet graph;
+	private final int n;
+	private final double []dInvSqrt;
+	private Random r=new Random(503l);
+
+	public SpectralLayout(final FuzzySimplicialSet graph){
+		this.graph=graph;
+		this.n=graph.n;
+		dInvSqrt=new double[n];
+		IntStream.range(0, n).parallel().forEach(row->{
+			double sum=0;
+			for (int e=graph.rowPtr[row];e<graph.rowPtr[row+1];e++){
+				sum+=graph.vals[e];
+			}
+			dInvSqrt[row]=sum>0?1/Math.sqrt(sum):0;
+		});
+	}
+
+	public void randomize(){
+		r=new Random();
+	}
+
+	/**
+	 * @return n x dim coordinates from eigenvectors 2 ... dim+1
+	 */
+	public double [][]compute(final int dim){
+		final int k=Math.min(dim+1, n);
+		double [][]vectors=null;
+		try{
+			vectors=lobpcg(k);
+		} catch (final ArithmeticException e){
+			vectors=null;
+		}
+		final double [][]out=new double[n][dim];
+		if (vectors==null){
+			fellBack=true;
+			for (int row=0;row<n;row++){
+				for (int m=0;m<dim;m++){
+					out[row][m]=-10+20*r.nextDouble();
+				}
+			}
+			return out;
+		}
+		for (int m=0;m<dim && m+1<k;m++){
+			final double []v=vectors[m+1];
+			for (int row=0;row<n;row++){
+				out[row][m]=v[row];
+			}
+		}
+		return out;
+	}
+
+	void laplacian(final double []x, final double []y){
+		IntStream.range(0, n).parallel().forEach(row->{
+			double sum=0;
+			for (int e=graph.rowPtr[row];e<graph.rowPtr[row+1];e++){
+				final int col=graph.colIdx[e];
+				sum+=graph.vals[e]*dInvSqrt[col]*x[col];
+			}
+			y[row]=x[row]-dInvSqrt[row]*sum;
+		});
+	}
+
+	private double [][]lobpcg(final int k){
+		double [][]x=new double[k][n];
+		for (int j=0;j<k;j++){
+			for (int row=0;row<n;row++){
+				x[j][row]=r.nextGaussian();
+			}
+		}
+		x=orthonormalize(x, k);
+		if (x.length<k){
+			throw new ArithmeticException("degenerate start");
+		}
+		double [][]ax=apply(x);
+		double [][]p=null;
+		eigenvalues=new double[k];
+		for (iterations=1;iterations<=maxIterations;iterations++){
+			final double [][]gram=project(x, ax);
+			final double [][]ritz=new double[k][k];
+			final double []values=SymmetricEigen(gram, ritz);
+			x=combine(x, ritz, k);
+			ax=combine(ax, ritz, k);
+			double maxResidual=0;
+			final double [][]res=new double[k][];
+			for (int j=0;j<k;j++){
+				eigenvalues[j]=values[j];
+				final double []xj=x[j], axj=ax[j], rj=new double[n];
+				final double lambda=values[j];
+				maxResidual=Math.max(maxResidual, Math.sqrt(IntStream.range(0, n).parallel()
+						.mapToDouble(row->{
+							rj[row]=axj[row]-lambda*xj[row];
+							return rj[row]*rj[row];
+						}).sum()));
+				res[j]=rj;
+			}
+			if (Double.isNaN(maxResidual)){
+				throw new ArithmeticException("NaN residual");
+			}
+			if (maxResidual<tolerance){
+				converged=true;
+				return x;
+			}
+			// Rayleigh-Ritz on span[x, residuals, previous directions]
+			final int m=k+k+(p==null?0:p.length);
+			final double [][]basis=new double[m][];
+			System.arraycopy(x, 0, basis, 0, k);
+			System.arraycopy(res, 0, basis, k, k);
+			if (p!=null){
+				System.arraycopy(p, 0, basis, k+k, p.length);
+			}
+			final double [][]s=orthonormalize(basis, k);
+			final double [][]as=new double[s.length][];
+			System.arraycopy(ax, 0, as, 0, k);
+			for (int j=k;j<s.length;j++){
+				as[j]=new double[n];
+				laplacian(s[j], as[j]);
+			}
+			final double [][]sGram=project(s, as);
+			final double [][]c=new double[s.length][s.length];
+			SymmetricEigen(sGram, c);
+			final double [][]newX=new double[k][], newAx=new double[k][];
+			final double [][]newP=new double[k][];
+			for (int j=0;j<k;j++){
+				newX[j]=new double[n];
+				newAx[j]=new double[n];
+				newP[j]=new double[n];
+			}
+			final int m2=s.length;
+			IntStream.range(0, n).parallel().forEach(row->{
+				for (int j=0;j<k;j++){
+					double xv=0, axv=0, pv=0;
+					for (int i=0;i<m2;i++){
+						final double ci=c[j][i];
+						final double sv=s[i][row]*ci, asv=as[i][row]*ci;
+						xv+=sv;
+						axv+=asv;
+						if (i>=k){
+							pv+=sv;
+						}
+					}
+					newX[j][row]=xv;
+					newAx[j][row]=axv;
+					newP[j][row]=pv;
+				}
+			});
+			x=newX;
+			ax=newAx;
+			p=newP;
+		}
+		iterations=maxIterations;
+		return x;
+	}
+
+	private double [][]apply(final double [][]v){
+		final double [][]out=new double[v.length][n];
+		for (int j=0;j<v.length;j++){
+			laplacian(v[j], out[j]);
+		}
+		return out;
+	}
+
+	private double [][]project(final double [][]s, final double [][]as){
+		final int m=s.length;
+		final double [][]g=new double[m][m];
+		for (int i=0;i<m;i++){
+			for (int j=i;j<m;j++){
+				final double d=Dot(s[i], as[j]);
+				g[i][j]=d;
+				g[j][i]=d;
+			}
+		}
+		return g;
+	}
+
+	private double [][]combine(final double [][]v, final double [][]c, final int k){
+		final double [][]out=new double[k][n];
+		final int m=v.length;
+		IntStream.range(0, n).parallel().forEach(row->{
+			for (int j=0;j<k;j++){
+				double sum=0;
+				for (int i=0;i<m;i++){
+					sum+=v[i][row]*c[j][i];
+				}
+				out[j][row]=sum;
+			}
+		});
+		return out;
+	}
+
+	/**
+	 * Modified Gram-Schmidt; the first keep vectors are assumed to be
+	 * orthonormal already, later vectors that become numerically
+	 * dependent are dropped.
+	 */
+	private double [][]orthonormalize(final double [][]v, final int keep){
+		final double [][]out=new double[v.length][];
+		int m=0;
+		for (int j=0;j<v.length;j++){
+			final double []vj=v[j].clone();
+			final double before=Math.sqrt(Dot(vj, vj));
+			for (int pass=0;pass<2;pass++){
+				for (int i=0;i<m;i++){
+					final double d=Dot(out[i], vj);
+					final double []oi=out[i];
+					IntStream.range(0, n).parallel().forEach(row->vj[row]-=d*oi[row]);
+				}
+			}
+			final double norm=Math.sqrt(Dot(vj, vj));
+			if (norm<=1e-10*Math.max(1, before)){
+				if (j<keep){
+					throw new ArithmeticException("dependent block");
+				}
+				continue;
+			}
+			final double inv=1/norm;
+			IntStream.range(0, n).parallel().forEach(row->vj[row]*=inv);
+			out[m++]=vj;
+		}
+		final double [][]trimmed=new double[m][];
+		System.arraycopy(out, 0, trimmed, 0, m);
+		return trimmed;
+	}
+
+	static double Dot(final double []a, final double []b){
+		return IntStream.range(0, a.length).parallel().mapToDouble(i->a[i]*b[i]).sum();
+	}
+
+	/**
+	 * Cyclic Jacobi eigen decomposition of a small symmetric matrix.
+	 *
+	 * @param vectors receives the eigenvectors as rows in ascending
+	 * eigenvalue order (as many rows as it has)
+	 * @return the eigenvalues ascending
+	 */
+	static double []SymmetricEigen(final double [][]matrix, final double [][]vectors){
+		final int m=matrix.length;
+		final double [][]a=new double[m][];
+		final double [][]v=new double[m][m];
+		for (int i=0;i<m;i++){
+			a[i]=matrix[i].clone();
+			v[i][i]=1;
+		}
+		for (int sweep=0;sweep<100;sweep++){
+			double off=0;
+			for (int i=0;i<m;i++){
+				for (int j=i+1;j<m;j++){
+					off+=a[i][j]*a[i][j];
+				}
+			}
+			if (off<1e-30){
+				break;
+			}
+			for (int p=0;p<m;p++){
+				for (int q=p+1;q<m;q++){
+					if (a[p][q]==0){
+						continue;
+					}
+					final double theta=(a[q][q]-a[p][p])/(2*a[p][q]);
+					final double t=Math.signum(theta==0?1:theta)/(Math.abs(theta)+Math.sqrt(theta*theta+1));
+					final double c=1/Math.sqrt(t*t+1), s=t*c;
+					for (int i=0;i<m;i++){
+						final double aip=a[i][p], aiq=a[i][q];
+						a[i][p]=c*aip-s*aiq;
+						a[i][q]=s*aip+c*aiq;
+					}
+					for (int i=0;i<m;i++){
+						final double api=a[p][i], aqi=a[q][i];
+						a[p][i]=c*api-s*aqi;
+						a[q][i]=s*api+c*aqi;
+					}
+					for (int i=0;i<m;i++){
+						final double vip=v[i][p], viq=v[i][q];
+						v[i][p]=c*vip-s*viq;
+						v[i][q]=s*vip+c*viq;
+					}
+				}
+			}
+		}
+		final Integer []order=new Integer[m];
+		for (int i=0;i<m;i++){
+			order[i]=i;
+		}
+		java.util.Arrays.sort(order, (l, r)->Double.compare(a[l][l], a[r][r]));
+		final double []values=new double[m];
+		for (int j=0;j<m;j++){
+			values[j]=a[order[j]][order[j]];
+			if (j<vectors.length){
+				for (int i=0;i<m;i++){
+					vectors[j][i]=v[i][order[j]];
+				}
+			}
+		}
+		return values;
+	}
+}
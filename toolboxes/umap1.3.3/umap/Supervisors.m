@@ -434,9 +434,32 @@ classdef Supervisors < handle
                 hold(ax, 'on');
             end
             N_=length(this.density.clusterColors);
+            try
+                % every cluster's border traced as closed polygons (holes
+                % included) from one sweep of the label grid
+                gc=edu.stanford.facs.swing.GridContours(this.density.M);
+                gc.traceClusters(this.density.pointers, ...
+                    this.density.mins, this.density.deltas);
+                ids=gc.ids;
+                starts=gc.starts;
+                edgeX=gc.x;
+                edgeY=gc.y;
+            catch
+                gc=[];
+            end
             for i=1:N_
                 clr=(str2num(this.density.clusterColors{i})/256)*.85;
-                gridEdge(this.density, true, i, clr, ax, .8, '.', '-', .5);
+                if isempty(gc)
+                    gridEdge(this.density, true, i, clr, ax, .8, '.', '-', .5);
+                else
+                    k=find(ids==i, 1);
+                    if ~isempty(k)
+                        idxs=starts(k)+1:starts(k+1);
+                        plot(ax, edgeX(idxs), edgeY(idxs), 'marker', '.', ...
+                            'MarkerSize', .8, 'Color', clr, ...
+                            'LineStyle', '-', 'LineWidth', .5);
+                    end
+                end
                 if Supervisors.VERBOSE
                     str2num(this.density.clusterColors{i})
                     clr
@@ -0,0 +1,443 @@
+/***
+ * Author: Stephen Meehan, swmeehan@stanford.edu
+ *
+ * Provided by the Herzenberg Lab at Stanford University
+ *
+ * License: BSD 3 clause
+ */
+
+package edu.stanford.facs.swing;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/*
+ * Runs the UMAP stages of nearest_neighbors.m, fuzzy_simplicial_set.m,
+ * simplicial_set_embedding.m and choose_optimize_layout.m in process so the
+ * raw data crosses from MATLAB once and only the embedding (and optionally
+ * the graph) crosses back.  The kNN and graph stages share flat row major
+ * primitive buffers.
+ *
+ * The kNN stage is an exact euclidean search in parallel: by kd-tree for
+ * up to KD_TREE_COLS columns (knnsearch's own rule) and otherwise by
+ * scanning all rows, which is O(rows^2) so above exhaustive_knn_limit rows
+ * run() refuses and callers must supply the neighbors with setKnn().
+ * Callers with a faster or non euclidean search can always do so and the
+ * stage is skipped.
+ */
+public class UmapPipeline {
+	public static final String []STAGES={"nearest neighbors", "smooth knn dist",
+			"fuzzy simplicial set", "initialize", "stochastic gradient descent"};
+	public static final int KNN=0, SMOOTH=1, GRAPH=2, INIT=3, SGD=4;
+
+	public int n_neighbors=15, n_components=2, n_epochs=0, negative_sample_rate=5;
+	public int probability_bin_limit=20*4096, exhaustive_knn_limit=100000;
+	public static final int KD_TREE_COLS=10;
+	public double a=1.576943460405378, b=0.8950608781227859; // spread 1, min_dist 0.1
+	public double local_connectivity=1, set_op_mix_ratio=1, gamma=1, learning_rate=1;
+	public boolean keepGraph=false, spectral=true;
+
+	private final double []data;
+	private final int rows, cols;
+	private int []knnIndices;
+	private double []knnDists;
+	private double [][]init;
+	private FuzzySimplicialSet graph;
+	private double [][]embedding;
+	private final long []nanos=new long[STAGES.length];
+	private Random r=new Random(503l);
+
+	public UmapPipeline(final double [][]data){
+		this.rows=data.length;
+		this.cols=rows>0?data[0].length:0;
+		this.data=FuzzySimplicialSet.flat(data);
+	}
+
+	public void randomize(){
+		r=new Random();
+	}
+
+	/**
+	 * @param knn_indices 1 based as returned by MATLAB's knnsearch
+	 */
+	public void setKnn(final double [][]knn_indices, final double [][]knn_dists){
+		knnIndices=FuzzySimplicialSet.flatIndices(knn_indices);
+		knnDists=FuzzySimplicialSet.flat(knn_dists);
+		n_neighbors=knn_indices.length>0?knn_indices[0].length:0;
+	}
+
+	public void setInit(final double [][]init){
+		this.init=init;
+	}
+
+	public double [][]run(){
+		long start=System.nanoTime();
+		if (knnIndices==null){
+			if (rows<=n_neighbors){
+				n_neighbors=rows-1;
+			}
+			if (cols>KD_TREE_COLS && rows>exhaustive_knn_limit){
+				throw new IllegalStateException(rows+" rows of "+cols
+						+" columns are too many to search exhaustively, setKnn() first");
+			}
+			knnIndices=new int[rows*n_neighbors];
+			knnDists=new double[rows*n_neighbors];
+			Knn(data, rows, cols, n_neighbors, knnIndices, knnDists);
+		}
+		start=lap(KNN, start);
+		final double []sigmas=new double[rows], rhos=new double[rows];
+		SmoothKnnDist.Compute(knnDists, rows, n_neighbors, n_neighbors,
+				local_connectivity, 64, 1, true, sigmas, rhos);
+		start=lap(SMOOTH, start);
+		graph=FuzzySimplicialSet.Build(knnIndices, knnDists, rows, n_neighbors,
+				sigmas, rhos, true, set_op_mix_ratio);
+		start=lap(GRAPH, start);
+		if (n_epochs<=0){
+			n_epochs=rows<=10000?500:200;
+		}
+		double [][]headEmbedding=null;
+		if (init!=null){
+			headEmbedding=StochasticGradientDescent.Copy(init);
+		}else if (spectral){
+			headEmbedding=spectralLayout();
+		}
+		if (headEmbedding==null){
+			headEmbedding=new double[rows][n_components];
+			for (int row=0;row<rows;row++){
+				for (int m=0;m<n_components;m++){
+					headEmbedding[row][m]=-10+20*r.nextDouble();
+				}
+			}
+		}
+		start=lap(INIT, start);
+		final FuzzySimplicialSet.Edges edges=graph.getEdges();
+		final StochasticGradientDescent sgd=new StochasticGradientDescent(
+				headEmbedding, headEmbedding, edges.head, edges.tail, n_epochs,
+				rows, edges.epochs_per_sample, a, b, gamma, learning_rate,
+				negative_sample_rate);
+		while (!sgd.nextEpochs()){
+		}
+		embedding=sgd.getEmbedding();
+		lap(SGD, start);
+		if (!keepGraph){
+			graph=null;
+		}
+		knnIndices=null;
+		knnDists=null;
+		return embedding;
+	}
+
+	/**
+	 * As simplicial_set_embedding.m: the binned layout above
+	 * probability_bin_limit rows, else (or if the bins' LOBPCG did not
+	 * converge) the layout of the pruned graph, expanded to 10.
+	 * 
+	 * @return null if LOBPCG did not converge where spectral_layout.m
+	 * would go on to eigs, so run() starts from random instead
+	 */
+	private double [][]spectralLayout(){
+		double [][]layout=null;
+		if (probability_bin_limit>=0 && rows>probability_bin_limit){
+			final BinnedSpectralLayout binned=new BinnedSpectralLayout(data, rows, cols);
+			layout=binned.compute(n_components);
+			if (!binned.layout.converged){
+				layout=null;
+			}
+		}
+		if (layout==null){
+			// as simplicial_set_embedding.m, the pruned graph is also optimized
+			graph=graph.removeBelow(graph.max()/n_epochs);
+			final SpectralLayout full=new SpectralLayout(graph);
+			layout=full.compute(n_components);
+			if (!full.converged){
+				return null;
+			}
+		}
+		double max=0;
+		for (int row=0;row<rows;row++){
+			for (int m=0;m<n_components;m++){
+				max=Math.max(max, layout[row][m]);
+			}
+		}
+		final double expansion=10/max;
+		for (int row=0;row<rows;row++){
+			for (int m=0;m<n_components;m++){
+				layout[row][m]=layout[row][m]*expansion+0.0001*r.nextGaussian();
+			}
+		}
+		return layout;
+	}
+
+	private long lap(final int stage, final long start){
+		final long now=System.nanoTime();
+		nanos[stage]=now-start;
+		return now;
+	}
+
+	public double [][]getEmbedding(){
+		return embedding;
+	}
+
+	public FuzzySimplicialSet getGraph(){
+		return graph;
+	}
+
+	/**
+	 * @return seconds spent in each of STAGES
+	 */
+	public double []getTimings(){
+		final double []seconds=new double[nanos.length];
+		for (int i=0;i<nanos.length;i++){
+			seconds[i]=nanos[i]/1e9;
+		}
+		return seconds;
+	}
+
+	/**
+	 * Exact euclidean k nearest neighbors of every row including itself
+	 * (as knnsearch(X,X) returns them), each row sorted ascending with ties
+	 * in distance in row order.  Uses a kd-tree for up to KD_TREE_COLS
+	 * columns, else scans all rows.
+	 */
+	public static void Knn(final double []data, final int rows, final int cols,
+			final int k, final int []knnIndices, final double []knnDists){
+		if (cols<=KD_TREE_COLS){
+			new KdTree(data, rows, cols).knn(k, knnIndices, knnDists);
+		} else {
+			KnnByScan(data, rows, cols, k, knnIndices, knnDists);
+		}
+	}
+
+	static void KnnByScan(final double []data, final int rows, final int cols,
+			final int k, final int []knnIndices, final double []knnDists){
+		IntStream.range(0, rows).parallel().forEach(row->{
+			final int out=row*k;
+			final int a=row*cols;
+			int found=0;
+			for (int other=0;other<rows;other++){
+				final int b=other*cols;
+				double sum=0;
+				for (int col=0;col<cols;col++){
+					final double d=data[a+col]-data[b+col];
+					sum+=d*d;
+				}
+				if (found==k && sum>=knnDists[out+k-1]){
+					continue;
+				}
+				int at=found<k?out+found++:out+k-1;
+				while (at>out && knnDists[at-1]>sum){
+					knnDists[at]=knnDists[at-1];
+					knnIndices[at]=knnIndices[at-1];
+					at--;
+				}
+				knnDists[at]=sum;
+				knnIndices[at]=other;
+			}
+			for (int j=0;j<k;j++){
+				knnDists[out+j]=Math.sqrt(knnDists[out+j]);
+			}
+		});
+	}
+
+	/*
+	 * Median splits on the widest column down to leaves of LEAF rows.  A
+	 * query descends to the nearer side first and visits the farther side
+	 * only if the splitting plane is no farther than its kth neighbor, so
+	 * the neighbors are exactly those of KnnByScan().
+	 */
+	private static final class KdTree{
+		private static final int LEAF=16;
+		private final double []data;
+		private final int cols;
+		private final int []order;
+		private final int []from, to, splitCol, left, right;
+		private final double []split;
+		private int nodes=0;
+
+		KdTree(final double []data, final int rows, final int cols){
+			this.data=data;
+			this.cols=cols;
+			order=IntStream.range(0, rows).toArray();
+			final int capacity=4*(rows/LEAF+1);
+			from=new int[capacity];
+			to=new int[capacity];
+			splitCol=new int[capacity];
+			left=new int[capacity];
+			right=new int[capacity];
+			split=new double[capacity];
+			build(0, rows);
+		}
+
+		private int build(final int lo, final int hi){
+			final int node=nodes++;
+			from[node]=lo;
+			to[node]=hi;
+			left[node]=-1;
+			if (hi-lo<=LEAF){
+				return node;
+			}
+			int widest=0;
+			double width=0;
+			for (int col=0;col<cols;col++){
+				double min=Double.POSITIVE_INFINITY, max=Double.NEGATIVE_INFINITY;
+				for (int i=lo;i<hi;i++){
+					final double v=data[order[i]*cols+col];
+					min=Math.min(min, v);
+					max=Math.max(max, v);
+				}
+				if (max-min>width){
+					width=max-min;
+					widest=col;
+				}
+			}
+			if (width==0){ // all rows the same
+				return node;
+			}
+			final int mid=(lo+hi)>>>1;
+			select(lo, hi, mid, widest);
+			splitCol[node]=widest;
+			split[node]=data[order[mid]*cols+widest];
+			left[node]=build(lo, mid);
+			right[node]=build(mid, hi);
+			return node;
+		}
+
+		/**
+		 * Partially orders order[lo..hi) on col so that order[nth] has
+		 * nothing greater before it and nothing less after it.
+		 */
+		private void select(int lo, int hi, final int nth, final int col){
+			while (hi-lo>1){
+				final double pivot=data[order[(lo+hi)>>>1]*cols+col];
+				int lt=lo, i=lo, gt=hi;
+				while (i<gt){
+					final double v=data[order[i]*cols+col];
+					if (v<pivot){
+						swap(lt++, i++);
+					} else if (v>pivot){
+						swap(i, --gt);
+					} else {
+						i++;
+					}
+				}
+				if (nth<lt){
+					hi=lt;
+				} else if (nth>=gt){
+					lo=gt;
+				} else {
+					return;
+				}
+			}
+		}
+
+		private void swap(final int i, final int j){
+			final int t=order[i];
+			order[i]=order[j];
+			order[j]=t;
+		}
+
+		void knn(final int k, final int []knnIndices, final double []knnDists){
+			IntStream.range(0, order.length).parallel().forEach(row->{
+				final Query q=new Query(row, k, knnIndices, knnDists);
+				q.visit(0);
+				for (int j=0;j<k;j++){
+					knnDists[q.out+j]=Math.sqrt(knnDists[q.out+j]);
+				}
+			});
+		}
+
+		private final class Query{
+			final int a, out, k;
+			final int []knnIndices;
+			final double []knnDists;
+			int found=0;
+
+			Query(final int row, final int k, final int []knnIndices,
+					final double []knnDists){
+				a=row*cols;
+				out=row*k;
+				this.k=k;
+				this.knnIndices=knnIndices;
+				this.knnDists=knnDists;
+			}
+
+			void visit(final int node){
+				if (left[node]<0){
+					for (int i=from[node];i<to[node];i++){
+						offer(order[i]);
+					}
+					return;
+				}
+				final double d=data[a+splitCol[node]]-split[node];
+				visit(d<0?left[node]:right[node]);
+				if (found<k || d*d<=knnDists[out+k-1]){
+					visit(d<0?right[node]:left[node]);
+				}
+			}
+
+			private void offer(final int other){
+				final int b=other*cols;
+				double sum=0;
+				for (int col=0;col<cols;col++){
+					final double d=data[a+col]-data[b+col];
+					sum+=d*d;
+				}
+				if (found==k && !before(sum, other, out+k-1)){
+					return;
+				}
+				int at=found<k?out+found++:out+k-1;
+				while (at>out && before(sum, other, at-1)){
+					knnDists[at]=knnDists[at-1];
+					knnIndices[at]=knnIndices[at-1];
+					at--;
+				}
+				knnDists[at]=sum;
+				knnIndices[at]=other;
+			}
+
+			private boolean before(final double sum, final int other, final int at){
+				return sum<knnDists[at] || (sum==knnDists[at] && other<knnIndices[at]);
+			}
+		}
+	}
+
+	public static void main(final String []args){
+		Test.go(args);
+	}
+
+	/*
+	 * Checks Knn()'s kd-tree against KnnByScan() on random clustered rows
+	 * with duplicates.
+	 */
+	private static class Test{
+		static void go(final String []args){
+			final Random r=new Random(args.length>0?Long.parseLong(args[0]):5);
+			int bad=0, n=0;
+			for (final int cols:new int[]{1, 2, 3, 5, KD_TREE_COLS}){
+				for (final int rows:new int[]{2, 17, 300, 5000}){
+					final double []data=new double[rows*cols];
+					for (int row=0;row<rows;row++){
+						final int copied=r.nextInt(10)==0 && row>0?r.nextInt(row):-1;
+						for (int col=0;col<cols;col++){
+							data[row*cols+col]=copied>=0?data[copied*cols+col]
+									:Math.round(r.nextGaussian()*20+(row%4)*50)/4.0;
+						}
+					}
+					final int k=Math.min(15, rows);
+					final int []indices=new int[rows*k], scanIndices=new int[rows*k];
+					final double []dists=new double[rows*k], scanDists=new double[rows*k];
+					Knn(data, rows, cols, k, indices, dists);
+					KnnByScan(data, rows, cols, k, scanIndices, scanDists);
+					n++;
+					if (!java.util.Arrays.equals(indices, scanIndices)
+							|| !java.util.Arrays.equals(dists, scanDists)){
+						System.out.println("kd-tree differs for "+rows+" rows of "
+								+cols+" columns");
+						bad++;
+					}
+				}
+			}
+			System.out.println(bad+" of "+n+" searches differ");
+		}
+	}
+}
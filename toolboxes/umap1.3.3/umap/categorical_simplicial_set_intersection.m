@@ -44,6 +44,17 @@ function simplicial_set = categorical_simplicial_set_intersection(simplicial_set
     
     simplicial_set = sparse(simplicial_set);
     [row,col,data] = find(simplicial_set);
+    try
+        % scale and reset local connectivity in place on the CSR graph
+        jGraph = edu.stanford.facs.swing.SimplicialSetIntersection.CategoricalIntersection(...
+            edu.stanford.facs.swing.FuzzySimplicialSet.FromCoo(row, col, data, n_rows),...
+            target, unknown_dist, far_dist);
+        coo = jGraph.toCoo;
+        simplicial_set = sparse(coo(1,:), coo(2,:), coo(3,:), n_rows, n_cols);
+        return;
+    catch
+        % umap.jar predates SimplicialSetIntersection
+    end
 
     values = fast_intersection(row, col, data, target, unknown_dist, far_dist);
     
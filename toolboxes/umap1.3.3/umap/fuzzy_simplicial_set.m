@@ -107,6 +107,16 @@ function fuzzy_simplicial_set = fuzzy_simplicial_set(X, n_neighbors, random_stat
 
     [sigmas, rhos] = smooth_knn_dist(knn_dists, n_neighbors, local_connectivity);
 
+    try
+        % membership strengths and fuzzy union in one CSR pass
+        jGraph = edu.stanford.facs.swing.FuzzySimplicialSet(knn_indices,...
+            knn_dists, sigmas, rhos, true, set_op_mix_ratio);
+        coo = jGraph.toCoo;
+        fuzzy_simplicial_set = sparse(coo(1,:), coo(2,:), coo(3,:), X_rows, X_rows);
+        return;
+    catch
+        % umap.jar predates FuzzySimplicialSet
+    end
     [rows, cols, vals] = compute_membership_strengths(knn_indices, knn_dists, sigmas, rhos);
 
     result = sparse(rows, cols, vals, X_rows, X_rows);
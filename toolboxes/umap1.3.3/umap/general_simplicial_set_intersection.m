@@ -32,6 +32,20 @@ function result = general_simplicial_set_intersection(simplicial_set1, simplicia
         weight = 0.5;
     end
 
+    try
+        [n_row, n_col] = size(simplicial_set1);
+        [row1, col1, data1] = find(sparse(simplicial_set1));
+        [row2, col2, data2] = find(sparse(simplicial_set2));
+        jGraph = edu.stanford.facs.swing.SimplicialSetIntersection.General(...
+            edu.stanford.facs.swing.FuzzySimplicialSet.FromCoo(row1, col1, data1, n_row),...
+            edu.stanford.facs.swing.FuzzySimplicialSet.FromCoo(row2, col2, data2, n_row),...
+            weight);
+        coo = jGraph.toCoo;
+        result = sparse(coo(1,:), coo(2,:), coo(3,:), n_row, n_col);
+        return;
+    catch
+        % umap.jar predates SimplicialSetIntersection
+    end
     result = sparse(simplicial_set1 + simplicial_set2);
     left = sparse(simplicial_set1);
     right = sparse(simplicial_set2);
@@ -13,27 +13,66 @@ function [means, teachPtrs, studPtrs, teachWeights, studWeights, ...
         doFixedSplits=false;
     end
     doNotDuplicate=isequal(studData, teachData);
+    if doNotDuplicate
+        minN=size(teachData, 1);
+    else
+        minN=min([size(teachData, 1) size(studData,1)]);
+    end
+    if nargin<3 || isempty(minBinSize)
+        %minBinSize=floor(2*log(N));
+        minBinSize=floor(2*log(minN));
+    else
+        minBinSize=floor(minBinSize);
+    end
+    javaBinned=false;
+    try
+        % same bins splitting a permutation in place by median selection
+        if doNotDuplicate
+            pb=edu.stanford.facs.swing.ProbabilityBinner.Bin(...
+                teachData, [], minBinSize, doFixedSplits);
+        else
+            pb=edu.stanford.facs.swing.ProbabilityBinner.Bin(...
+                teachData, studData, minBinSize, doFixedSplits);
+        end
+        means=pb.means;
+        teachPtrs=double(pb.getTeachPtrs)';
+        if doNotDuplicate
+            studPtrs=teachPtrs;
+        else
+            studPtrs=double(pb.getStudPtrs)';
+        end
+        if nargout>3
+            teachWeights=pb.getTeachWeights;
+            if doNotDuplicate
+                studWeights=teachWeights;
+            else
+                studWeights=pb.getStudWeights;
+            end
+        end
+        javaBinned=true;
+    catch
+        % umap.jar predates ProbabilityBinner
+    end
+    if javaBinned
+        if nargin>4 && ~isempty(cacheFile)
+            binSize=minBinSize;
+            save(cacheFile, 'means', 'teachPtrs', 'studPtrs', 'binSize');
+        end
+        return;
+    end
     if doNotDuplicate
         data=teachData;
         studData=[];
         [N, m] = size(data);
-        minN=N;
     else
         data=[teachData;studData];
         [N, m] = size(data);
-        minN=min([size(teachData, 1) size(studData,1)]);
     end
     currentBins=cell(1,1);
     firstEntry=cell(1);
     firstEntry{1}=data; %first set is 1 bin-->the original data
     currentBins{1}=firstEntry;
     currentBinPtrs{1}={[1:N]'};
-    if nargin<3 || isempty(minBinSize)
-        %minBinSize=floor(2*log(N));
-        minBinSize=floor(2*log(minN));
-    else
-        minBinSize=floor(minBinSize);
-    end
     %fprintf('The minimum probability bin size is %d\n', minBinSize);
     i=0;
     while true
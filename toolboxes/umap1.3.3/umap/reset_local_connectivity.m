@@ -26,6 +26,18 @@ function simplicial_set = reset_local_connectivity(simplicial_set)
 %   License: BSD 3 clause
     
     n_cols = size(simplicial_set, 2);
+    if issparse(simplicial_set)
+        try
+            [row,col,data] = find(simplicial_set);
+            jGraph = edu.stanford.facs.swing.SimplicialSetIntersection.ResetLocalConnectivity(...
+                edu.stanford.facs.swing.FuzzySimplicialSet.FromCoo(row, col, data, n_cols));
+            coo = jGraph.toCoo;
+            simplicial_set = sparse(coo(1,:), coo(2,:), coo(3,:), n_cols, n_cols);
+            return;
+        catch
+            % umap.jar predates SimplicialSetIntersection
+        end
+    end
 
     divisor = max(simplicial_set,[],2);
     if ~issparse(simplicial_set)
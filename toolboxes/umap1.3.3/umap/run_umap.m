@@ -797,21 +797,30 @@ end
             pu2=PopUp('Finding clusters with dbscan', 'north', ...
                 'Clustering...', false);
             try
-                clusters=dbscan(data, epsilon, neighbors);
+                % same labels as MATLAB's dbscan on a grid index
+                clusters=double(edu.stanford.facs.swing.DbScan.Cluster(...
+                    data, epsilon, neighbors));
             catch ex
+                clusters=[];
+            end
+            if isempty(clusters)
                 try
-                    % see if DBSCAN is available
-                    DBSCAN(randi(100, 50, 3), .5, 15);
-                    %YES
-                    pu2.setText(Html.WrapHr(['MATLAB''s dbscan not '...
-                        'available ... <br>using DBSCAN from'...
-                        'MathWorks File Exchange.<br><br><i>Note that'...
-                        ' DBSCAN is quite slow!</i>']));
-                    clusters=DBSCAN(data, epsilon, neighbors);
+                    clusters=dbscan(data, epsilon, neighbors);
                 catch ex
-                    disp('No dbscan ... before r2019a');
-                    if plotting
-                        Density.DownloadDbScan;
+                    try
+                        % see if DBSCAN is available
+                        DBSCAN(randi(100, 50, 3), .5, 15);
+                        %YES
+                        pu2.setText(Html.WrapHr(['MATLAB''s dbscan not '...
+                            'available ... <br>using DBSCAN from'...
+                            'MathWorks File Exchange.<br><br><i>Note that'...
+                            ' DBSCAN is quite slow!</i>']));
+                        clusters=DBSCAN(data, epsilon, neighbors);
+                    catch ex
+                        disp('No dbscan ... before r2019a');
+                        if plotting
+                            Density.DownloadDbScan;
+                        end
                     end
                 end
             end
@@ -60,9 +60,22 @@ function [knn_dist, nn_dist] = smooth_knn_dist(distances, k, local_connectivity,
         end
     end
     
+    try
+        % per row bisection with early exit, rows solved in parallel
+        jSmooth = edu.stanford.facs.swing.SmoothKnnDist(distances, k,...
+            local_connectivity, n_iter, bandwidth, same_set);
+        if jSmooth.identicalRows > 0
+            warning('There are at least n_neighbors identical data points in the raw data. Results may be inaccurate.');
+        end
+        knn_dist = jSmooth.sigmas;
+        nn_dist = jSmooth.rhos;
+        return;
+    catch
+        % umap.jar predates SmoothKnnDist, fall back to vectorized MATLAB
+    end
     SMOOTH_K_TOLERANCE = 1e-5;
     MIN_K_DIST_SCALE = 1e-3;
-    
+
     height = size(distances,1);
     
     target = log2(k)*bandwidth;
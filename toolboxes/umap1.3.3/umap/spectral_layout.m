@@ -35,6 +35,20 @@ function eigenvectors = spectral_layout(a_graph, dim)
               warning('The adjacency graph is not connected!');
         end
 
+        try
+            % LOBPCG on the CSR graph with a bounded iteration budget
+            [graph_i, graph_j, graph_v] = find(a_graph);
+            jLayout = edu.stanford.facs.swing.SpectralLayout(...
+                edu.stanford.facs.swing.FuzzySimplicialSet.FromCoo(...
+                graph_i, graph_j, graph_v, n_samples));
+            eigenvectors = jLayout.compute(dim);
+            if jLayout.converged
+                return;
+            end
+            %not converged within the budget: use eigs or lobpcg.m below
+        catch
+            % umap.jar predates SpectralLayout
+        end
         diag_data = sum(a_graph)';
         D = spdiags(ones(n_samples,1)./sqrt(diag_data), 0, n_samples, n_samples);
         L = speye(n_samples) - D * a_graph * D;    
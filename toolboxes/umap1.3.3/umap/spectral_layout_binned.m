@@ -37,6 +37,19 @@ if ~strcmp(init, UMAP.INIT_EIGEN) && limit>=0
     sz=size(data,1);
     needLobpcg=sz>UMAP.EIGEN_LIMIT && ~exist('lobpcg.m', 'file');
     if sz>limit || needLobpcg
+        try
+            % bin, solve and interpolate back to rows in Java
+            jLayout=edu.stanford.facs.swing.BinnedSpectralLayout(data);
+            embedding=jLayout.compute(n_components);
+            if jLayout.layout.converged
+                % unscaled like the bins' layout below, the caller expands
+                return;
+            end
+            %not converged within the budget: bin and run UMAP below
+            embedding=[];
+        catch
+            % umap.jar predates BinnedSpectralLayout
+        end
         probability_bins=probability_means_weights_ptrs(data);
         umap=UMAP('n_components', n_components);
         umap.init=UMAP.INIT_EIGEN;
@@ -25,6 +25,7 @@ classdef Density < handle
         DbmSlopeIsSignificant='DbmSlopeIsSignificant';
         DbmM='DbmM';
         DbmNmin='DbmNmin';
+        DbmPyramid='DbmPyramid';
         
         
     end
@@ -61,7 +62,9 @@ classdef Density < handle
         fmat=[];
         wmat=[];
         phimat=[];
+        stdErrVector=[];
         rawPointers=[];
+        pyramid=[];
         contourH=[];
         h=[];
         L=[];
@@ -92,6 +95,11 @@ classdef Density < handle
         nearN=0;
     end
     
+    properties(Transient, SetAccess=private)
+        hessian=[]; %GridHessian of fmat, see getHessian
+        hessianClustered=false; %if its peaks are of pointersWithEvents
+    end
+    
     properties
         probabilityDensity;
         pointers=[]; %with or without events
@@ -306,9 +314,18 @@ classdef Density < handle
                 end
             
             end
-            [~,H]=contour(ax, this.contourXm, this.contourYm, ...
-                this.contourZ, this.contourV, 'k', 'color', color, ...
-                'LineStyle', '-', 'LineWidth', lineWidth);
+            try
+                % closed polygons traced in Java, NaN separated
+                gc=edu.stanford.facs.swing.GridContours(this.M);
+                gc.traceLevels(this.fmatVector2, this.contourV, ...
+                    this.mins, this.deltas);
+                H=plot(ax, gc.x, gc.y, 'color', color, ...
+                    'LineStyle', '-', 'LineWidth', lineWidth);
+            catch
+                [~,H]=contour(ax, this.contourXm, this.contourYm, ...
+                    this.contourZ, this.contourV, 'k', 'color', color, ...
+                    'LineStyle', '-', 'LineWidth', lineWidth);
+            end
         end
         
         function contourV=getProbabilityDensities(this, contourLevels)
@@ -348,9 +365,14 @@ classdef Density < handle
             else
                 onScale2=MatBasics.FindOnScale(data, this.mins, this.maxs);
                 data=data(onScale2, :);
-                z=reshape(1:this.M^2,this.M,this.M);
-            	eb=interp2(this.xgrid, this.ygrid, z',...
-                    data(:,1),data(:,2),'nearest');  %this associates each data point with its nearest grid point
+                try
+                    eb=double(edu.stanford.facs.swing.EventBins.ToBins(...
+                        this.M, this.mins, this.maxs, data(:,1), data(:,2)));
+                catch
+                    z=reshape(1:this.M^2,this.M,this.M);
+                    eb=interp2(this.xgrid, this.ygrid, z',...
+                        data(:,1),data(:,2),'nearest');  %this associates each data point with its nearest grid point
+                end
                 [x1,~,x3]=unique(eb);
             end
             if isPseudoColor
@@ -428,7 +450,42 @@ classdef Density < handle
             
         end
         
+        function gh=getHessian(this)
+            %GridHessian computed once for fmat with the peaks of each
+            %cluster in pointersWithEvents, or [] without Java
+            if isempty(this.hessian)
+                try
+                    this.hessian=edu.stanford.facs.swing.GridHessian(...
+                        this.M, this.fmatVector, this.deltas);
+                catch
+                    gh=[];
+                    return;
+                end
+            end
+            if ~this.hessianClustered
+                this.hessian.clusters(this.pointersWithEvents, this.eigVec);
+                this.hessianClustered=true;
+            end
+            gh=this.hessian;
+        end
+        
         function [x, y, xIdx, yIdx, mxDns, avgDns]=getPeak(this, clue)
+            gh=this.getHessian;
+            if ~isempty(gh)
+                peak=gh.getPeak(clue);
+                xIdx=peak(1);
+                yIdx=peak(2);
+                mxDns=peak(3);
+                avgDns=peak(4);
+                if xIdx==0
+                    x=0;
+                    y=0;
+                else
+                    x=this.mins(1)+((xIdx-1)*this.deltas(1));
+                    y=this.mins(2)+((yIdx-1)*this.deltas(2));
+                end
+                return;
+            end
             bi=find(this.pointersWithEvents==clue);
             if isempty(bi)
                 x=0;
@@ -450,6 +507,15 @@ classdef Density < handle
         end
 
         function [xIdx, yIdx, mxEig, avgEig]=getPeakEig(this, clue)
+            gh=this.getHessian;
+            if ~isempty(gh) && ~isempty(this.eigVec)
+                peak=gh.getPeakEig(clue);
+                xIdx=peak(1);
+                yIdx=peak(2);
+                mxEig=peak(3);
+                avgEig=peak(4);
+                return;
+            end
             bi=find(this.pointersWithEvents==clue);
             if isempty(bi)
                 xIdx=0;
@@ -507,8 +573,13 @@ classdef Density < handle
         end
         
         function f2D=get2ndDerivative(this)
-            f=this.fmat;
             M_=this.M;
+            gh=this.getHessian;
+            if ~isempty(gh)
+                f2D=reshape(gh.getSecondDerivative, M_, M_);
+                return;
+            end
+            f=this.fmat;
             fx=zeros(M_, M_);
             fy=zeros(M_, M_);
             D1=this.deltas(1);
@@ -631,6 +702,13 @@ classdef Density < handle
             end
             clusters=[];
             data=randi(100, 50, 3);
+            try
+                clusters=edu.stanford.facs.swing.DbScan.Cluster(data, .5, 15);
+                isMatLabVersion=false;
+                ok=true;
+                return;
+            catch ex
+            end
             try
                 clusters=dbscan(data, .5, 15);
                 isMatLabVersion=true;
@@ -791,7 +869,10 @@ classdef Density < handle
             options.DbmMsncPerc= 0;
             options.DbmMsncDist=2;
             options.DbmBandwidth=bandWidth;
-            options.DbmM=M;
+            % M [64 128 256] clusters at 256 and keeps the clusterings
+            % at 128 and 64 in density.pyramid
+            options.DbmM=M(end);
+            options.DbmPyramid=length(M);
             options.DbmBackgroundFactor=backgroundFactor;
             options.DbmSlopeIsSignificant=slopeSignificance;
             options.DbmBackgroundType=backgroundType;
@@ -841,11 +922,14 @@ classdef Density < handle
             end
             
             %PUBREF=STEP 1
-            sigmat = 1/(this.N*(this.N-1))*...
-                convn(this.wmat,this.phimat.^2,'same') - ...
-                1/(this.N-1)*this.fmat.^2;  %d-dim matrix of standard error of estimated densities
             f=this.fmatVector;  %f in single vector
-            sig=reshape(sigmat,1,MM);  %sigmat in single vector
+            if isempty(this.stdErrVector)
+                sigmat = 1/(this.N*(this.N-1))*...
+                    convn(this.wmat,this.phimat.^2,'same') - ...
+                    1/(this.N-1)*this.fmat.^2;  %d-dim matrix of standard error of estimated densities
+                sig=reshape(sigmat,1,MM);  %sigmat in single vector
+                this.stdErrVector=real(sqrt(sig));
+            end
             if isfield(options,'hWait')
                 waitbar2a(options.percentDone+(.08*options.totalPercent), options.hWait, 'Densities & stderr ');
             end
@@ -855,7 +939,7 @@ classdef Density < handle
             for i=1:Density.D
                 PhimatD = -Delta(i)/this.h(i)^2*this.L{i}'.*this.phimat;
                 %PUBREF=STEP 2.C
-                dfmat{i}=1/this.N*convn(this.wmat,PhimatD,'same');
+                dfmat{i}=1/this.N*Density.Convolve(this.wmat,PhimatD);
             end
             
             w=this.wmatVector;
@@ -866,7 +950,7 @@ classdef Density < handle
                 bgType=options.DbmBackgroundType;
             end
             %alpha=-1;
-            stdErr=sqrt(sig);
+            stdErr=this.stdErrVector;
             if ~all(this.maxs<=1) && bgType==1 
                 bgFactor=4.3^2;
                 bgType=4;
@@ -898,7 +982,7 @@ classdef Density < handle
                         halfH1H2D, secondDerivative(vIdx), rightSide(vIdx));
                 end
             elseif bgType==1  % no scatter
-                g=1/this.N*convn(this.wmat,this.phimat.^2,'same');% (normal density)^2 divided by plot frequency
+                g=1/this.N*Density.Convolve(this.wmat,this.phimat.^2);% (normal density)^2 divided by plot frequency
                 g=reshape(g,1,MM);
                 K2=(bgFactor^2);%backgroundFactor default is 4.3
                 leftSide=(this.N*(f.^3))+((K2-1)*(f.^2));
@@ -990,7 +1074,7 @@ classdef Density < handle
                     for j=1:d
                         PhimatA=Delta(i)/this.h(i)^2*Delta(j)/this.h(j)^2*this.L{i}'.*this.L{j}'.*this.phimat.^2;
                         %PUBREF=STEP 2.G
-                        Amat{i,j}=1/this.N*convn(this.wmat,PhimatA,'same');
+                        Amat{i,j}=1/this.N*Density.Convolve(this.wmat,PhimatA);
                     end
                 end
                 %Connor this is not the euclidian norm, but instead a
@@ -1097,16 +1181,17 @@ classdef Density < handle
             end
             noJava=false;
             try
-                javaDbm=edu.stanford.facs.swing.Dbm(M_);
-                javaDbm.pointers=Pointers;
-                javaDbm.density=f;
-                javaDbm.stdErr=stdErr;
                 if debugNewJavaMerging>0
+                    javaDbm=edu.stanford.facs.swing.Dbm(M_);
+                    javaDbm.pointers=Pointers;
+                    javaDbm.density=f;
+                    javaDbm.stdErr=stdErr;
                     javaDbm.debugging=1;
+                    Density.JavaMerge(javaDbm, M_);
                 else
-                    javaDbm.reportChangeCount=false;
+                    javaDbm=Density.JavaMergeAgain(M_, this.mins, ...
+                        this.maxs, Pointers, f, stdErr);
                 end
-                javaDbm.merge;
             catch ex
                 javaDbm=[];
                 noJava=true;
@@ -1268,42 +1353,74 @@ classdef Density < handle
                 toc(matLabMerging);
             else
                 javaDbm.fixClusterTear;
+                if isfield(options, Density.DbmPyramid) ...
+                        && options.DbmPyramid>1
+                    try
+                        % the same clustering on grids of M/2, M/4 ...
+                        % each cluster linked to its coarser parent
+                        this.pyramid=edu.stanford.facs.swing.DbmPyramid(...
+                            M_, Pointers, f, stdErr, critval, ...
+                            options.DbmPyramid);
+                        this.pyramid.merge(javaDbm.pointers);
+                    catch
+                        % umap.jar predates DbmPyramid
+                        this.pyramid=[];
+                    end
+                end
                 Pointers=javaDbm.pointers';
                 this.pointers=Pointers; %this is to save Pointers for making vector plot later
                 this.rawPointers=Pointers;
             end
-            p=this.pointers>0;
-            while any(p)
-                this.pointers(p)=this.pointers(this.pointers(p));  %follows the path of all positive pointers until they all go to dummy states
+            try
+                % follows the pointers, labels the clusters with events 1
+                % to k and looks up every event's cluster in one pass
+                eb=edu.stanford.facs.swing.EventBins(this.M, this.mins, this.maxs);
+                eb.addBins(this.eventBinIdxs);
+                numClusts=eb.label(this.pointers);
+                this.pointers=reshape(double(eb.getPointers), size(this.pointers));
+                eventClusterIds=reshape(double(eb.getClusterIds), ...
+                    size(this.eventBinIdxs));
+                if this.truncated
+                    ca=zeros(1, length(this.onScale));
+                    ca(this.onScale)=eventClusterIds;
+                    eventClusterIds=ca;
+                end
+                this.pointersWithEvents=double(eb.getPointersWithEvents)';
+                this.hessianClustered=false;
+            catch
                 p=this.pointers>0;
-            end
-            %PUBREF = STEP 6
-            this.pointers(this.pointers==-1)=0;  %send background gridpoints to label 0
+                while any(p)
+                    this.pointers(p)=this.pointers(this.pointers(p));  %follows the path of all positive pointers until they all go to dummy states
+                    p=this.pointers>0;
+                end
+                %PUBREF = STEP 6
+                this.pointers(this.pointers==-1)=0;  %send background gridpoints to label 0
             
-            eventClusterIds=this.pointers(this.eventBinIdxs); %assigns each original data point the dummy cluster number of its closest gridpoint
+                eventClusterIds=this.pointers(this.eventBinIdxs); %assigns each original data point the dummy cluster number of its closest gridpoint
             
-            clusts=unique(eventClusterIds);
-            clusts=clusts(clusts~=0);  %all non-background clusters            
-            numClusts=length(clusts);
-            j=1;
-            for i=clusts
-                eventClusterIds(eventClusterIds==i)=j;  %relabel clusters from 1 to NumClusts
-                this.pointers(this.pointers==i)=j;  %relabel pointers
-                j=j+1;
-            end
-            if this.truncated
-                ca=zeros(1, length(this.onScale));
-                ca(this.onScale)=eventClusterIds;
-                eventClusterIds=ca;
-            end
-            clustersWithoutEventBinIdxs=this.pointers<-1;
-            if sum(clustersWithoutEventBinIdxs)>0
-                if Density.IsDebugging
-                    fprintf('There are %d grid points with clusters but no events!', sum(clustersWithoutEventBinIdxs));
+                clusts=unique(eventClusterIds);
+                clusts=clusts(clusts~=0);  %all non-background clusters            
+                numClusts=length(clusts);
+                j=1;
+                for i=clusts
+                    eventClusterIds(eventClusterIds==i)=j;  %relabel clusters from 1 to NumClusts
+                    this.pointers(this.pointers==i)=j;  %relabel pointers
+                    j=j+1;
                 end
-                this.pointers(clustersWithoutEventBinIdxs)=0;  %send background gridpoints that had clusters but no events
+                if this.truncated
+                    ca=zeros(1, length(this.onScale));
+                    ca(this.onScale)=eventClusterIds;
+                    eventClusterIds=ca;
+                end
+                clustersWithoutEventBinIdxs=this.pointers<-1;
+                if sum(clustersWithoutEventBinIdxs)>0
+                    if Density.IsDebugging
+                        fprintf('There are %d grid points with clusters but no events!', sum(clustersWithoutEventBinIdxs));
+                    end
+                    this.pointers(clustersWithoutEventBinIdxs)=0;  %send background gridpoints that had clusters but no events
+                end
+                this.computePointersWithEvents(eventClusterIds);
             end
-            this.computePointersWithEvents(eventClusterIds);
             if options.mergeSmallNeighboringClusters && options.DbmMsncPerc>0
                 [numClusts, eventClusterIds]=...
                     mergeSmallNeighboringClusters(this, numClusts, stdErr, ...
@@ -1318,6 +1435,7 @@ classdef Density < handle
         
         function setPointersWithEvents(this, pointersWithEvents)
             this.pointersWithEvents=pointersWithEvents;
+            this.hessianClustered=false;
         end
         
         function p=computePointersWithEvents(this, eventClusterIds)
@@ -1330,6 +1448,7 @@ classdef Density < handle
                 this.pointersWithEvents=zeros(1, this.M^2);
                 this.pointersWithEvents(this.eventBinIdxs)=eventClusterIds;
             end
+            this.hessianClustered=false;
             if nargout>0
                 p=this.pointers;
             end
@@ -1412,34 +1531,21 @@ classdef Density < handle
             % ym=gridpoints(d,1:M); %list of every possible combo of 1:M
             
             this.ye=zeros(d,M_);
-            pointLL=zeros(N_,d);  %this will be the "lower left" gridpoint to each data point
             for i = 1:d
                 this.ye(i,:) = linspace(mins_(i),maxs_(i),M_);
-                pointLL(:,i)=floor((events(:,i)-mins_(i))./deltas_(i)) + 1;
             end
-            pointLL(pointLL==M_)=M_-1;  %this avoids going over grid boundary
             %% assign each data point to its closest grid point
             [this.xgrid, this.ygrid]=meshgrid(this.ye(1,:),this.ye(2,:));
             z=reshape(1:MM,M_,M_);
-            this.eventBinIdxs=interp2(this.xgrid, this.ygrid,z',...
-                events(:,1),events(:,2),'nearest');  %this associates each data point with its nearest grid point
-            %% compute w
-            Deltmat=repmat(deltas_,N_,1);
-            shape=M_*ones(1,d);
-            
-            wmat_=zeros(M_,M_);
-            for i=0:1  %number of neighboring gridpoints in d dimensions
-                for j=0:1
-                    pointm=pointLL+repmat([j i],N_,1);  %indices of ith neighboring gridpoints
-                    pointy=zeros(N_,d);
-                    for k=1:d
-                        pointy(:,k)=this.ye(k,pointm(:,k));  %y-values of ith neighboring gridpoints
-                    end
-                    %PUBREF=REF 2.1
-                    W=prod(1-(abs(events-pointy)./Deltmat),2);  %contribution to w from ith neighboring gridpoint from each datapoint
-                    wmat_=wmat_+accumarray(pointm,W,shape);  %sums contributions for ith gridpoint over data points and adds to wmat
-                end
+            try
+                this.eventBinIdxs=double(edu.stanford.facs.swing.EventBins.ToBins(...
+                    M_, mins_, maxs_, events(:,1), events(:,2)));
+            catch
+                this.eventBinIdxs=interp2(this.xgrid, this.ygrid,z',...
+                    events(:,1),events(:,2),'nearest');  %this associates each data point with its nearest grid point
             end
+            %% compute w
+            wmat_=Density.Weight(events, M_, mins_, maxs_);
             this.wmat=wmat_;
             
             %% compute f, sig, df and A
@@ -1510,7 +1616,15 @@ classdef Density < handle
             
             this.phimat = (Phix.*Phiy)';   %matrix of Phi for inputting into convn
             %PUBREF=REF 2.2
-            this.fmat = 1/N_*convn(wmat_,this.phimat,'same');  %d-dim matrix of estimated densities
+            try
+                fs=edu.stanford.facs.swing.KernelSmoother.DensityAndStdErr(...
+                    wmat_(:), M_, N_, this.phimat(:), ...
+                    size(this.phimat,1), size(this.phimat,2));
+                this.fmat=reshape(fs(1,:), M_, M_);
+                this.stdErrVector=fs(2,:);
+            catch
+                this.fmat = 1/N_*convn(wmat_,this.phimat,'same');  %d-dim matrix of estimated densities
+            end
             this.fmatVector=reshape(this.fmat,[1, MM]);
             this.wmatVector=reshape(this.wmat, [1, MM]); 
             
@@ -1540,7 +1654,7 @@ classdef Density < handle
             Phix=phi(L_{1}*this.deltas(1)./h_(1))./h_(1);
             Phiy=phi(L_{2}*this.deltas(2)./h_(2))./h_(2);
             Phimat = (Phix.*Phiy)';   
-            fMat = 1/this.N*conv2(this.wmat,Phimat,'same');
+            fMat = 1/this.N*Density.Convolve(this.wmat,Phimat);
             this.fmatVector2=reshape(fMat,[1, this.M^2]);
             this.contourZ=fMat';
             [this.contourXm, this.contourYm]=meshgrid(this.ye(1,:),this.ye(2,:));
@@ -1563,6 +1677,56 @@ classdef Density < handle
         function n=LARGE_EVENTS
             n=250000;
         end
+        function JavaMerge(javaDbm, M)
+            %mergeTiled only for big grids with more than 1 processor since
+            %merge is as fast on 1; umap.jar may predate mergeTiled
+            if M>=512 && ismethod(javaDbm, 'mergeTiled') ...
+                    && java.lang.Runtime.getRuntime.availableProcessors>1
+                pointers=javaDbm.pointers;
+                try
+                    javaDbm.mergeTiled;
+                    return;
+                catch
+                    javaDbm.pointers=pointers;
+                end
+            end
+            javaDbm.merge;
+        end
+        
+        function javaDbm=JavaMergeAgain(M, mins, maxs, pointers, f, stdErr)
+            %merges with the Dbm of the last call if it was on the same
+            %grid so only the parts of the grid whose density, stdErr or
+            %starting pointers changed are merged again
+            persistent last lastM lastMins lastMaxs lastF lastStdErr;
+            javaDbm=[];
+            if ~isempty(last) && lastM==M && isequal(lastMins, mins) ...
+                    && isequal(lastMaxs, maxs) && isequal(size(lastF), size(f))
+                try
+                    delta=find(lastF~=f | lastStdErr~=stdErr)-1;
+                    last.density=f;
+                    last.stdErr=stdErr;
+                    last.merge(delta, pointers);
+                    javaDbm=last;
+                catch
+                    % umap.jar predates merge(delta, newPointers)
+                end
+            end
+            if isempty(javaDbm)
+                javaDbm=edu.stanford.facs.swing.Dbm(M);
+                javaDbm.pointers=pointers;
+                javaDbm.density=f;
+                javaDbm.stdErr=stdErr;
+                javaDbm.reportChangeCount=false;
+                Density.JavaMerge(javaDbm, M);
+            end
+            last=javaDbm;
+            lastM=M;
+            lastMins=mins;
+            lastMaxs=maxs;
+            lastF=f;
+            lastStdErr=stdErr;
+        end
+        
         function dbmVersion=DbmVersion
             %dbmVersion='v4';
             %if switching to v4 to support cluster boundaries 
@@ -1657,7 +1821,25 @@ classdef Density < handle
             end
         end
         
+        function out=Convolve(grid, kernel)
+            %convn(grid, kernel, 'same') switching to FFT for wide kernels
+            try
+                out=reshape(edu.stanford.facs.swing.KernelSmoother.Convolve(...
+                    grid(:), size(grid,1), size(grid,2), kernel(:), ...
+                    size(kernel,1), size(kernel,2)), size(grid));
+            catch
+                out=convn(grid, kernel, 'same');
+            end
+        end
+        
         function wmat_=Weight(events,  M_, mins_, maxs_)
+            try
+                binner=edu.stanford.facs.swing.DensityBinner(M_, mins_, maxs_);
+                binner.add(events(:,1), events(:,2));
+                wmat_=reshape(binner.getWeightVector, M_, M_);
+                return;
+            catch
+            end
             deltas_ = 1/(M_-1)*(maxs_-mins_);  
             N_=size(events,1);  %number of data points
             d=size(events,2);  %number of dimensions
@@ -191,12 +191,8 @@ classdef DensityBiased<handle
                 back=f<=backgroundFactor*stdErr; %points designated background
                 [~, ~, Pointers]=MatBasics.GetClusters(dns.fmat, back, []);
             end
-            javaDbm=edu.stanford.facs.swing.Dbm(dns.M);
-            javaDbm.pointers=Pointers;
-            javaDbm.density=f;
-            javaDbm.stdErr=stdErr;
-            javaDbm.reportChangeCount=false;
-            javaDbm.merge;
+            javaDbm=Density.JavaMergeAgain(dns.M, dns.mins, dns.maxs, ...
+                Pointers, f, stdErr);
             javaDbm.fixClusterTear;
             Pointers=javaDbm.pointers';
             dns.pointers=Pointers; %this is to save Pointers for making vector plot later
@@ -174,6 +174,11 @@ classdef QfHiDM < handle
         maxMerges=0;
     end
     
+    properties(Transient, SetAccess=private)
+        qfEngine=[]; %QfDissimilarity of the id sets, see getQfEngine
+        qfEngineHasData=false; %if it has tData and sData
+    end
+    
     
     methods(Static)
         function strs=MERGE_LIMITS
@@ -957,11 +962,18 @@ classdef QfHiDM < handle
         end
         
         function D=fastEmd(this, tIdSet, sIdSet)
-            tChoices=MatBasics.LookForIds(this.tIdPerRow, tIdSet);
-            sChoices=MatBasics.LookForIds(this.sIdPerRow, sIdSet);
-            tData_=this.tData(tChoices, :);
-            sData_=this.sData(sChoices, :);
-            D=AdaptiveBins.Emd(tData_, sData_, 7);
+            D=nan;
+            qe=this.getQfEngine('Fast EMD');
+            if ~isempty(qe)
+                D=qe.distance('Fast EMD', sIdSet, tIdSet);
+            end
+            if isnan(D)
+                tChoices=MatBasics.LookForIds(this.tIdPerRow, tIdSet);
+                sChoices=MatBasics.LookForIds(this.sIdPerRow, sIdSet);
+                tData_=this.tData(tChoices, :);
+                sData_=this.sData(sChoices, :);
+                D=AdaptiveBins.Emd(tData_, sData_, 7);
+            end
             fprintf('EMD=%s....tIds="%s" & sIds="%s"\n', ...
                 String.encodeRounded(D, 4), num2str(tIdSet), ...
                 num2str(sIdSet'));
@@ -1506,6 +1518,30 @@ classdef QfHiDM < handle
             end
             dbgMat=cell(rows, cols);
             mx=QfHiDM.MAX_QF_DISTANCE;%realmax;%highest value to not select QF]
+            if (nargin>5 || ~this.preCheckDeviations) ...
+                    && this.debugLevel<=0 && QfHiDM.DEBUG_LEVEL<=0
+                % compute the pairs not computed before all at once in
+                % parallel so this.distance only looks them up
+                qe=this.getQfEngine(this.distanceType);
+                if ~isempty(qe)
+                    onlyRow=0;
+                    onlyCol=0;
+                    if nargin>5
+                        if transpose
+                            onlyRow=only;
+                        else
+                            onlyCol=only;
+                        end
+                    end
+                    try
+                        qe.computeAll(char(this.distanceType), ...
+                            QfHiDM.ToJavaIdSets(sIdSets), ...
+                            QfHiDM.ToJavaIdSets(tIdSets), ...
+                            onlyRow, onlyCol, this.isIdentityMatrix);
+                    catch
+                    end
+                end
+            end
             for row=1:rows
                 if nargin>5 && transpose  && row~=only
                     matrix(row,:)=mx;%realmax;%highest value to not select QF
@@ -1624,6 +1660,16 @@ classdef QfHiDM < handle
         
         function [D, tSz, html]=distance(this, sIdSet, tIdSet)
             html='';
+            if this.debugLevel<=0 && QfHiDM.DEBUG_LEVEL<=0
+                qe=this.getQfEngine(this.distanceType);
+                if ~isempty(qe)
+                    D=qe.distance(char(this.distanceType), sIdSet, tIdSet);
+                    if ~isnan(D)
+                        tSz=qe.getTeachSize(tIdSet);
+                        return;
+                    end
+                end
+            end
             tt=tic;
             tChoices=MatBasics.LookForIds(this.tIdPerRow, tIdSet);
             tSz=sum(tChoices);
@@ -1713,6 +1759,45 @@ classdef QfHiDM < handle
             end
         end        
         
+        function qe=getQfEngine(this, distanceType)
+            %QfDissimilarity for distanceType or [] without Java or if
+            %QF bins each pair (binStrategy 1)
+            qe=[];
+            isQf=isempty(distanceType) || strncmp(distanceType, 'QF', 2);
+            if isQf && isempty(this.adaptiveBins)
+                return;
+            end
+            if isempty(this.qfEngine)
+                this.qfEngine=false;
+                try
+                    if isempty(this.adaptiveBins)
+                        means=zeros(0, size(this.tData, 2));
+                        teachPtrs=zeros(1, size(this.tData, 1));
+                        studPtrs=zeros(1, size(this.sData, 1));
+                    else
+                        means=this.adaptiveBins.means;
+                        teachPtrs=this.adaptiveBins.teachPtrs;
+                        studPtrs=this.adaptiveBins.studPtrs;
+                    end
+                    this.qfEngine=edu.stanford.facs.swing.QfDissimilarity(...
+                        means, int32(teachPtrs), int32(studPtrs), ...
+                        double(this.tIdPerRow(:)), size(this.tIdPerRow, 2), ...
+                        double(this.sIdPerRow(:)), size(this.sIdPerRow, 2), ...
+                        this.binStrategy<0);
+                catch
+                end
+            end
+            if islogical(this.qfEngine)
+                return;
+            end
+            if ~isQf && ~this.qfEngineHasData
+                this.qfEngine.setData(this.tData(:), this.sData(:), ...
+                    size(this.tData, 2));
+                this.qfEngineHasData=true;
+            end
+            qe=this.qfEngine;
+        end
+        
         function ok=isCancelled(this)
             if ~isempty(this.pu)
                 drawnow;
@@ -1805,6 +1890,15 @@ classdef QfHiDM < handle
             end
         end
         
+        function sets=ToJavaIdSets(idSets)
+            %id sets as row vectors for QfDissimilarity.computeAll
+            if iscell(idSets)
+                sets=cellfun(@(ids){double(ids(:)')}, idSets);
+            else
+                sets=num2cell(double(idSets));
+            end
+        end
+        
         function ids=ToIds(idxs, singleIds)
             N=length(idxs);
             ids=cell(1, N);
@@ -4,11 +4,39 @@
 %   Provided by the Herzenberg Lab at Stanford University 
 %   License: BSD 3 clause
 %
-function [P, tears]=fixClusterTear(M, P, neighborHood, ids)
-if nargin<4
-    ids=unique( P(P<-1) );
+function [P, tears]=fixClusterTear(M, P, neighborHood, ids, tooSmall)
+%   An empty neighborHood means the 8-connected neighbors of the MxM grid
+%   and lets edu.stanford.facs.swing.Dbm label all tears in one pass.
+%   Fragments with fewer than tooSmall grid points become background (-1).
+if nargin<5
+    tooSmall=0;
+    if nargin<4
+        ids=unique( P(P<-1) );
+    end
 end
 tears=[];
+if isempty(neighborHood)
+    try
+        dbm=edu.stanford.facs.swing.Dbm(M);
+        dbm.pointers=P;
+        dbm.possibleClusterTears=ids;
+        dbm.tooSmall=tooSmall;
+        dbm.fixClusterTear;
+        wasRow=size(P,1)==1;
+        P=double(dbm.pointers);
+        if wasRow
+            P=P';
+        end
+        tears=double(dbm.tears);
+        if isempty(tears)
+            tears=[];
+        end
+        return;
+    catch ex
+        disp(ex.message);
+        neighborHood=gridNeighborHood(M);
+    end
+end
 fix;
 
     function fix        
@@ -33,10 +61,11 @@ fix;
                     toDo=setdiff(neighbors,done);
                 end
                 p=find(P==id, 1, 'first');
-                idCnt=idCnt+1;
-                %if sum(P==newId)<4
-                %    P(P==newId)=-1;
-                %end
+                if tooSmall>0 && sum(P==newId)<tooSmall
+                    P(P==newId)=-1;
+                else
+                    idCnt=idCnt+1;
+                end
             end
             if idCnt>2
                 tears(end+1,:)=[id, idCnt-1];
@@ -44,4 +73,15 @@ fix;
         end
         disp(['check sum=' sum(P)]);
     end
-end
\ No newline at end of file
+
+    function neighborHood=gridNeighborHood(M)
+        MM=M^2;
+        neighborHood=cell(1, MM);
+        for idx=1:MM
+            [r, c]=ind2sub([M M], idx);
+            [R, C]=meshgrid(max(1,r-1):min(M,r+1), max(1,c-1):min(M,c+1));
+            neighbors=sub2ind([M M], R(:), C(:))';
+            neighborHood{idx}=neighbors(neighbors~=idx);
+        end
+    end
+end
@@ -24,17 +24,26 @@ else
         density=fgOrDensityObject.density;
     end
 end
-binIdxs=[];
-for i=1:length(clusterIds)
-    binIdxs=[binIdxs find(density.pointers==clusterIds(i))];
-end
+inClusters=ismember(density.pointers, clusterIds);
 
-gce=edu.stanford.facs.swing.GridClusterEdge(density.M);
+persistent gce gceM; % reused for every border of the same grid size
+if isempty(gce) || gceM ~= density.M
+    gce=edu.stanford.facs.swing.GridClusterEdge(density.M);
+    gceM=density.M;
+end
 if ~allBorders
-    gce.compute(binIdxs, nargout>1, density.mins, density.deltas)
+    gce.compute(find(inClusters), nargout>1, density.mins, density.deltas)
     [xx, yy]=clockwise([gce.x gce.y]);
 else
-    gce.computeAll(binIdxs, density.mins, density.deltas)
+    try
+        % the clusters are label 1 of the grid: its edges are those of
+        % all their bins together from one sweep
+        gce.computeAllClusters(double(inClusters), density.mins, ...
+            density.deltas);
+    catch
+        % umap.jar predates computeAllClusters
+        gce.computeAll(find(inClusters), density.mins, density.deltas)
+    end
     if strcmp('none', lineStyle)
         xx=gce.x;
         yy=gce.y;